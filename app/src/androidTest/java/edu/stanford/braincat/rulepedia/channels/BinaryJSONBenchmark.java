@@ -0,0 +1,128 @@
+package edu.stanford.braincat.rulepedia.channels;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Created by gcampagn on 6/12/15.
+ * <p>
+ * Compares loading a rule database from JSON and from BinaryJSON, in time
+ * and in heap retained by the decoded rules. Results go to the log.
+ */
+public class BinaryJSONBenchmark extends AndroidTestCase {
+    private static final String LOG_TAG = "rulepedia.Benchmark";
+    private static final int RULE_COUNT = 500;
+    private static final int ITERATIONS = 10;
+
+    private static JSONObject makeParam(String name, String type, Object value) throws JSONException {
+        JSONObject param = new JSONObject();
+        param.put("name", name);
+        param.put("type", type);
+        param.put("value", value);
+        return param;
+    }
+
+    private static JSONArray makeRules() throws JSONException {
+        JSONArray rules = new JSONArray();
+
+        for (int i = 0; i < RULE_COUNT; i++) {
+            JSONObject trigger = new JSONObject();
+            trigger.put("object", "https://rulepedia.stanford.edu/oid/channel/weather-" + (i % 10));
+            trigger.put("trigger", "temperature-above");
+            trigger.put("params", new JSONArray().put(makeParam("threshold", "number", i % 40)));
+
+            JSONObject action = new JSONObject();
+            action.put("object", "https://rulepedia.stanford.edu/oid/predefined/channel/notification-manager");
+            action.put("method", "post-notification");
+            action.put("params", new JSONArray()
+                    .put(makeParam("title", "text", "Hot outside"))
+                    .put(makeParam("text", "text", "It is above " + (i % 40) + " degrees")));
+
+            JSONObject rule = new JSONObject();
+            rule.put("name", "Rule " + i);
+            rule.put("description", "Generated rule number " + i);
+            rule.put("trigger", trigger);
+            rule.put("actions", new JSONArray().put(action));
+            rule.put("enabled", true);
+            rule.put("id", "rule-" + i);
+            rules.put(rule);
+        }
+
+        return rules;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++)
+            runtime.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    public void testLoad() throws IOException, JSONException {
+        JSONArray rules = makeRules();
+        String json = rules.toString();
+
+        File binFile = new File(getContext().getCacheDir(), "benchmark.bin");
+        try (FileOutputStream output = new FileOutputStream(binFile)) {
+            BinaryJSON.write(output, rules);
+        }
+
+        // round trip
+        BinaryJSON.Document document = BinaryJSON.map(binFile);
+        assertEquals(RULE_COUNT, document.length());
+        for (int i = 0; i < RULE_COUNT; i++)
+            assertEquals(rules.getJSONObject(i).toString(), document.getJSONObject(i).toString());
+
+        long jsonTime = 0;
+        long binaryTime = 0;
+        for (int it = 0; it < ITERATIONS; it++) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            JSONArray parsed = (JSONArray) new JSONTokener(json).nextValue();
+            for (int i = 0; i < parsed.length(); i++)
+                parsed.getJSONObject(i);
+            jsonTime += SystemClock.elapsedRealtimeNanos() - start;
+
+            start = SystemClock.elapsedRealtimeNanos();
+            BinaryJSON.Document doc = BinaryJSON.map(binFile);
+            for (int i = 0; i < doc.length(); i++)
+                doc.getJSONObject(i);
+            binaryTime += SystemClock.elapsedRealtimeNanos() - start;
+        }
+
+        List<Object> retained = new ArrayList<>();
+        long baseline = usedHeap();
+        JSONArray parsed = (JSONArray) new JSONTokener(json).nextValue();
+        retained.add(parsed);
+        long jsonHeap = usedHeap() - baseline;
+        retained.clear();
+
+        baseline = usedHeap();
+        BinaryJSON.Document doc = BinaryJSON.map(binFile);
+        for (int i = 0; i < doc.length(); i++)
+            retained.add(doc.getJSONObject(i));
+        long binaryHeap = usedHeap() - baseline;
+        retained.clear();
+
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        BinaryJSON.write(encoded, rules);
+
+        Log.i(LOG_TAG, "JSON: " + json.length() + " bytes, " + jsonTime / ITERATIONS / 1000 + " us/load, " + jsonHeap + " bytes of heap");
+        Log.i(LOG_TAG, "BinaryJSON: " + encoded.size() + " bytes, " + binaryTime / ITERATIONS / 1000 + " us/load, " + binaryHeap + " bytes of heap");
+
+        assertTrue(encoded.size() < json.length());
+        assertTrue(binFile.delete());
+    }
+}
@@ -0,0 +1,137 @@
+package edu.stanford.braincat.rulepedia.channels;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Created by gcampagn on 6/19/15.
+ * <p>
+ * Compares the cost of the ways to identify a rule: the old SHA-1 of
+ * toString(), the SHA-1 of the canonical JSON used for ids, and the FNV
+ * fingerprint used for dedupe. Results go to the log.
+ */
+public class RuleHashBenchmark extends AndroidTestCase {
+    private static final String LOG_TAG = "rulepedia.Benchmark";
+    private static final int RULE_COUNT = 500;
+    private static final int ITERATIONS = 10;
+
+    private static JSONObject makeParam(String name, String type, Object value) throws JSONException {
+        JSONObject param = new JSONObject();
+        param.put("name", name);
+        param.put("type", type);
+        param.put("value", value);
+        return param;
+    }
+
+    private static JSONObject makeRule(int i, boolean reversed) throws JSONException {
+        JSONObject trigger = new JSONObject();
+        JSONObject action = new JSONObject();
+        JSONObject rule = new JSONObject();
+
+        // the same content, with keys inserted in a different order
+        if (!reversed) {
+            trigger.put("object", "https://rulepedia.stanford.edu/oid/channel/weather-" + (i % 10));
+            trigger.put("trigger", "temperature-above");
+            trigger.put("params", new JSONArray().put(makeParam("threshold", "number", i % 40)));
+        } else {
+            trigger.put("params", new JSONArray().put(makeParam("threshold", "number", (double) (i % 40))));
+            trigger.put("trigger", "temperature-above");
+            trigger.put("object", "https://rulepedia.stanford.edu/oid/channel/weather-" + (i % 10));
+        }
+
+        action.put("object", "https://rulepedia.stanford.edu/oid/predefined/channel/notification-manager");
+        action.put("method", "post-notification");
+        action.put("params", new JSONArray()
+                .put(makeParam("title", "text", "Hot outside"))
+                .put(makeParam("text", "text", "It is above " + (i % 40) + " degrees")));
+
+        if (!reversed) {
+            rule.put("name", "Rule " + i);
+            rule.put("description", "Generated rule number " + i);
+            rule.put("trigger", trigger);
+            rule.put("actions", new JSONArray().put(action));
+        } else {
+            rule.put("actions", new JSONArray().put(action));
+            rule.put("trigger", trigger);
+            rule.put("description", "Generated rule number " + i);
+            rule.put("name", "Rule " + i);
+        }
+
+        return rule;
+    }
+
+    private static String legacySHA1(String string) throws NoSuchAlgorithmException {
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+        return new String(md.digest(string.getBytes()));
+    }
+
+    public void testCanonical() throws JSONException {
+        for (int i = 0; i < 10; i++) {
+            String canonical = Util.toCanonicalJSON(makeRule(i, false));
+            assertEquals(canonical, Util.toCanonicalJSON(makeRule(i, true)));
+            assertEquals(Util.toSHA1(canonical), Util.toSHA1(Util.toCanonicalJSON(makeRule(i, true))));
+            assertEquals(Util.fingerprint64(canonical), Util.fingerprint64(Util.toCanonicalJSON(makeRule(i, true))));
+        }
+
+        String id = Util.toSHA1(Util.toCanonicalJSON(makeRule(0, false)));
+        assertEquals(40, id.length());
+        assertTrue(id.matches("[0-9a-f]+"));
+        // the well known SHA-1 of the empty string
+        assertEquals("da39a3ee5e6b4b0d3255bfef95601890afd80709", Util.toSHA1(""));
+    }
+
+    public void testHashing() throws JSONException, NoSuchAlgorithmException {
+        JSONObject[] rules = new JSONObject[RULE_COUNT];
+        for (int i = 0; i < RULE_COUNT; i++)
+            rules[i] = makeRule(i, false);
+
+        long legacyTime = 0;
+        long canonicalTime = 0;
+        long sha1Time = 0;
+        long fingerprintTime = 0;
+        for (int it = 0; it < ITERATIONS; it++) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            for (JSONObject rule : rules)
+                legacySHA1(rule.toString());
+            legacyTime += SystemClock.elapsedRealtimeNanos() - start;
+
+            String[] canonical = new String[RULE_COUNT];
+            start = SystemClock.elapsedRealtimeNanos();
+            for (int i = 0; i < RULE_COUNT; i++)
+                canonical[i] = Util.toCanonicalJSON(rules[i]);
+            canonicalTime += SystemClock.elapsedRealtimeNanos() - start;
+
+            start = SystemClock.elapsedRealtimeNanos();
+            for (String s : canonical)
+                Util.toSHA1(s);
+            sha1Time += SystemClock.elapsedRealtimeNanos() - start;
+
+            start = SystemClock.elapsedRealtimeNanos();
+            for (String s : canonical)
+                Util.fingerprint64(s);
+            fingerprintTime += SystemClock.elapsedRealtimeNanos() - start;
+        }
+
+        Set<Long> fingerprints = new HashSet<>();
+        for (JSONObject rule : rules)
+            fingerprints.add(Util.fingerprint64(Util.toCanonicalJSON(rule)));
+
+        Log.i(LOG_TAG, "Legacy toString + SHA-1: " + legacyTime / ITERATIONS / 1000 + " us/" + RULE_COUNT + " rules");
+        Log.i(LOG_TAG, "Canonical JSON: " + canonicalTime / ITERATIONS / 1000 + " us/" + RULE_COUNT + " rules");
+        Log.i(LOG_TAG, "SHA-1 of canonical JSON: " + sha1Time / ITERATIONS / 1000 + " us/" + RULE_COUNT + " rules");
+        Log.i(LOG_TAG, "FNV-1a fingerprint: " + fingerprintTime / ITERATIONS / 1000 + " us/" + RULE_COUNT + " rules");
+
+        // rules differ by their name, so every fingerprint must be distinct
+        assertEquals(RULE_COUNT, fingerprints.size());
+    }
+}
@@ -0,0 +1,371 @@
+package edu.stanford.braincat.rulepedia.channels;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Created by gcampagn on 6/12/15.
+ * <p>
+ * A compact binary encoding of JSON values, used for the files we write
+ * ourselves (the rule database and the cached channel catalog).
+ * <p>
+ * The file starts with a magic and a version, then a table of every string
+ * in the document (keys and values alike), then the root value. Strings are
+ * referred to by their index in the table, so channel URLs and parameter
+ * names that repeat in every rule are stored, and decoded, once. Integers
+ * and lengths are varints.
+ * <p>
+ * Documents are read from a memory mapped file, and decoded on demand: the
+ * elements of a root array are decoded one at a time, and the strings when
+ * first used.
+ */
+public class BinaryJSON {
+    private static final byte[] MAGIC = new byte[]{'R', 'P', 'B', 'J'};
+    public static final int VERSION = 1;
+
+    private static final int TAG_NULL = 0;
+    private static final int TAG_FALSE = 1;
+    private static final int TAG_TRUE = 2;
+    private static final int TAG_INT = 3;
+    private static final int TAG_DOUBLE = 4;
+    private static final int TAG_STRING = 5;
+    private static final int TAG_ARRAY = 6;
+    private static final int TAG_OBJECT = 7;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static void writeVarint(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static void collectStrings(Object value, Map<String, Integer> strings) throws JSONException {
+        if (value instanceof String) {
+            if (!strings.containsKey(value))
+                strings.put((String) value, strings.size());
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            for (int i = 0; i < array.length(); i++)
+                collectStrings(array.get(i), strings);
+        } else if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            Iterator<String> keys = object.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                collectStrings(key, strings);
+                collectStrings(object.get(key), strings);
+            }
+        }
+    }
+
+    private static void writeValue(DataOutputStream out, Object value, Map<String, Integer> strings) throws IOException, JSONException {
+        if (value == null || value == JSONObject.NULL) {
+            out.write(TAG_NULL);
+        } else if (value instanceof Boolean) {
+            out.write((Boolean) value ? TAG_TRUE : TAG_FALSE);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            long l = ((Number) value).longValue();
+            out.write(TAG_INT);
+            // zigzag, so small negative numbers stay small
+            writeVarint(out, (l << 1) ^ (l >> 63));
+        } else if (value instanceof Number) {
+            out.write(TAG_DOUBLE);
+            out.writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof String) {
+            out.write(TAG_STRING);
+            writeVarint(out, strings.get(value));
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            out.write(TAG_ARRAY);
+            writeVarint(out, array.length());
+            for (int i = 0; i < array.length(); i++)
+                writeValue(out, array.get(i), strings);
+        } else if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            out.write(TAG_OBJECT);
+            writeVarint(out, object.length());
+            Iterator<String> keys = object.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                writeVarint(out, strings.get(key));
+                writeValue(out, object.get(key), strings);
+            }
+        } else {
+            throw new JSONException("cannot encode " + value.getClass().getName());
+        }
+    }
+
+    /**
+     * Encode a JSON value (usually a JSONArray or JSONObject) to the stream.
+     */
+    public static void write(OutputStream output, Object value) throws IOException, JSONException {
+        Map<String, Integer> strings = new LinkedHashMap<>();
+        collectStrings(value, strings);
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.write(MAGIC);
+        out.write(VERSION);
+        writeVarint(out, strings.size());
+        for (String s : strings.keySet()) {
+            byte[] bytes = s.getBytes(UTF8);
+            writeVarint(out, bytes.length);
+            out.write(bytes);
+        }
+        writeValue(out, value, strings);
+        out.flush();
+
+        buffer.writeTo(output);
+        output.flush();
+    }
+
+    /**
+     * Map a file and open it as a Document.
+     */
+    public static Document map(File file) throws IOException {
+        try (FileInputStream input = new FileInputStream(file)) {
+            FileChannel channel = input.getChannel();
+            // the mapping stays valid after the channel is closed
+            return new Document(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    public static class Document {
+        private final ByteBuffer buffer;
+        private final int[] stringOffsets;
+        private final String[] strings;
+        private final int rootOffset;
+        private int[] elementOffsets;
+        private int endOffset;
+
+        // a position in the buffer, so reads don't touch the buffer state
+        private static class Cursor {
+            private int pos;
+
+            private Cursor(int pos) {
+                this.pos = pos;
+            }
+        }
+
+        public Document(ByteBuffer buffer) throws IOException {
+            this.buffer = buffer;
+
+            try {
+                for (int i = 0; i < MAGIC.length; i++) {
+                    if (buffer.get(i) != MAGIC[i])
+                        throw new IOException("Not a binary JSON file");
+                }
+                int version = buffer.get(MAGIC.length);
+                if (version != VERSION)
+                    throw new IOException("Unsupported binary JSON version " + version);
+
+                Cursor cursor = new Cursor(MAGIC.length + 1);
+                int count = (int) readVarint(cursor);
+                stringOffsets = new int[count];
+                strings = new String[count];
+                for (int i = 0; i < count; i++) {
+                    stringOffsets[i] = cursor.pos;
+                    int length = (int) readVarint(cursor);
+                    cursor.pos += length;
+                }
+                rootOffset = cursor.pos;
+            } catch (IndexOutOfBoundsException e) {
+                throw new IOException("Truncated binary JSON file", e);
+            }
+        }
+
+        private long readVarint(Cursor cursor) {
+            long value = 0;
+            int shift = 0;
+            while (true) {
+                int b = buffer.get(cursor.pos++) & 0xFF;
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                    return value;
+                shift += 7;
+            }
+        }
+
+        private synchronized String getString(int index) {
+            String s = strings[index];
+            if (s == null) {
+                Cursor cursor = new Cursor(stringOffsets[index]);
+                int length = (int) readVarint(cursor);
+                byte[] bytes = new byte[length];
+                for (int i = 0; i < length; i++)
+                    bytes[i] = buffer.get(cursor.pos + i);
+                s = new String(bytes, UTF8);
+                strings[index] = s;
+            }
+            return s;
+        }
+
+        private Object readValue(Cursor cursor) throws JSONException {
+            int tag = buffer.get(cursor.pos++);
+            switch (tag) {
+                case TAG_NULL:
+                    return JSONObject.NULL;
+                case TAG_FALSE:
+                    return false;
+                case TAG_TRUE:
+                    return true;
+                case TAG_INT: {
+                    long zigzag = readVarint(cursor);
+                    long l = (zigzag >>> 1) ^ -(zigzag & 1);
+                    if (l >= Integer.MIN_VALUE && l <= Integer.MAX_VALUE)
+                        return (int) l;
+                    return l;
+                }
+                case TAG_DOUBLE: {
+                    double d = buffer.getDouble(cursor.pos);
+                    cursor.pos += 8;
+                    return d;
+                }
+                case TAG_STRING:
+                    return getString((int) readVarint(cursor));
+                case TAG_ARRAY: {
+                    int length = (int) readVarint(cursor);
+                    JSONArray array = new JSONArray();
+                    for (int i = 0; i < length; i++)
+                        array.put(readValue(cursor));
+                    return array;
+                }
+                case TAG_OBJECT: {
+                    int length = (int) readVarint(cursor);
+                    JSONObject object = new JSONObject();
+                    for (int i = 0; i < length; i++) {
+                        String key = getString((int) readVarint(cursor));
+                        object.put(key, readValue(cursor));
+                    }
+                    return object;
+                }
+                default:
+                    throw new JSONException("invalid tag " + tag);
+            }
+        }
+
+        private void skipValue(Cursor cursor) throws JSONException {
+            int tag = buffer.get(cursor.pos++);
+            switch (tag) {
+                case TAG_NULL:
+                case TAG_FALSE:
+                case TAG_TRUE:
+                    return;
+                case TAG_INT:
+                case TAG_STRING:
+                    readVarint(cursor);
+                    return;
+                case TAG_DOUBLE:
+                    cursor.pos += 8;
+                    return;
+                case TAG_ARRAY: {
+                    int length = (int) readVarint(cursor);
+                    for (int i = 0; i < length; i++)
+                        skipValue(cursor);
+                    return;
+                }
+                case TAG_OBJECT: {
+                    int length = (int) readVarint(cursor);
+                    for (int i = 0; i < length; i++) {
+                        readVarint(cursor);
+                        skipValue(cursor);
+                    }
+                    return;
+                }
+                default:
+                    throw new JSONException("invalid tag " + tag);
+            }
+        }
+
+        /**
+         * Decode the whole document.
+         */
+        public Object getRoot() throws JSONException {
+            try {
+                return readValue(new Cursor(rootOffset));
+            } catch (IndexOutOfBoundsException e) {
+                throw new JSONException("truncated binary JSON");
+            }
+        }
+
+        private synchronized int[] getElementOffsets() throws JSONException {
+            if (elementOffsets != null)
+                return elementOffsets;
+
+            try {
+                Cursor cursor = new Cursor(rootOffset);
+                if (buffer.get(cursor.pos++) != TAG_ARRAY)
+                    throw new JSONException("root is not an array");
+
+                int length = (int) readVarint(cursor);
+                List<Integer> offsets = new ArrayList<>(length);
+                for (int i = 0; i < length; i++) {
+                    offsets.add(cursor.pos);
+                    skipValue(cursor);
+                }
+
+                endOffset = cursor.pos;
+                elementOffsets = new int[length];
+                for (int i = 0; i < length; i++)
+                    elementOffsets[i] = offsets.get(i);
+                return elementOffsets;
+            } catch (IndexOutOfBoundsException e) {
+                throw new JSONException("truncated binary JSON");
+            }
+        }
+
+        /**
+         * The number of elements of the root array.
+         */
+        public int length() throws JSONException {
+            return getElementOffsets().length;
+        }
+
+        /**
+         * Decode one element of the root array.
+         */
+        public Object get(int index) throws JSONException {
+            try {
+                return readValue(new Cursor(getElementOffsets()[index]));
+            } catch (IndexOutOfBoundsException e) {
+                throw new JSONException("truncated binary JSON");
+            }
+        }
+
+        /**
+         * The encoded size of one element of the root array, not counting
+         * its strings.
+         */
+        public synchronized int getEncodedSize(int index) throws JSONException {
+            int[] offsets = getElementOffsets();
+            int end = index + 1 < offsets.length ? offsets[index + 1] : endOffset;
+            return end - offsets[index];
+        }
+
+        public JSONObject getJSONObject(int index) throws JSONException {
+            Object value = get(index);
+            if (!(value instanceof JSONObject))
+                throw new JSONException("element " + index + " is not an object");
+            return (JSONObject) value;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package edu.stanford.braincat.rulepedia.channels;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Map;
+import java.util.TreeMap;
+
+import edu.stanford.braincat.rulepedia.service.CircuitBreaker;
+import edu.stanford.braincat.rulepedia.service.RuleExecutorService;
+
+/**
+ * Created by gcampagn on 6/9/15.
+ * <p>
+ * One CircuitBreaker per remote host, shared by every poll and HTTP action
+ * that talks to it, so a dead server is only contacted by the occasional
+ * probe.
+ * <p>
+ * Only failures of the host count: a client error (4xx) is about the URL
+ * that was asked, and proves the host is up.
+ */
+public class EndpointBreakers {
+    private static final int FAILURE_THRESHOLD = 3;
+    private static final long BASE_BACKOFF = 15 * 1000;
+    private static final long MAX_BACKOFF = 15 * 60 * 1000;
+
+    private static final EndpointBreakers instance = new EndpointBreakers();
+
+    public static EndpointBreakers get() {
+        return instance;
+    }
+
+    private final Map<String, CircuitBreaker> breakers;
+
+    private EndpointBreakers() {
+        breakers = new TreeMap<>();
+    }
+
+    public synchronized CircuitBreaker getBreaker(URL url) {
+        String host = url.getHost();
+        CircuitBreaker breaker = breakers.get(host);
+        if (breaker == null) {
+            breaker = new CircuitBreaker(FAILURE_THRESHOLD, BASE_BACKOFF, MAX_BACKOFF);
+            breakers.put(host, breaker);
+        }
+        return breaker;
+    }
+
+    /**
+     * Throws if the host is known to be down and it is not time to probe it.
+     */
+    public void checkAllowed(URL url) throws IOException {
+        if (!getBreaker(url).allowRequest())
+            throw new IOException("Endpoint " + url.getHost() + " is down, not retrying yet");
+    }
+
+    public void recordSuccess(URL url) {
+        getBreaker(url).recordSuccess();
+    }
+
+    public void recordFailure(URL url) {
+        if (getBreaker(url).recordFailure())
+            Log.w(RuleExecutorService.LOG_TAG, "Endpoint " + url.getHost() + " is down: " + getBreaker(url));
+    }
+
+    /**
+     * Record a failed request on connection, unless the host answered it
+     * with a client error.
+     */
+    public void recordFailure(URL url, URLConnection connection) {
+        if (connection instanceof HttpURLConnection) {
+            int code;
+            try {
+                code = ((HttpURLConnection) connection).getResponseCode();
+            } catch (IOException e) {
+                // no response at all
+                code = -1;
+            }
+
+            // too many requests is about the host, not the URL
+            if (code >= 400 && code < 500 && code != 429) {
+                recordSuccess(url);
+                return;
+            }
+        }
+
+        recordFailure(url);
+    }
+
+    public synchronized void dump(PrintWriter writer) {
+        writer.println("Endpoints:");
+        for (Map.Entry<String, CircuitBreaker> e : breakers.entrySet())
+            writer.println("  " + e.getKey() + ": " + e.getValue());
+    }
+}
@@ -0,0 +1,54 @@
+package edu.stanford.braincat.rulepedia.channels;
+
+import android.content.Context;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+
+import edu.stanford.braincat.rulepedia.service.ActionOutbox;
+
+/**
+ * Created by gcampagn on 6/10/15.
+ * <p>
+ * Sends the HTTP requests queued in the ActionOutbox, batched by host.
+ * <p>
+ * Payloads have a "url", an optional "method" ("get" or "post") and an
+ * optional "data" to post.
+ */
+public class HTTPOutboxSender implements ActionOutbox.Sender {
+    public static JSONObject makePayload(String method, String url, String data) {
+        try {
+            JSONObject payload = new JSONObject();
+            payload.put("method", method);
+            payload.put("url", url);
+            if (data != null)
+                payload.put("data", data);
+            return payload;
+        } catch (JSONException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Override
+    public String getBatchKey(JSONObject payload) throws JSONException {
+        try {
+            return new URL(payload.getString("url")).getHost();
+        } catch (MalformedURLException e) {
+            throw new JSONException("invalid url " + payload.getString("url"));
+        }
+    }
+
+    @Override
+    public void send(Context ctx, JSONObject payload) throws IOException, JSONException {
+        String url = payload.getString("url");
+
+        if (payload.optString("method", "get").equals("post"))
+            HTTPUtil.postString(url, payload.has("data") ? payload.getString("data") : null);
+        else
+            HTTPUtil.getString(url);
+    }
+}
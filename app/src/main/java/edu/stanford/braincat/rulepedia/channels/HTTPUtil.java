@@ -16,9 +16,15 @@ public class HTTPUtil {
     public static String getString(String stringUrl) throws IOException {
         try {
             URL url = new URL(stringUrl);
+            EndpointBreakers.get().checkAllowed(url);
             HttpURLConnection connection = (HttpURLConnection) url.openConnection();
             try (InputStream in = connection.getInputStream()) {
-                return Util.readString(in);
+                String result = Util.readString(in);
+                EndpointBreakers.get().recordSuccess(url);
+                return result;
+            } catch (IOException e) {
+                EndpointBreakers.get().recordFailure(url, connection);
+                throw e;
             } finally {
                 connection.disconnect();
             }
@@ -34,9 +40,10 @@ public class HTTPUtil {
     public static String postString(String stringUrl, String data) throws IOException {
         try {
             URL url = new URL(stringUrl);
+            EndpointBreakers.get().checkAllowed(url);
             HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("POST");
             try {
+                connection.setRequestMethod("POST");
                 if (data != null) {
                     connection.setDoOutput(true);
                     try (OutputStream out = connection.getOutputStream()) {
@@ -44,8 +51,13 @@ public class HTTPUtil {
                     }
                 }
                 try (InputStream in = connection.getInputStream()) {
-                    return Util.readString(in);
+                    String result = Util.readString(in);
+                    EndpointBreakers.get().recordSuccess(url);
+                    return result;
                 }
+            } catch (IOException e) {
+                EndpointBreakers.get().recordFailure(url, connection);
+                throw e;
             } finally {
                 connection.disconnect();
             }
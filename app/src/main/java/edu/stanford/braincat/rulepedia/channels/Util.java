@@ -1,6 +1,7 @@
 package edu.stanford.braincat.rulepedia.channels;
 
 import android.util.Base64;
+import android.util.JsonReader;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -16,14 +17,21 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.zip.DataFormatException;
 
 /**
  * Created by gcampagn on 5/1/15.
  */
 public class Util {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
     public static String readString(InputStream input) throws IOException {
         BufferedReader reader = new BufferedReader(new InputStreamReader(input));
         StringBuilder builder = new StringBuilder();
@@ -45,6 +53,51 @@ public class Util {
         return new JSONTokener(readString(input));
     }
 
+    /**
+     * Read the next value of a streaming reader as a JSONObject, JSONArray
+     * or primitive, so that a large array can be processed one element at
+     * a time.
+     */
+    public static Object readJSONValue(JsonReader reader) throws IOException, JSONException {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT: {
+                JSONObject object = new JSONObject();
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    object.put(name, readJSONValue(reader));
+                }
+                reader.endObject();
+                return object;
+            }
+            case BEGIN_ARRAY: {
+                JSONArray array = new JSONArray();
+                reader.beginArray();
+                while (reader.hasNext())
+                    array.put(readJSONValue(reader));
+                reader.endArray();
+                return array;
+            }
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NULL:
+                reader.nextNull();
+                return JSONObject.NULL;
+            case NUMBER: {
+                String number = reader.nextString();
+                try {
+                    return Long.parseLong(number);
+                } catch (NumberFormatException e) {
+                    return Double.parseDouble(number);
+                }
+            }
+            case STRING:
+                return reader.nextString();
+            default:
+                throw new JSONException("unexpected " + reader.peek());
+        }
+    }
+
     public static void writeString(OutputStream output, String data) throws IOException {
         BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(output));
         writer.write(data);
@@ -55,16 +108,101 @@ public class Util {
         writeString(output, array.toString());
     }
 
+    private static void writeCanonicalJSON(StringBuilder builder, Object value) throws JSONException {
+        if (value == null || value == JSONObject.NULL) {
+            builder.append("null");
+        } else if (value instanceof String) {
+            builder.append(JSONObject.quote((String) value));
+        } else if (value instanceof Number) {
+            // 3, 3L and 3.0 are the same number
+            double d = ((Number) value).doubleValue();
+            if (d == Math.rint(d) && !Double.isInfinite(d) && Math.abs(d) < 1L << 53)
+                builder.append((long) d);
+            else
+                builder.append(JSONObject.numberToString((Number) value));
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            builder.append('[');
+            for (int i = 0; i < array.length(); i++) {
+                if (i > 0)
+                    builder.append(',');
+                writeCanonicalJSON(builder, array.get(i));
+            }
+            builder.append(']');
+        } else if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            List<String> keys = new ArrayList<>();
+            Iterator<String> it = object.keys();
+            while (it.hasNext())
+                keys.add(it.next());
+            Collections.sort(keys);
+
+            builder.append('{');
+            for (int i = 0; i < keys.size(); i++) {
+                if (i > 0)
+                    builder.append(',');
+                builder.append(JSONObject.quote(keys.get(i)));
+                builder.append(':');
+                writeCanonicalJSON(builder, object.get(keys.get(i)));
+            }
+            builder.append('}');
+        } else {
+            // booleans
+            builder.append(value.toString());
+        }
+    }
+
+    /**
+     * Serialize a JSON value in a canonical form: object keys sorted, no
+     * whitespace, integral numbers without a fraction. Equal values give
+     * equal strings, whatever the order they were built in.
+     */
+    public static String toCanonicalJSON(Object value) throws JSONException {
+        StringBuilder builder = new StringBuilder();
+        writeCanonicalJSON(builder, value);
+        return builder.toString();
+    }
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    public static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            chars[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * The SHA-1 of the UTF-8 encoding of the string, in lowercase hex.
+     */
     public static String toSHA1(String string) {
         try {
             MessageDigest md = MessageDigest.getInstance("SHA-1");
-            // FIXME
-            return new String(md.digest(string.getBytes()));
+            return toHex(md.digest(string.getBytes(UTF8)));
         } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException(e);
         }
     }
 
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * A 64 bit FNV-1a hash of the UTF-16 chars of the string. Much cheaper
+     * than toSHA1(), but only good to tell strings apart in memory, not to
+     * name things on disk or across devices.
+     */
+    public static long fingerprint64(String string) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < string.length(); i++) {
+            hash ^= string.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
     public static JSONObject parseEncodedRule(String encoded) throws DataFormatException, IOException, UnsupportedEncodingException, JSONException {
         /*ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
         InflaterOutputStream stream = new InflaterOutputStream(byteStream);
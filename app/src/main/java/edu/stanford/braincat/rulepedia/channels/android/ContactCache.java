@@ -0,0 +1,209 @@
+package edu.stanford.braincat.rulepedia.channels.android;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.os.Handler;
+import android.provider.ContactsContract;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import edu.stanford.braincat.rulepedia.exceptions.UnknownObjectException;
+import edu.stanford.braincat.rulepedia.model.Contact;
+import edu.stanford.braincat.rulepedia.model.ContactPool;
+import edu.stanford.braincat.rulepedia.service.CacheRegistry;
+import edu.stanford.braincat.rulepedia.service.LruManagedCache;
+import edu.stanford.braincat.rulepedia.service.RuleExecutorService;
+
+/**
+ * Created by gcampagn on 6/2/15.
+ * <p>
+ * In-memory cache of the phone numbers of content provider contacts, keyed
+ * by contact URI.
+ * <p>
+ * Contacts that are known at rule enable time are pinned and warmed up
+ * eagerly, so that firing a rule never has to go to the contacts provider.
+ * Pinned contacts are kept out of the LRU, so neither the LRU nor memory
+ * pressure can evict them.
+ * A ContentObserver on the contacts provider drops the cache and reloads
+ * the pinned contacts whenever the address book changes.
+ */
+public class ContactCache {
+    private static final int MAX_ENTRIES = 64;
+    // a URL and a phone number
+    private static final int ENTRY_BYTES = 256;
+
+    private static final ContactCache instance = new ContactCache();
+
+    public static ContactCache get() {
+        return instance;
+    }
+
+    private static class Entry {
+        // null if the contact has no phone number
+        private final String phoneNumber;
+
+        private Entry(@Nullable String phoneNumber) {
+            this.phoneNumber = phoneNumber;
+        }
+    }
+
+    private class ContactsObserver extends ContentObserver {
+        private ContactsObserver(Handler handler) {
+            super(handler);
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            invalidate();
+        }
+    }
+
+    private final LruCache<String, Entry> entries;
+    private final Map<String, Integer> pinned;
+    // the entries of pinned contacts, never trimmed
+    private final Map<String, Entry> pinnedEntries;
+    private Context context;
+    private ContactsObserver observer;
+    private int observerRefCount;
+    // bumped by invalidate(), so lookups that started before it don't
+    // put their stale result back in the cache
+    private int generation;
+
+    private ContactCache() {
+        entries = new LruCache<>(MAX_ENTRIES);
+        pinned = new HashMap<>();
+        pinnedEntries = new HashMap<>();
+        observerRefCount = 0;
+        generation = 0;
+
+        // only unpinned contacts, which are cheap to look up again but slow
+        CacheRegistry.get().register("contacts", new LruManagedCache(entries, ENTRY_BYTES), CacheRegistry.COST_HIGH);
+    }
+
+    /**
+     * Start watching the contacts provider for changes.
+     * <p>
+     * Calls are reference counted, each must be matched by a call to unregister().
+     */
+    public synchronized void register(Context ctx, Handler handler) {
+        if (observerRefCount++ > 0)
+            return;
+
+        context = ctx.getApplicationContext();
+        observer = new ContactsObserver(handler);
+        context.getContentResolver().registerContentObserver(ContactsContract.Contacts.CONTENT_URI, true, observer);
+    }
+
+    public synchronized void unregister() {
+        if (observerRefCount == 0)
+            throw new IllegalStateException("contact cache observer was not registered");
+        if (--observerRefCount > 0)
+            return;
+
+        context.getContentResolver().unregisterContentObserver(observer);
+        observer = null;
+        context = null;
+        generation++;
+        entries.evictAll();
+        pinnedEntries.clear();
+    }
+
+    /**
+     * Resolve the contact now and keep it resolved across invalidations,
+     * until the matching unpin().
+     */
+    public void pin(Context ctx, ContentProviderContact contact) {
+        String url = contact.getUrl();
+
+        synchronized (this) {
+            Integer count = pinned.get(url);
+            pinned.put(url, count == null ? 1 : count + 1);
+
+            Entry entry = entries.remove(url);
+            if (entry != null)
+                pinnedEntries.put(url, entry);
+        }
+
+        try {
+            getPhoneNumber(ctx, contact);
+        } catch (UnknownObjectException e) {
+            Log.w(RuleExecutorService.LOG_TAG, "Failed to warm up contact " + url, e);
+        }
+    }
+
+    public synchronized void unpin(ContentProviderContact contact) {
+        String url = contact.getUrl();
+
+        Integer count = pinned.get(url);
+        if (count == null)
+            return;
+        if (count > 1) {
+            pinned.put(url, count - 1);
+            return;
+        }
+
+        pinned.remove(url);
+        Entry entry = pinnedEntries.remove(url);
+        if (entry != null)
+            entries.put(url, entry);
+    }
+
+    @Nullable
+    public String getPhoneNumber(Context ctx, ContentProviderContact contact) throws UnknownObjectException {
+        int startGeneration;
+
+        String url = contact.getUrl();
+
+        synchronized (this) {
+            Entry entry = pinnedEntries.get(url);
+            if (entry == null)
+                entry = entries.get(url);
+            if (entry != null)
+                return entry.phoneNumber;
+            startGeneration = generation;
+        }
+
+        // query outside the lock, the provider can be slow
+        String phoneNumber = contact.queryPhoneNumber(ctx);
+
+        synchronized (this) {
+            if (generation == startGeneration) {
+                if (pinned.containsKey(url))
+                    pinnedEntries.put(url, new Entry(phoneNumber));
+                else
+                    entries.put(url, new Entry(phoneNumber));
+            }
+        }
+        return phoneNumber;
+    }
+
+    private void invalidate() {
+        Context ctx;
+        String[] toReload;
+
+        synchronized (this) {
+            generation++;
+            entries.evictAll();
+            pinnedEntries.clear();
+            ctx = context;
+            toReload = pinned.keySet().toArray(new String[pinned.size()]);
+        }
+        if (ctx == null)
+            return;
+
+        for (String url : toReload) {
+            try {
+                Contact contact = ContactPool.get().getObject(url);
+                if (contact instanceof ContentProviderContact)
+                    getPhoneNumber(ctx, (ContentProviderContact) contact);
+            } catch (UnknownObjectException e) {
+                // the contact was deleted, the rule will fail when it fires
+                Log.i(RuleExecutorService.LOG_TAG, "Pinned contact " + url + " disappeared");
+            }
+        }
+    }
+}
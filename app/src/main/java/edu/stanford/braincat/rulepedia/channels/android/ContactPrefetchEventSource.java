@@ -0,0 +1,55 @@
+package edu.stanford.braincat.rulepedia.channels.android;
+
+import android.content.Context;
+
+import java.io.IOException;
+
+import edu.stanford.braincat.rulepedia.events.EventSource;
+import edu.stanford.braincat.rulepedia.events.EventSourceHandler;
+
+/**
+ * Created by gcampagn on 6/2/15.
+ * <p>
+ * A fake event source that never reports anything, used by actions to
+ * warm up the ContactCache when their rule is enabled.
+ */
+public class ContactPrefetchEventSource implements EventSource {
+    private final ContentProviderContact contact;
+    private boolean installed;
+
+    public ContactPrefetchEventSource(ContentProviderContact contact) {
+        this.contact = contact;
+        installed = false;
+    }
+
+    @Override
+    public void install(Context ctx, EventSourceHandler handler) throws IOException {
+        if (installed)
+            throw new IllegalStateException("double install");
+        installed = true;
+
+        ContactCache cache = ContactCache.get();
+        cache.register(ctx, handler);
+        cache.pin(ctx, contact);
+    }
+
+    @Override
+    public void uninstall(Context ctx) throws IOException {
+        if (!installed)
+            throw new IllegalStateException("double uninstall");
+        installed = false;
+
+        ContactCache cache = ContactCache.get();
+        cache.unpin(contact);
+        cache.unregister();
+    }
+
+    @Override
+    public boolean checkEvent() {
+        return false;
+    }
+
+    @Override
+    public void updateState() {
+    }
+}
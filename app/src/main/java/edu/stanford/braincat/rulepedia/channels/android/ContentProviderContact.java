@@ -18,6 +18,10 @@ public class ContentProviderContact extends Contact {
     }
 
     public String getPhoneNumber(Context ctx) throws UnknownObjectException {
+        return ContactCache.get().getPhoneNumber(ctx, this);
+    }
+
+    String queryPhoneNumber(Context ctx) throws UnknownObjectException {
         ContentResolver resolver = ctx.getContentResolver();
 
         try (Cursor contactCursor = resolver.query(Uri.parse(getUrl()),
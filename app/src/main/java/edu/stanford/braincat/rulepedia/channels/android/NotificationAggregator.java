@@ -0,0 +1,129 @@
+package edu.stanford.braincat.rulepedia.channels.android;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.stanford.braincat.rulepedia.R;
+
+/**
+ * Created by gcampagn on 6/11/15.
+ * <p>
+ * Batches the notifications posted by rules.
+ * <p>
+ * Notifications are grouped by a stable id chosen by the caller (one per
+ * action, so in practice one per rule). Whatever is posted for an id within
+ * BATCH_WINDOW ms, which covers one dispatch pass, is shown as a single
+ * notification, using InboxStyle if there is more than one. The same id is
+ * not reposted more often than every MIN_POST_INTERVAL ms; what comes in
+ * meanwhile joins the next batch. A batch that stays empty for that long
+ * is forgotten.
+ */
+public class NotificationAggregator {
+    private static final String TAG = "rulepedia.rule";
+    private static final long BATCH_WINDOW = 300;
+    private static final long MIN_POST_INTERVAL = 2000;
+    private static final int MAX_LINES = 5;
+
+    private static final NotificationAggregator instance = new NotificationAggregator();
+
+    public static NotificationAggregator get() {
+        return instance;
+    }
+
+    private static class Batch {
+        private final List<String> titles = new ArrayList<>();
+        private final List<String> texts = new ArrayList<>();
+        private long lastPost;
+        private boolean scheduled;
+    }
+
+    private final Handler handler;
+    private final Map<Integer, Batch> batches;
+
+    private NotificationAggregator() {
+        handler = new Handler(Looper.getMainLooper());
+        batches = new HashMap<>();
+    }
+
+    public synchronized void post(Context ctx, final int id, String title, String text) {
+        Batch batch = batches.get(id);
+        if (batch == null) {
+            batch = new Batch();
+            batches.put(id, batch);
+        }
+
+        batch.titles.add(title);
+        batch.texts.add(text);
+        if (batch.scheduled)
+            return;
+
+        long now = SystemClock.uptimeMillis();
+        long postTime = Math.max(now + BATCH_WINDOW, batch.lastPost + MIN_POST_INTERVAL);
+        final Context appContext = ctx.getApplicationContext();
+        batch.scheduled = true;
+        handler.postAtTime(new Runnable() {
+            @Override
+            public void run() {
+                flush(appContext, id);
+            }
+        }, postTime);
+    }
+
+    private void flush(Context ctx, final int id) {
+        Notification notification;
+
+        synchronized (this) {
+            Batch batch = batches.get(id);
+            int count = batch.titles.size();
+            String lastTitle = batch.titles.get(count - 1);
+            String lastText = batch.texts.get(count - 1);
+
+            Notification.Builder builder = new Notification.Builder(ctx)
+                    .setSmallIcon(R.drawable.ic_stat_name)
+                    .setContentTitle(lastTitle)
+                    .setContentText(lastText);
+
+            if (count > 1) {
+                Notification.InboxStyle style = new Notification.InboxStyle();
+                for (int i = Math.max(0, count - MAX_LINES); i < count; i++)
+                    style.addLine(batch.titles.get(i) + ": " + batch.texts.get(i));
+                if (count > MAX_LINES)
+                    style.setSummaryText("+" + (count - MAX_LINES) + " more");
+                builder.setStyle(style).setNumber(count);
+            }
+            notification = builder.build();
+
+            batch.titles.clear();
+            batch.texts.clear();
+            batch.scheduled = false;
+            batch.lastPost = SystemClock.uptimeMillis();
+        }
+
+        NotificationManager manager = (NotificationManager) ctx.getSystemService(Context.NOTIFICATION_SERVICE);
+        manager.notify(TAG, id, notification);
+
+        handler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                expire(id);
+            }
+        }, MIN_POST_INTERVAL);
+    }
+
+    private synchronized void expire(int id) {
+        Batch batch = batches.get(id);
+        // a later post throttled by lastPost is past the interval by now
+        if (batch != null && !batch.scheduled && batch.titles.isEmpty()
+                && SystemClock.uptimeMillis() - batch.lastPost >= MIN_POST_INTERVAL)
+            batches.remove(id);
+    }
+}
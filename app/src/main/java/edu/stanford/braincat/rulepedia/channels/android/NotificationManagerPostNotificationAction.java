@@ -1,7 +1,5 @@
 package edu.stanford.braincat.rulepedia.channels.android;
 
-import android.app.Notification;
-import android.app.NotificationManager;
 import android.content.Context;
 
 import org.json.JSONArray;
@@ -13,7 +11,6 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.Map;
 
-import edu.stanford.braincat.rulepedia.R;
 import edu.stanford.braincat.rulepedia.events.EventSource;
 import edu.stanford.braincat.rulepedia.exceptions.RuleExecutionException;
 import edu.stanford.braincat.rulepedia.exceptions.TriggerValueTypeException;
@@ -21,15 +18,17 @@ import edu.stanford.braincat.rulepedia.exceptions.UnknownObjectException;
 import edu.stanford.braincat.rulepedia.model.Action;
 import edu.stanford.braincat.rulepedia.model.Channel;
 import edu.stanford.braincat.rulepedia.model.ObjectPool;
+import edu.stanford.braincat.rulepedia.model.RuleBoundAction;
 import edu.stanford.braincat.rulepedia.model.Value;
 
 /**
  * Created by gcampagn on 5/9/15.
  */
-public class NotificationManagerPostNotificationAction implements Action {
+public class NotificationManagerPostNotificationAction implements RuleBoundAction {
     private volatile Channel channel;
     private final Value title;
     private final Value text;
+    private volatile Integer notificationId;
 
     public NotificationManagerPostNotificationAction(Channel channel, Value title, Value text) {
         this.channel = channel;
@@ -56,6 +55,12 @@ public class NotificationManagerPostNotificationAction implements Action {
         return result;
     }
 
+    @Override
+    public void bindToRule(String ruleId, int position) {
+        // stable across restarts, and distinct for the actions of different rules
+        notificationId = (ruleId + "/" + position).hashCode();
+    }
+
     @Override
     public void resolve() throws UnknownObjectException {
         Channel newChannel = channel.resolve();
@@ -75,13 +80,19 @@ public class NotificationManagerPostNotificationAction implements Action {
         Value.Text resolvedTitle = (Value.Text) title.resolve(context);
         Value.Text resolvedText = (Value.Text) text.resolve(context);
 
-        Notification notification = new Notification.Builder(ctx)
-                .setSmallIcon(R.drawable.ic_stat_name)
-                .setContentTitle(resolvedTitle.getText())
-                .setContentText(resolvedText.getText())
-                .build();
-        NotificationManager manager = (NotificationManager) ctx.getSystemService(Context.NOTIFICATION_SERVICE);
-        manager.notify(0, notification);
+        NotificationAggregator.get().post(ctx, getNotificationId(), resolvedTitle.getText(), resolvedText.getText());
+    }
+
+    private int getNotificationId() throws RuleExecutionException {
+        // not part of a rule, use what it shows
+        if (notificationId == null) {
+            try {
+                notificationId = toJSON().toString().hashCode();
+            } catch (JSONException e) {
+                throw new RuleExecutionException("Failed to compute notification id", e);
+            }
+        }
+        return notificationId;
     }
 
     @Override
@@ -6,39 +6,132 @@ import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.provider.Telephony;
 import android.telephony.SmsMessage;
+import android.util.Base64;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
 
 import java.io.IOException;
-import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Queue;
+import java.util.List;
 
+import edu.stanford.braincat.rulepedia.events.EventFilter;
+import edu.stanford.braincat.rulepedia.events.EventQueue;
 import edu.stanford.braincat.rulepedia.events.EventSource;
 import edu.stanford.braincat.rulepedia.events.EventSourceHandler;
+import edu.stanford.braincat.rulepedia.events.FilterSet;
 import edu.stanford.braincat.rulepedia.events.IntentEventSource;
+import edu.stanford.braincat.rulepedia.events.SharedCheckpointable;
 
 /**
  * Created by gcampagn on 5/1/15.
+ * <p>
+ * Messages not yet seen by the rules are checkpointed as PDUs, including
+ * those still in the received broadcasts.
+ * <p>
+ * Triggers register filters on the messages, and a broadcast none of
+ * whose messages pass them is dropped as it is received.
  */
-public class SMSEventSource implements EventSource {
+public class SMSEventSource implements EventSource, SharedCheckpointable {
+    // enough for a burst of multipart messages, the broadcasts queue up behind
+    // it, and a single broadcast larger than this is still taken whole
+    private static final int MESSAGE_QUEUE_CAPACITY = 32;
+
     private boolean installed;
     private final IntentEventSource intentSource;
-    private final Queue<SmsMessage> messageQueue;
+    private final EventQueue<SmsMessage> messageQueue;
+    private final FilterSet<SmsMessage> filters;
 
     public SMSEventSource() {
-        intentSource = new IntentEventSource(new IntentFilter(Telephony.Sms.Intents.SMS_RECEIVED_ACTION));
-        messageQueue = new ArrayDeque<>();
+        // broadcasts that don't fit wait in the source, none is dropped
+        intentSource = new IntentEventSource(new IntentFilter(Telephony.Sms.Intents.SMS_RECEIVED_ACTION),
+                EventQueue.DEFAULT_CAPACITY, EventQueue.OverflowPolicy.BLOCK);
+        messageQueue = new EventQueue<>(MESSAGE_QUEUE_CAPACITY, EventQueue.OverflowPolicy.BLOCK);
+        filters = new FilterSet<>();
         installed = false;
+
+        intentSource.setEventFilter(new EventFilter<Intent>() {
+            @Override
+            public boolean accept(Intent intent) {
+                for (SmsMessage m : Telephony.Sms.Intents.getMessagesFromIntent(intent)) {
+                    if (filters.accept(m))
+                        return true;
+                }
+                return false;
+            }
+        });
+    }
+
+    public void addFilter(EventFilter<SmsMessage> filter) {
+        filters.add(filter);
+    }
+
+    public void removeFilter(EventFilter<SmsMessage> filter) {
+        filters.remove(filter);
     }
 
     public SmsMessage getLastMessage() {
-        if (messageQueue.isEmpty())
-            parseReceivedIntent();
+        parseReceivedIntents();
         return messageQueue.element();
     }
 
-    private void parseReceivedIntent() {
-        Intent intent = intentSource.getLastIntent();
-        messageQueue.addAll(Arrays.asList(Telephony.Sms.Intents.getMessagesFromIntent(intent)));
+    private void parseReceivedIntents() {
+        while (intentSource.checkEvent()) {
+            SmsMessage[] messages = Telephony.Sms.Intents.getMessagesFromIntent(intentSource.getLastIntent());
+
+            // keep all parts of a broadcast together, and leave it in the intent
+            // queue until there is room for all of them
+            if (!messageQueue.offerAll(Arrays.asList(messages)))
+                return;
+            intentSource.updateState();
+        }
+    }
+
+    @Override
+    public String getCheckpointKey() {
+        return "sms";
+    }
+
+    @Override
+    public long getStateVersion() {
+        // both only grow
+        return messageQueue.getVersion() + intentSource.getStateVersion();
+    }
+
+    @Override
+    public JSONObject saveState() throws JSONException {
+        List<SmsMessage> messages = new ArrayList<>(messageQueue.snapshot());
+        for (Intent intent : intentSource.getPendingIntents()) {
+            for (SmsMessage m : Telephony.Sms.Intents.getMessagesFromIntent(intent))
+                messages.add(m);
+        }
+        if (messages.isEmpty())
+            return null;
+
+        JSONArray pdus = new JSONArray();
+        for (SmsMessage m : messages)
+            pdus.put(Base64.encodeToString(m.getPdu(), Base64.NO_WRAP));
+
+        JSONObject state = new JSONObject();
+        state.put("pdus", pdus);
+        return state;
+    }
+
+    @Override
+    public void restoreState(JSONObject state) throws JSONException {
+        messageQueue.clear();
+
+        JSONArray pdus = state.getJSONArray("pdus");
+        List<SmsMessage> messages = new ArrayList<>();
+        for (int i = 0; i < pdus.length(); i++) {
+            SmsMessage m = SmsMessage.createFromPdu(Base64.decode(pdus.getString(i), Base64.NO_WRAP));
+            if (m != null)
+                messages.add(m);
+        }
+        // the queue is empty, so it takes everything that was saved
+        messageQueue.offerAll(messages);
     }
 
     @Override
@@ -54,17 +147,17 @@ public class SMSEventSource implements EventSource {
         if (installed)
             intentSource.uninstall(ctx);
         installed = false;
+        messageQueue.clear();
     }
 
     @Override
     public boolean checkEvent() {
-        return !messageQueue.isEmpty() || intentSource.checkEvent();
+        parseReceivedIntents();
+        return !messageQueue.isEmpty();
     }
 
     @Override
     public void updateState() {
         messageQueue.poll();
-        if (messageQueue.isEmpty())
-            intentSource.updateState();
     }
 }
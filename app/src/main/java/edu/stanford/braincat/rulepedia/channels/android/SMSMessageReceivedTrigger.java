@@ -14,24 +14,37 @@ import java.util.Map;
 
 import edu.stanford.braincat.rulepedia.channels.SimpleEventTrigger;
 import edu.stanford.braincat.rulepedia.channels.interfaces.Messaging;
+import edu.stanford.braincat.rulepedia.events.EventFilter;
 import edu.stanford.braincat.rulepedia.exceptions.RuleExecutionException;
 import edu.stanford.braincat.rulepedia.exceptions.TriggerValueTypeException;
 import edu.stanford.braincat.rulepedia.exceptions.UnknownObjectException;
 import edu.stanford.braincat.rulepedia.model.Channel;
 import edu.stanford.braincat.rulepedia.model.Contact;
 import edu.stanford.braincat.rulepedia.model.ContactPool;
+import edu.stanford.braincat.rulepedia.model.FilteringTrigger;
 import edu.stanford.braincat.rulepedia.model.ObjectPool;
 import edu.stanford.braincat.rulepedia.model.Trigger;
 import edu.stanford.braincat.rulepedia.model.Value;
 
 /**
  * Created by gcampagn on 5/1/15.
+ * <p>
+ * The content and sender conditions are also registered with the event
+ * source, which drops the messages no trigger wants before queuing them.
  */
-public class SMSMessageReceivedTrigger extends SimpleEventTrigger<SMSEventSource> {
+public class SMSMessageReceivedTrigger extends SimpleEventTrigger<SMSEventSource> implements FilteringTrigger {
     private volatile Channel channel;
     private SmsMessage receivedMessage;
     private final String contentContains;
     private volatile Contact senderMatches;
+    private SMSEventSource filteredSource;
+
+    private final EventFilter<SmsMessage> filter = new EventFilter<SmsMessage>() {
+        @Override
+        public boolean accept(SmsMessage message) {
+            return matches(message);
+        }
+    };
 
     public SMSMessageReceivedTrigger(Channel channel, @Nullable Value contentContains, @Nullable Value senderMatches) throws TriggerValueTypeException, UnknownObjectException {
         this.channel = channel;
@@ -63,6 +76,40 @@ public class SMSMessageReceivedTrigger extends SimpleEventTrigger<SMSEventSource
         return result;
     }
 
+    private boolean matches(SmsMessage message) {
+        if (contentContains != null) {
+            String body = message.getDisplayMessageBody();
+            if (body == null || !body.contains(contentContains))
+                return false;
+        }
+
+        Contact currentSenderMatches = senderMatches;
+        if (currentSenderMatches != null) {
+            try {
+                Contact sender = ContactPool.get().getObject("sms:" + message.getOriginatingAddress());
+                return sender.equals(currentSenderMatches);
+            } catch (UnknownObjectException e) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public void registerFilters() {
+        unregisterFilters();
+        filteredSource = getSource();
+        filteredSource.addFilter(filter);
+    }
+
+    @Override
+    public void unregisterFilters() {
+        if (filteredSource != null)
+            filteredSource.removeFilter(filter);
+        filteredSource = null;
+    }
+
     @Override
     public void update() {
         if (!getSource().checkEvent()) {
@@ -73,23 +120,9 @@ public class SMSMessageReceivedTrigger extends SimpleEventTrigger<SMSEventSource
         receivedMessage = getSource().getLastMessage();
         assert receivedMessage != null;
 
-        if (contentContains != null) {
-            if (!receivedMessage.getDisplayMessageBody().contains(contentContains)) {
-                receivedMessage = null;
-                return;
-            }
-        }
-
-        if (senderMatches != null) {
-            try {
-                Contact sender = ContactPool.get().getObject("sms:" + receivedMessage.getOriginatingAddress());
-                if (!sender.equals(senderMatches)) {
-                    receivedMessage = null;
-                }
-            } catch (UnknownObjectException e) {
-                receivedMessage = null;
-            }
-        }
+        // the source also keeps messages other triggers want
+        if (!matches(receivedMessage))
+            receivedMessage = null;
     }
 
     @Override
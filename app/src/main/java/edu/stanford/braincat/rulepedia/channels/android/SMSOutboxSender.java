@@ -0,0 +1,114 @@
+package edu.stanford.braincat.rulepedia.channels.android;
+
+import android.app.Activity;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.telephony.SmsManager;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import edu.stanford.braincat.rulepedia.service.ActionOutbox;
+import edu.stanford.braincat.rulepedia.service.RuleExecutorService;
+
+/**
+ * Created by gcampagn on 6/10/15.
+ * <p>
+ * Sends the text messages queued in the ActionOutbox. Payloads have the
+ * phone number in "to" and the text in "message".
+ * <p>
+ * send() waits for the sent report of the radio, so a message that could
+ * not go out for lack of service is retried by the outbox. If no report
+ * comes within SENT_TIMEOUT ms the message is assumed sent, because sending
+ * it twice is worse than not retrying.
+ */
+public class SMSOutboxSender implements ActionOutbox.Sender {
+    private static final String ACTION_SMS_SENT = "edu.stanford.braincat.rulepedia.SMS_SENT";
+    private static final String EXTRA_SEQUENCE = "sequence";
+    private static final long SENT_TIMEOUT = 60 * 1000;
+
+    // only touched on the outbox thread
+    private int nextSequence;
+
+    public static JSONObject makePayload(String phoneNumber, String message) {
+        try {
+            JSONObject payload = new JSONObject();
+            payload.put("to", phoneNumber);
+            payload.put("message", message);
+            return payload;
+        } catch (JSONException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Override
+    public String getBatchKey(JSONObject payload) {
+        // all go through the same radio
+        return "sms";
+    }
+
+    @Override
+    public void send(Context ctx, JSONObject payload) throws IOException, JSONException {
+        final int sequence = nextSequence++;
+        final CountDownLatch reported = new CountDownLatch(1);
+        final int[] resultCode = new int[1];
+
+        BroadcastReceiver receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                // a late report for a message that timed out
+                if (intent.getIntExtra(EXTRA_SEQUENCE, -1) != sequence)
+                    return;
+
+                resultCode[0] = getResultCode();
+                reported.countDown();
+            }
+        };
+
+        Intent intent = new Intent(ACTION_SMS_SENT);
+        intent.putExtra(EXTRA_SEQUENCE, sequence);
+        PendingIntent sentIntent = PendingIntent.getBroadcast(ctx, sequence, intent, PendingIntent.FLAG_ONE_SHOT);
+
+        // reports are received on the main thread, this one waits for them
+        ctx.registerReceiver(receiver, new IntentFilter(ACTION_SMS_SENT));
+        try {
+            SmsManager smsManager = SmsManager.getDefault();
+            smsManager.sendTextMessage(payload.getString("to"), null, payload.getString("message"), sentIntent, null);
+
+            boolean done;
+            try {
+                done = reported.await(SENT_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                done = false;
+            }
+            if (!done) {
+                Log.w(RuleExecutorService.LOG_TAG, "No sent report for text message, assuming it was sent");
+                return;
+            }
+        } finally {
+            ctx.unregisterReceiver(receiver);
+        }
+
+        switch (resultCode[0]) {
+            case Activity.RESULT_OK:
+                return;
+
+            case SmsManager.RESULT_ERROR_RADIO_OFF:
+            case SmsManager.RESULT_ERROR_NO_SERVICE:
+            case SmsManager.RESULT_ERROR_GENERIC_FAILURE:
+                throw new IOException("Failed to send text message, error " + resultCode[0]);
+
+            default:
+                throw new IllegalArgumentException("Text message rejected by the radio, error " + resultCode[0]);
+        }
+    }
+}
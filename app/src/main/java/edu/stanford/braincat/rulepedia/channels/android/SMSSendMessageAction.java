@@ -1,31 +1,53 @@
 package edu.stanford.braincat.rulepedia.channels.android;
 
 import android.content.Context;
-import android.telephony.SmsManager;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 
 import edu.stanford.braincat.rulepedia.channels.interfaces.SendMessageAction;
 import edu.stanford.braincat.rulepedia.events.EventSource;
+import edu.stanford.braincat.rulepedia.exceptions.TriggerValueTypeException;
 import edu.stanford.braincat.rulepedia.exceptions.UnknownObjectException;
 import edu.stanford.braincat.rulepedia.model.Channel;
 import edu.stanford.braincat.rulepedia.model.Contact;
 import edu.stanford.braincat.rulepedia.model.Value;
+import edu.stanford.braincat.rulepedia.service.ActionOutbox;
 
 /**
  * Created by gcampagn on 5/1/15.
  */
 public class SMSSendMessageAction extends SendMessageAction {
+    private ContactPrefetchEventSource prefetchSource;
 
     public SMSSendMessageAction(Channel channel, Value destination, Value message) {
         super(channel, destination, message);
     }
 
     @Override
-    protected void sendMessage(Context ctx, Contact contact, String message) throws UnknownObjectException {
-        SmsManager smsManager = SmsManager.getDefault();
+    public Collection<EventSource> getEventSources() {
+        if (prefetchSource == null) {
+            // if the destination is known now (and not a trigger value), resolve
+            // it when the rule is enabled rather than when it fires
+            try {
+                Value resolved = getDestination().resolve(null);
+                if (resolved instanceof Value.DirectObject &&
+                        ((Value.DirectObject) resolved).getObject() instanceof ContentProviderContact)
+                    prefetchSource = new ContactPrefetchEventSource((ContentProviderContact) ((Value.DirectObject) resolved).getObject());
+            } catch (TriggerValueTypeException | UnknownObjectException e) {
+                // nothing to prefetch
+            }
+        }
+
+        if (prefetchSource != null)
+            return Arrays.asList(new EventSource[]{prefetchSource});
+        else
+            return Collections.emptySet();
+    }
 
+    @Override
+    protected void sendMessage(Context ctx, Contact contact, String message) throws UnknownObjectException {
         String phoneNumber;
         if (contact instanceof SMSContact)
             phoneNumber = ((SMSContact) contact).getAddress();
@@ -34,7 +56,8 @@ public class SMSSendMessageAction extends SendMessageAction {
         else
             throw new UnknownObjectException(contact.getUrl());
 
-        smsManager.sendTextMessage(phoneNumber, null, message, null, null);
+        // resolved now, sent (and retried) by the outbox
+        ActionOutbox.get().enqueue(ctx, ActionOutbox.TYPE_SMS, SMSOutboxSender.makePayload(phoneNumber, message));
     }
 
     @Override
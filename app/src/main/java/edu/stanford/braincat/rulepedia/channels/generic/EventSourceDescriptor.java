@@ -0,0 +1,129 @@
+package edu.stanford.braincat.rulepedia.channels.generic;
+
+import android.content.IntentFilter;
+import android.support.annotation.Nullable;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.net.MalformedURLException;
+import java.util.Map;
+
+import edu.stanford.braincat.rulepedia.events.EventSource;
+import edu.stanford.braincat.rulepedia.events.IntentEventSource;
+import edu.stanford.braincat.rulepedia.events.TimeoutEventSource;
+import edu.stanford.braincat.rulepedia.exceptions.TriggerValueTypeException;
+import edu.stanford.braincat.rulepedia.exceptions.UnknownObjectException;
+import edu.stanford.braincat.rulepedia.model.Channel;
+import edu.stanford.braincat.rulepedia.model.Value;
+
+/**
+ * Created by gcampagn on 6/13/15.
+ * <p>
+ * An event source spec from the channel catalog, parsed once.
+ */
+final class EventSourceDescriptor {
+    enum Kind {
+        POLLING, POLLING_HTTP, BROADCAST_RECEIVER, SSE, OMLET
+    }
+
+    // a number in the catalog, either a constant or the name of a parameter
+    private static final class NumberSpec {
+        private final Number constant;
+        private final String param;
+
+        private NumberSpec(Object json) throws JSONException {
+            if (json instanceof Number) {
+                constant = (Number) json;
+                param = null;
+            } else if (json instanceof String) {
+                String s = (String) json;
+                constant = null;
+                param = s.startsWith("{{") ? s.substring(2, s.length() - 2) : s;
+            } else {
+                throw new JSONException("invalid number value");
+            }
+        }
+
+        private Number get(@Nullable Map<String, Value> params) throws TriggerValueTypeException, UnknownObjectException {
+            if (constant != null)
+                return constant;
+            if (params == null || !params.containsKey(param))
+                throw new TriggerValueTypeException("missing number parameter " + param);
+            return ((Value.Number) params.get(param).resolve(null)).getNumber();
+        }
+    }
+
+    private final String id;
+    private final Kind kind;
+    private final NumberSpec pollingInterval;
+    private final TextTemplate url;
+    private final TextTemplate intentAction;
+    private final TextTemplate intentCategory;
+
+    EventSourceDescriptor(JSONObject json) throws JSONException {
+        id = json.getString("id");
+
+        switch (json.getString("type")) {
+            case "polling":
+                kind = Kind.POLLING;
+                break;
+            case "polling-http":
+                kind = Kind.POLLING_HTTP;
+                break;
+            case "broadcast-receiver":
+                kind = Kind.BROADCAST_RECEIVER;
+                break;
+            case "sse":
+                kind = Kind.SSE;
+                break;
+            case "omlet":
+                kind = Kind.OMLET;
+                break;
+            default:
+                throw new JSONException("invalid event source type");
+        }
+
+        pollingInterval = json.has("polling-interval") ? new NumberSpec(json.get("polling-interval")) : null;
+        url = json.has("url") ? TextTemplate.parse(json.getString("url")) : null;
+        intentAction = json.has("intent-action") ? TextTemplate.parse(json.getString("intent-action")) : null;
+        intentCategory = json.has("intent-category") ? TextTemplate.parse(json.getString("intent-category")) : null;
+
+        if ((kind == Kind.POLLING || kind == Kind.POLLING_HTTP) && pollingInterval == null)
+            throw new JSONException("missing polling-interval");
+        if (kind == Kind.BROADCAST_RECEIVER && intentAction == null)
+            throw new JSONException("missing intent-action");
+    }
+
+    String getId() {
+        return id;
+    }
+
+    EventSource create(Channel channel, @Nullable Map<String, Value> params)
+            throws MalformedURLException, TriggerValueTypeException, UnknownObjectException {
+        switch (kind) {
+            case POLLING:
+                return new TimeoutEventSource(pollingInterval.get(params).longValue());
+            case POLLING_HTTP: {
+                String sourceUrl = url != null ? url.expand(channel.getUrl(), params) : channel.getUrl();
+                return new WebPollingEventSource(sourceUrl, pollingInterval.get(params).longValue());
+            }
+            case BROADCAST_RECEIVER: {
+                IntentFilter filter = new IntentFilter(intentAction.expand(channel.getUrl(), params));
+                IntentEventSource source = new IntentEventSource(filter);
+                if (intentCategory != null) {
+                    String category = intentCategory.expand(channel.getUrl(), params);
+                    filter.addCategory(category);
+                    // the IntentFilter alone also matches intents without categories
+                    source.setEventFilter(IntentEventSource.hasCategory(category));
+                }
+                return source;
+            }
+            case SSE:
+                throw new UnsupportedOperationException("Server Sent Events are not yet implemented");
+            case OMLET:
+            default:
+                throw new UnsupportedOperationException("Omlet based event sources are not yet implemented");
+        }
+    }
+}
@@ -17,6 +17,7 @@ import java.util.Map;
 
 import edu.stanford.braincat.rulepedia.events.EventSource;
 import edu.stanford.braincat.rulepedia.exceptions.RuleExecutionException;
+import edu.stanford.braincat.rulepedia.exceptions.ScriptBudgetException;
 import edu.stanford.braincat.rulepedia.exceptions.TriggerValueTypeException;
 import edu.stanford.braincat.rulepedia.exceptions.UnknownChannelException;
 import edu.stanford.braincat.rulepedia.exceptions.UnknownObjectException;
@@ -120,8 +121,10 @@ public class GenericAction implements Action {
         try {
             NativeObject jsParameters = JSUtil.parametersToJavascript(resolved);
             ScriptableObject.putProperty(jsParameters, "url", getChannel().getUrl());
-            result = (ScriptableObject) ((GenericChannel) channel).callFunction(script, thisArg,
+            result = (ScriptableObject) ((GenericChannel) channel).callFunction(id, script, thisArg,
                     jsParameters);
+        } catch (ScriptBudgetException e) {
+            throw e;
         } catch (Exception e) {
             throw new RuleExecutionException("Exception while evaluating action script", e);
         }
@@ -3,7 +3,6 @@ package edu.stanford.braincat.rulepedia.channels.generic;
 import android.util.ArrayMap;
 
 import org.json.JSONException;
-import org.mozilla.javascript.Context;
 import org.mozilla.javascript.Function;
 import org.mozilla.javascript.Scriptable;
 
@@ -14,36 +13,52 @@ import java.util.HashMap;
 import java.util.Map;
 
 import edu.stanford.braincat.rulepedia.events.EventSource;
+import edu.stanford.braincat.rulepedia.exceptions.ScriptBudgetException;
 import edu.stanford.braincat.rulepedia.exceptions.TriggerValueTypeException;
 import edu.stanford.braincat.rulepedia.exceptions.UnknownObjectException;
 import edu.stanford.braincat.rulepedia.model.Channel;
 
 /**
  * Created by gcampagn on 5/8/15.
+ * <p>
+ * The global scope of the channel scripts is shared by all the rules using
+ * the channel, and triggers can be evaluated concurrently on worker
+ * threads, so it is sealed. Each call gets a scope of its own on top of it
+ * (see ScriptContextFactory), where implicit globals go and are forgotten
+ * after the call. Scripts keep their state on "this", which is private to
+ * each trigger or action.
  */
 public class GenericChannel extends Channel {
     private final String text;
-    private final Context ctx;
+    private final ScriptBudget budget;
     private final Scriptable global;
 
     private final Map<String, WeakReference<EventSource>> eventSourceRefs;
 
-    public GenericChannel(GenericChannelFactory factory, String url, String text) {
+    public GenericChannel(GenericChannelFactory factory, String url, String text, ScriptBudget budget) {
         super(factory, url);
         this.text = text;
+        this.budget = budget;
         this.eventSourceRefs = new HashMap<>();
-        this.ctx = Context.enter();
-        ctx.setOptimizationLevel(-1);
-        this.global = ctx.initSafeStandardObjects();
+        this.global = ScriptContextFactory.get().initSharedScope();
         // FIXME auth
     }
 
+    public ScriptBudget getScriptBudget() {
+        return budget;
+    }
+
     public Function compileFunction(String body) {
-        return ctx.compileFunction(global, body, "channels.json", 1, null);
+        return ScriptContextFactory.get().compileFunction(global, body, "channels.json");
     }
 
-    public Object callFunction(Function function, Scriptable thisArg, Object... args) {
-        return function.call(ctx, global, thisArg, args);
+    /**
+     * Call a function of this channel within the channel's script budget.
+     * The method is used to account the cost of the script.
+     */
+    public Object callFunction(String method, Function function, Scriptable thisArg, Object... args) throws ScriptBudgetException {
+        return ScriptContextFactory.get().call(getFactory().getName() + "." + method, budget,
+                function, global, thisArg, args);
     }
 
     public Map<String, EventSource> getEventSources() throws
@@ -2,26 +2,22 @@ package edu.stanford.braincat.rulepedia.channels.generic;
 
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
-import android.support.annotation.Nullable;
 import android.util.ArrayMap;
+import android.util.Log;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.mozilla.javascript.ScriptableObject;
 
-import java.io.IOException;
 import java.net.MalformedURLException;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.regex.Pattern;
 
-import edu.stanford.braincat.rulepedia.channels.HTTPUtil;
+import edu.stanford.braincat.rulepedia.channels.HTTPOutboxSender;
 import edu.stanford.braincat.rulepedia.events.EventSource;
-import edu.stanford.braincat.rulepedia.events.IntentEventSource;
-import edu.stanford.braincat.rulepedia.events.TimeoutEventSource;
 import edu.stanford.braincat.rulepedia.exceptions.RuleExecutionException;
 import edu.stanford.braincat.rulepedia.exceptions.TriggerValueTypeException;
 import edu.stanford.braincat.rulepedia.exceptions.UnknownChannelException;
@@ -29,51 +25,75 @@ import edu.stanford.braincat.rulepedia.exceptions.UnknownObjectException;
 import edu.stanford.braincat.rulepedia.model.Action;
 import edu.stanford.braincat.rulepedia.model.Channel;
 import edu.stanford.braincat.rulepedia.model.ChannelFactory;
+import edu.stanford.braincat.rulepedia.model.ChannelPool;
 import edu.stanford.braincat.rulepedia.model.PlaceholderChannel;
 import edu.stanford.braincat.rulepedia.model.Trigger;
 import edu.stanford.braincat.rulepedia.model.Value;
+import edu.stanford.braincat.rulepedia.service.ActionOutbox;
 
 /**
  * Created by gcampagn on 5/8/15.
+ * <p>
+ * The catalog entry is compiled into MethodDescriptors and
+ * EventSourceDescriptors when the factory is created, and every lookup is
+ * served from those.
  */
 public class GenericChannelFactory extends ChannelFactory {
-    private final JSONObject jsonFactory;
     private final String id;
+    private final String description;
+    private final String text;
     private final Pattern pattern;
+    private final ScriptBudget budget;
 
-    private final Map<String, JSONObject> eventSourceMetas;
-    private final Map<String, JSONObject> triggerMetas;
-    private final Map<String, JSONObject> actionMetas;
+    private final Map<String, EventSourceDescriptor> eventSources;
+    private final Map<String, MethodDescriptor> triggers;
+    private final Map<String, MethodDescriptor> actions;
 
     public GenericChannelFactory(JSONObject jsonObjectFactory) throws JSONException {
         super(jsonObjectFactory.has("urlPrefix") ? jsonObjectFactory.getString("urlPrefix") : jsonObjectFactory.getString("objectId"));
-        jsonFactory = jsonObjectFactory;
         id = jsonObjectFactory.getString("id");
+        description = jsonObjectFactory.optString("description", null);
+        text = jsonObjectFactory.optString("text", "a generic channel");
         if (jsonObjectFactory.has("urlRegex"))
             pattern = Pattern.compile(jsonObjectFactory.getString("urlRegex"));
         else
             pattern = null;
+        budget = ScriptBudget.fromJSON(jsonObjectFactory);
 
-        eventSourceMetas = new HashMap<>();
-        JSONArray jsonEventSources = jsonFactory.getJSONArray("event-sources");
+        // compile the catalog entry once, the JSON is not kept around
+        eventSources = new HashMap<>();
+        JSONArray jsonEventSources = jsonObjectFactory.getJSONArray("event-sources");
         for (int i = 0; i < jsonEventSources.length(); i++) {
-            JSONObject jsonEventSource = jsonEventSources.getJSONObject(i);
-            eventSourceMetas.put(jsonEventSource.getString("id"), jsonEventSource);
+            try {
+                EventSourceDescriptor eventSource = new EventSourceDescriptor(jsonEventSources.getJSONObject(i));
+                eventSources.put(eventSource.getId(), eventSource);
+            } catch (JSONException e) {
+                Log.w(ChannelPool.LOG_TAG, "Ignoring invalid event source in channel " + id, e);
+            }
         }
 
-        triggerMetas = new HashMap<>();
-        JSONArray jsonTriggers = jsonFactory.getJSONArray("events");
-        for (int i = 0; i < jsonTriggers.length(); i++) {
-            JSONObject jsonTrigger = jsonTriggers.getJSONObject(i);
-            triggerMetas.put(jsonTrigger.getString("id"), jsonTrigger);
-        }
+        triggers = compileMethods(jsonObjectFactory.getJSONArray("events"));
+        actions = compileMethods(jsonObjectFactory.getJSONArray("methods"));
+    }
 
-        actionMetas = new HashMap<>();
-        JSONArray jsonActions = jsonFactory.getJSONArray("methods");
-        for (int i = 0; i < jsonActions.length(); i++) {
-            JSONObject jsonAction = jsonActions.getJSONObject(i);
-            actionMetas.put(jsonAction.getString("id"), jsonAction);
+    private Map<String, MethodDescriptor> compileMethods(JSONArray jsonMethods) throws JSONException {
+        Map<String, MethodDescriptor> methods = new HashMap<>();
+
+        for (int i = 0; i < jsonMethods.length(); i++) {
+            try {
+                MethodDescriptor method = new MethodDescriptor(jsonMethods.getJSONObject(i));
+                methods.put(method.getId(), method);
+            } catch (JSONException | TriggerValueTypeException e) {
+                Log.w(ChannelPool.LOG_TAG, "Ignoring invalid method in channel " + id, e);
+            }
         }
+
+        return methods;
+    }
+
+    @Override
+    public Pattern getUrlPattern() {
+        return pattern;
     }
 
     @Override
@@ -86,23 +106,13 @@ public class GenericChannelFactory extends ChannelFactory {
                 throw new UnknownObjectException(url);
         }
 
-        try {
-            return new GenericChannel(this, url, jsonFactory.getString("description"));
-        } catch (JSONException e) {
+        if (description == null)
             throw new UnknownObjectException(url);
-        }
+        return new GenericChannel(this, url, description, budget);
     }
 
     @Override
     public Channel createPlaceholder(String url) {
-        String text;
-
-        try {
-            text = jsonFactory.getString("text");
-        } catch (JSONException e) {
-            text = "a generic channel";
-        }
-
         return new PlaceholderChannel(this, url, text);
     }
 
@@ -111,222 +121,78 @@ public class GenericChannelFactory extends ChannelFactory {
         return id;
     }
 
-    private static Class<? extends Value> classForTypeName(String paramtype) throws TriggerValueTypeException {
-        switch (paramtype) {
-            case Value.Text.ID:
-            case "textarea":
-                return Value.Text.class;
-            case "time":
-            case Value.Number.ID:
-                return Value.Number.class;
-            case Value.Select.ID:
-                return Value.Select.class;
-            case Value.Picture.ID:
-                return Value.Picture.class;
-            case Value.Contact.ID:
-            case "message-destination":
-                return Value.Contact.class;
-            default:
-                throw new TriggerValueTypeException("invalid type " + paramtype);
-        }
-    }
-
-    private static void updateGeneratesTypeFor(JSONArray generates, Map<String, Class<? extends Value>> context) throws JSONException, TriggerValueTypeException {
-        for (int i = 0; i < generates.length(); i++) {
-            JSONObject generatespec = generates.getJSONObject(i);
-            String paramtype = generatespec.getString("type");
-            context.put(generatespec.getString("id"), classForTypeName(paramtype));
-        }
-    }
-
-    public void updateGeneratesType(String method, Map<String, Class<? extends Value>> context) throws UnknownChannelException {
-        try {
-            JSONObject jsonTrigger = triggerMetas.get(method);
-            if (jsonTrigger != null) {
-                updateGeneratesTypeFor(jsonTrigger.getJSONArray("params"), context);
-                return;
-            }
-
-            JSONObject jsonAction = actionMetas.get(method);
-            if (jsonAction != null) {
-                updateGeneratesTypeFor(jsonAction.getJSONArray("params"), context);
-                return;
-            }
-
-            throw new UnknownChannelException(method);
-        } catch (JSONException | TriggerValueTypeException e) {
+    private MethodDescriptor getMethod(String method) throws UnknownChannelException {
+        MethodDescriptor descriptor = triggers.get(method);
+        if (descriptor == null)
+            descriptor = actions.get(method);
+        if (descriptor == null)
             throw new UnknownChannelException(method);
-        }
+        return descriptor;
     }
 
-    private static void typeCheckParametersFor(JSONArray jsonParams,  Map<String, Value> params, Map<String, Class<? extends Value>> context)
-            throws JSONException, TriggerValueTypeException {
-        for (Map.Entry<String, Value> e : params.entrySet()) {
-            e.getValue().typeCheck(context, findParamType(jsonParams, e.getKey()));
-        }
+    public void updateGeneratesType(String method, Map<String, Class<? extends Value>> context) throws UnknownChannelException {
+        context.putAll(getMethod(method).getParamTypes());
     }
 
     public void typeCheckParameters(String method, Map<String, Value> params, Map<String, Class<? extends Value>> context) throws UnknownChannelException, TriggerValueTypeException {
-        try {
-            JSONObject jsonTrigger = triggerMetas.get(method);
-            if (jsonTrigger != null) {
-                typeCheckParametersFor(jsonTrigger.getJSONArray("params"), params, context);
-                return;
-            }
+        MethodDescriptor descriptor = getMethod(method);
 
-            JSONObject jsonAction = actionMetas.get(method);
-            if (jsonAction != null) {
-                typeCheckParametersFor(jsonAction.getJSONArray("params"), params, context);
-                return;
-            }
-
-            throw new UnknownChannelException(method);
-        } catch (JSONException e) {
-            throw new UnknownChannelException(method);
-        }
-
-    }
-
-    private static Class<? extends Value> findParamType(JSONArray jsonParams, String name) throws JSONException, TriggerValueTypeException {
-        for (int i = 0; i < jsonParams.length(); i++) {
-            JSONObject paramspec = jsonParams.getJSONObject(i);
-            if (!paramspec.get("id").equals(name))
-                continue;
-            return classForTypeName(paramspec.getString("type"));
-        }
-
-        throw new TriggerValueTypeException("invalid param " + name);
+        for (Map.Entry<String, Value> e : params.entrySet())
+            e.getValue().typeCheck(context, descriptor.getParamType(e.getKey()));
     }
 
     @Override
     public Class<? extends Value> getParamType(String method, String name) throws UnknownChannelException, TriggerValueTypeException {
-        try {
-            JSONObject jsonTrigger = triggerMetas.get(method);
-            if (jsonTrigger != null)
-                return findParamType(jsonTrigger.getJSONArray("params"), name);
-
-            JSONObject jsonAction = actionMetas.get(method);
-            if (jsonAction != null)
-                return findParamType(jsonAction.getJSONArray("params"), name);
-
-            throw new UnknownChannelException(method);
-        } catch (JSONException e) {
-            throw new UnknownChannelException(method);
-        }
+        return getMethod(method).getParamType(name);
     }
 
-    private Map<String, EventSource> buildPrivateEventSources(JSONObject triggerMeta, Channel channel, Map<String, Value> params) throws
-            JSONException, MalformedURLException, UnknownObjectException, TriggerValueTypeException {
-        JSONArray eventSources = triggerMeta.getJSONArray("event-sources");
+    private static Map<String, EventSource> buildPrivateEventSources(MethodDescriptor trigger, Channel channel, Map<String, Value> params) throws
+            MalformedURLException, UnknownObjectException, TriggerValueTypeException {
         Map<String, EventSource> result = new ArrayMap<>();
 
-        for (int i = 0; i < eventSources.length(); i++) {
-            JSONObject jsonSource = eventSources.getJSONObject(i);
-            result.put(jsonSource.getString("id"), createEventSource(channel, jsonSource, params));
-        }
+        for (EventSourceDescriptor source : trigger.getEventSources())
+            result.put(source.getId(), source.create(channel, params));
 
         return result;
     }
 
     @Override
     public Trigger createTrigger(Channel channel, String method, Map<String, Value> params) throws UnknownObjectException, UnknownChannelException, TriggerValueTypeException {
-        JSONObject triggerMeta = triggerMetas.get(method);
+        MethodDescriptor trigger = triggers.get(method);
 
-        if (triggerMeta == null)
+        if (trigger == null)
             throw new UnknownChannelException(method);
 
         try {
-            return new GenericTrigger(channel, triggerMeta.getString("id"), triggerMeta.getString("text"),
-                    triggerMeta.getString("script"), buildPrivateEventSources(triggerMeta, channel, params), params);
-        } catch (JSONException | MalformedURLException e) {
-
+            return new GenericTrigger(channel, trigger.getId(), trigger.getText(),
+                    trigger.getScript(), buildPrivateEventSources(trigger, channel, params), params);
+        } catch (MalformedURLException e) {
             throw new UnknownChannelException(method);
         }
     }
 
     @Override
     public Action createAction(Channel channel, String method, Map<String, Value> params) throws UnknownObjectException, UnknownChannelException, TriggerValueTypeException {
-        JSONObject actionMeta = actionMetas.get(method);
+        MethodDescriptor action = actions.get(method);
 
-        if (actionMeta == null)
+        if (action == null)
             throw new UnknownChannelException(method);
 
-        try {
-            return new GenericAction(channel, actionMeta.getString("id"), actionMeta.getString("text"),
-                    actionMeta.getString("script"), params);
-        } catch (JSONException e) {
-            throw new UnknownChannelException(method);
-        }
+        return new GenericAction(channel, action.getId(), action.getText(), action.getScript(), params);
     }
 
     public Collection<String> getEventSourceNames() {
-        return eventSourceMetas.keySet();
-    }
-
-    private static Number parseNumber(Object object, @Nullable Map<String, Value> params) throws JSONException, TriggerValueTypeException, UnknownObjectException {
-        if (object instanceof Number)
-            return (Number) object;
-        else if (object instanceof String && params != null) {
-            if (((String)object).startsWith("{{"))
-                return ((Value.Number) params.get(((String) object).substring(2, ((String) object).length()-2)).resolve(null)).getNumber();
-            else
-                return ((Value.Number) params.get(object).resolve(null)).getNumber();
-        } else
-            throw new JSONException("invalid number value");
-    }
-
-    private static String parseText(String str, String url, @Nullable Map<String, Value> params) throws TriggerValueTypeException, UnknownObjectException {
-        String replace = "{{url}}";
-        if (str.contains(replace))
-            str = str.replace(replace, url);
-
-        if (params == null)
-            return str;
-
-        for (Map.Entry<String, Value> e : params.entrySet()) {
-            replace = "{{" + e.getKey() + "}}";
-            if (str.contains(replace))
-                str = str.replace(replace, e.getValue().resolve(null).toString());
-        }
-
-        return str;
-    }
-
-    private static EventSource createEventSource(Channel channel, JSONObject eventSourceMeta, @Nullable Map<String, Value> params) throws
-            MalformedURLException, JSONException, TriggerValueTypeException, UnknownObjectException {
-        switch (eventSourceMeta.getString("type")) {
-            case "polling":
-                return new TimeoutEventSource(parseNumber(eventSourceMeta.get("polling-interval"), params).longValue());
-            case "polling-http": {
-                String url;
-                if (eventSourceMeta.has("url"))
-                    url = parseText(eventSourceMeta.getString("url"), channel.getUrl(), params);
-                else
-                    url = channel.getUrl();
-                return new WebPollingEventSource(url, parseNumber(eventSourceMeta.get("polling-interval"), params).longValue());
-            }
-            case "broadcast-receiver":
-                IntentFilter filter = new IntentFilter(parseText(eventSourceMeta.getString("intent-action"), channel.getUrl(), params));
-                if (eventSourceMeta.has("intent-category"))
-                    filter.addCategory(parseText(eventSourceMeta.getString("intent-category"), channel.getUrl(), params));
-                return new IntentEventSource(filter);
-            case "sse":
-                throw new UnsupportedOperationException("Server Sent Events are not yet implemented");
-            case "omlet":
-                throw new UnsupportedOperationException("Omlet based event sources are not yet implemented");
-            default:
-                throw new JSONException("invalid event source type");
-        }
+        return eventSources.keySet();
     }
 
     public EventSource createEventSource(Channel channel, String id)
             throws MalformedURLException, JSONException, TriggerValueTypeException, UnknownObjectException {
-        JSONObject eventSourceMeta = eventSourceMetas.get(id);
+        EventSourceDescriptor eventSource = eventSources.get(id);
 
-        if (eventSourceMeta == null)
+        if (eventSource == null)
             throw new JSONException("no event source with id " + id);
 
-        return createEventSource(channel, eventSourceMeta, null);
+        return eventSource.create(channel, null);
     }
 
     private static RuleRunnable parseHTTPActionResult(ScriptableObject result) {
@@ -346,14 +212,8 @@ public class GenericChannelFactory extends ChannelFactory {
         return new RuleRunnable() {
             @Override
             public void run(Context ctx) throws RuleExecutionException {
-                try {
-                    if (method.equals("post"))
-                        HTTPUtil.postString(url, data);
-                    else
-                        HTTPUtil.getString(url);
-                } catch(IOException e) {
-                    throw new RuleExecutionException("Failed to execute HTTP action", e);
-                }
+                // sent (and retried) by the outbox
+                ActionOutbox.get().enqueue(ctx, ActionOutbox.TYPE_HTTP, HTTPOutboxSender.makePayload(method, url, data));
             }
         };
     }
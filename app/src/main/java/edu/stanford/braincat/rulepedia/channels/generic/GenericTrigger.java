@@ -14,24 +14,32 @@ import java.io.IOException;
 import java.net.MalformedURLException;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
 
 import edu.stanford.braincat.rulepedia.channels.Util;
+import edu.stanford.braincat.rulepedia.events.Checkpointable;
 import edu.stanford.braincat.rulepedia.events.EventSource;
 import edu.stanford.braincat.rulepedia.events.IntentEventSource;
 import edu.stanford.braincat.rulepedia.exceptions.RuleExecutionException;
+import edu.stanford.braincat.rulepedia.exceptions.ScriptBudgetException;
 import edu.stanford.braincat.rulepedia.exceptions.TriggerValueTypeException;
 import edu.stanford.braincat.rulepedia.exceptions.UnknownChannelException;
 import edu.stanford.braincat.rulepedia.exceptions.UnknownObjectException;
 import edu.stanford.braincat.rulepedia.model.Channel;
+import edu.stanford.braincat.rulepedia.model.IsolatedTrigger;
 import edu.stanford.braincat.rulepedia.model.ObjectPool;
 import edu.stanford.braincat.rulepedia.model.Trigger;
 import edu.stanford.braincat.rulepedia.model.Value;
 
 /**
  * Created by gcampagn on 5/15/15.
+ * <p>
+ * The checkpoint keeps the values produced by the last evaluation and the
+ * properties of the script's this object that are strings, numbers or
+ * booleans, which is where scripts remember what they saw last.
  */
-public class GenericTrigger implements Trigger {
+public class GenericTrigger implements IsolatedTrigger, Checkpointable {
     private final String id;
     private final String text;
     private final Map<String, EventSource> eventSources;
@@ -126,15 +134,92 @@ public class GenericTrigger implements Trigger {
             cachedJSParameters = JSUtil.parametersToJavascript(parameters);
         try {
             NativeObject jsProducedCtx = new NativeObject();
-            Boolean result = (Boolean) ((GenericChannel) channel).callFunction(script, thisArg,
+            Boolean result = (Boolean) ((GenericChannel) channel).callFunction(id, script, thisArg,
                     cachedJSParameters, eventSourceValues, jsProducedCtx);
             produced = JSUtil.javascriptToParameters(jsProducedCtx);
             return result;
+        } catch (ScriptBudgetException e) {
+            throw e;
         } catch (Exception e) {
             throw new RuleExecutionException("Exception while evaluating trigger script", e);
         }
     }
 
+    private static boolean isCheckpointable(Object value) {
+        if (value instanceof Number) {
+            double d = ((Number) value).doubleValue();
+            return !Double.isNaN(d) && !Double.isInfinite(d);
+        }
+        return value instanceof String || value instanceof Boolean;
+    }
+
+    @Override
+    public String getCheckpointKey() {
+        return id;
+    }
+
+    @Override
+    public long getStateVersion() {
+        // scripts change their this object behind our back
+        return NO_VERSION;
+    }
+
+    @Override
+    public JSONObject saveState() throws JSONException {
+        JSONObject state = new JSONObject();
+
+        if (thisArg != null) {
+            JSONObject jsonThis = new JSONObject();
+            for (Object propId : thisArg.getIds()) {
+                if (!(propId instanceof String))
+                    continue;
+                Object value = ScriptableObject.getProperty(thisArg, (String) propId);
+                if (isCheckpointable(value))
+                    jsonThis.put((String) propId, value);
+            }
+            if (jsonThis.length() > 0)
+                state.put("this", jsonThis);
+        }
+
+        if (produced != null && !produced.isEmpty()) {
+            JSONObject jsonProduced = new JSONObject();
+            for (Map.Entry<String, Value> e : produced.entrySet()) {
+                Object value = JSUtil.valueToJavascript(e.getValue());
+                if (isCheckpointable(value))
+                    jsonProduced.put(e.getKey(), value);
+            }
+            state.put("produced", jsonProduced);
+        }
+
+        return state.length() > 0 ? state : null;
+    }
+
+    @Override
+    public void restoreState(JSONObject state) throws JSONException {
+        if (thisArg == null)
+            throw new IllegalStateException("trigger must be resolved before restoring");
+
+        JSONObject jsonThis = state.optJSONObject("this");
+        if (jsonThis != null) {
+            Iterator<String> keys = jsonThis.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                ScriptableObject.putProperty(thisArg, key, jsonThis.get(key));
+            }
+        }
+
+        JSONObject jsonProduced = state.optJSONObject("produced");
+        if (jsonProduced != null) {
+            Map<String, Value> newProduced = new ArrayMap<>();
+            Iterator<String> keys = jsonProduced.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                newProduced.put(key, JSUtil.javascriptToValue(jsonProduced.get(key)));
+            }
+            produced = newProduced;
+        }
+    }
+
     @Override
     public String toHumanString() {
         return text;
@@ -0,0 +1,180 @@
+package edu.stanford.braincat.rulepedia.channels.generic;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.lang.ref.SoftReference;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import edu.stanford.braincat.rulepedia.channels.BinaryJSON;
+import edu.stanford.braincat.rulepedia.exceptions.TriggerValueTypeException;
+import edu.stanford.braincat.rulepedia.exceptions.UnknownChannelException;
+import edu.stanford.braincat.rulepedia.exceptions.UnknownObjectException;
+import edu.stanford.braincat.rulepedia.model.Action;
+import edu.stanford.braincat.rulepedia.model.Channel;
+import edu.stanford.braincat.rulepedia.model.ChannelFactory;
+import edu.stanford.braincat.rulepedia.model.ChannelPool;
+import edu.stanford.braincat.rulepedia.model.PlaceholderChannel;
+import edu.stanford.braincat.rulepedia.model.Trigger;
+import edu.stanford.braincat.rulepedia.model.Value;
+
+/**
+ * Created by gcampagn on 6/15/15.
+ * <p>
+ * A stub for a channel of the catalog, which only knows what the ChannelPool
+ * needs to route URLs (id, prefix and regex).
+ * <p>
+ * The GenericChannelFactory is built from the catalog the first time it is
+ * needed. It is only softly referenced from here, so it can be reclaimed
+ * under memory pressure once no channel created by it is alive, and it is
+ * rebuilt on the next use.
+ */
+public class LazyChannelFactory extends ChannelFactory {
+    private final String id;
+    private final Pattern pattern;
+    // where to find the full entry: a mapped catalog, or the JSON itself
+    private final BinaryJSON.Document catalog;
+    private final int index;
+    private final JSONObject json;
+
+    private SoftReference<GenericChannelFactory> factoryRef;
+    private long hits;
+    private long misses;
+
+    private LazyChannelFactory(JSONObject jsonFactory, BinaryJSON.Document catalog, int index) throws JSONException {
+        super(jsonFactory.has("urlPrefix") ? jsonFactory.getString("urlPrefix") : jsonFactory.getString("objectId"));
+        id = jsonFactory.getString("id");
+        pattern = jsonFactory.has("urlRegex") ? Pattern.compile(jsonFactory.getString("urlRegex")) : null;
+        this.catalog = catalog;
+        this.index = index;
+        json = catalog == null ? jsonFactory : null;
+        factoryRef = new SoftReference<>(null);
+    }
+
+    /**
+     * A stub for an entry of a mapped catalog, the entry is decoded again
+     * when the factory is needed.
+     */
+    public static LazyChannelFactory fromCatalog(BinaryJSON.Document catalog, int index) throws JSONException {
+        return new LazyChannelFactory(catalog.getJSONObject(index), catalog, index);
+    }
+
+    /**
+     * A stub for a catalog entry that is only available as JSON, which is
+     * kept.
+     */
+    public static LazyChannelFactory fromJSON(JSONObject jsonFactory) throws JSONException {
+        return new LazyChannelFactory(jsonFactory, null, -1);
+    }
+
+    public synchronized boolean isResident() {
+        return factoryRef.get() != null;
+    }
+
+    /**
+     * Returns the size of the entry in the mapped catalog, or 0 if the stub
+     * was built from JSON.
+     */
+    public synchronized int getEncodedSize() {
+        if (catalog == null)
+            return 0;
+
+        try {
+            return catalog.getEncodedSize(index);
+        } catch (JSONException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Drop the reference to the factory, it stays alive as long as the
+     * channels it created.
+     */
+    public synchronized void trimMemory() {
+        factoryRef.clear();
+    }
+
+    public synchronized GenericChannelFactory getFactory() throws JSONException {
+        GenericChannelFactory factory = factoryRef.get();
+        if (factory != null) {
+            hits++;
+            return factory;
+        }
+        misses++;
+
+        factory = new GenericChannelFactory(catalog != null ? catalog.getJSONObject(index) : json);
+        factoryRef = new SoftReference<>(factory);
+        Log.d(ChannelPool.LOG_TAG, "Loaded channel factory " + id);
+        return factory;
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    @Override
+    public Pattern getUrlPattern() {
+        return pattern;
+    }
+
+    @Override
+    public String getName() {
+        return id;
+    }
+
+    @Override
+    public Channel create(String url) throws UnknownObjectException {
+        try {
+            return getFactory().create(url);
+        } catch (JSONException e) {
+            Log.w(ChannelPool.LOG_TAG, "Failed to parse channel factory " + id, e);
+            throw new UnknownObjectException(url);
+        }
+    }
+
+    @Override
+    public Channel createPlaceholder(String url) {
+        try {
+            return getFactory().createPlaceholder(url);
+        } catch (JSONException e) {
+            Log.w(ChannelPool.LOG_TAG, "Failed to parse channel factory " + id, e);
+            return new PlaceholderChannel(this, url, "a generic channel");
+        }
+    }
+
+    @Override
+    public Class<? extends Value> getParamType(String method, String name) throws UnknownChannelException, TriggerValueTypeException {
+        try {
+            return getFactory().getParamType(method, name);
+        } catch (JSONException e) {
+            throw new UnknownChannelException(method);
+        }
+    }
+
+    @Override
+    public Trigger createTrigger(Channel channel, String method, Map<String, Value> params)
+            throws UnknownObjectException, UnknownChannelException, TriggerValueTypeException {
+        try {
+            return getFactory().createTrigger(channel, method, params);
+        } catch (JSONException e) {
+            throw new UnknownChannelException(method);
+        }
+    }
+
+    @Override
+    public Action createAction(Channel channel, String method, Map<String, Value> params)
+            throws UnknownObjectException, UnknownChannelException, TriggerValueTypeException {
+        try {
+            return getFactory().createAction(channel, method, params);
+        } catch (JSONException e) {
+            throw new UnknownChannelException(method);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package edu.stanford.braincat.rulepedia.channels.generic;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.stanford.braincat.rulepedia.exceptions.TriggerValueTypeException;
+import edu.stanford.braincat.rulepedia.model.Value;
+
+/**
+ * Created by gcampagn on 6/13/15.
+ * <p>
+ * A trigger ("events") or action ("methods") of a generic channel, parsed
+ * once from the catalog.
+ */
+final class MethodDescriptor {
+    private final String id;
+    private final String text;
+    private final String script;
+    private final Map<String, Class<? extends Value>> paramTypes;
+    private final List<EventSourceDescriptor> eventSources;
+
+    MethodDescriptor(JSONObject json) throws JSONException, TriggerValueTypeException {
+        id = json.getString("id");
+        text = json.getString("text");
+        script = json.getString("script");
+
+        Map<String, Class<? extends Value>> types = new LinkedHashMap<>();
+        JSONArray jsonParams = json.getJSONArray("params");
+        for (int i = 0; i < jsonParams.length(); i++) {
+            JSONObject paramspec = jsonParams.getJSONObject(i);
+            types.put(paramspec.getString("id"), classForTypeName(paramspec.getString("type")));
+        }
+        paramTypes = Collections.unmodifiableMap(types);
+
+        List<EventSourceDescriptor> sources = new ArrayList<>();
+        if (json.has("event-sources")) {
+            JSONArray jsonSources = json.getJSONArray("event-sources");
+            for (int i = 0; i < jsonSources.length(); i++)
+                sources.add(new EventSourceDescriptor(jsonSources.getJSONObject(i)));
+        }
+        eventSources = Collections.unmodifiableList(sources);
+    }
+
+    static Class<? extends Value> classForTypeName(String paramtype) throws TriggerValueTypeException {
+        switch (paramtype) {
+            case Value.Text.ID:
+            case "textarea":
+                return Value.Text.class;
+            case "time":
+            case Value.Number.ID:
+                return Value.Number.class;
+            case Value.Select.ID:
+                return Value.Select.class;
+            case Value.Picture.ID:
+                return Value.Picture.class;
+            case Value.Contact.ID:
+            case "message-destination":
+                return Value.Contact.class;
+            default:
+                throw new TriggerValueTypeException("invalid type " + paramtype);
+        }
+    }
+
+    String getId() {
+        return id;
+    }
+
+    String getText() {
+        return text;
+    }
+
+    String getScript() {
+        return script;
+    }
+
+    Map<String, Class<? extends Value>> getParamTypes() {
+        return paramTypes;
+    }
+
+    Class<? extends Value> getParamType(String name) throws TriggerValueTypeException {
+        Class<? extends Value> type = paramTypes.get(name);
+        if (type == null)
+            throw new TriggerValueTypeException("invalid param " + name);
+        return type;
+    }
+
+    /**
+     * The event sources private to this trigger.
+     */
+    List<EventSourceDescriptor> getEventSources() {
+        return eventSources;
+    }
+}
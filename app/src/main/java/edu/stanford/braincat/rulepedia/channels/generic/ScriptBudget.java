@@ -0,0 +1,50 @@
+package edu.stanford.braincat.rulepedia.channels.generic;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Created by gcampagn on 6/8/15.
+ * <p>
+ * How much a single call into a channel script may run before it is
+ * stopped, counted in Rhino instructions and in wall time.
+ * <p>
+ * Channels can override the defaults with a "script-budget" object in
+ * their catalog entry, with "instructions" and "time" (in ms) keys.
+ */
+public class ScriptBudget {
+    public static final long DEFAULT_INSTRUCTIONS = 1000000;
+    public static final long DEFAULT_TIME = 500;
+
+    public static final ScriptBudget DEFAULT = new ScriptBudget(DEFAULT_INSTRUCTIONS, DEFAULT_TIME);
+
+    private final long instructions;
+    private final long time;
+
+    public ScriptBudget(long instructions, long time) {
+        this.instructions = instructions;
+        this.time = time;
+    }
+
+    public long getInstructions() {
+        return instructions;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public static ScriptBudget fromJSON(JSONObject jsonFactory) throws JSONException {
+        if (!jsonFactory.has("script-budget"))
+            return DEFAULT;
+
+        JSONObject jsonBudget = jsonFactory.getJSONObject("script-budget");
+        return new ScriptBudget(jsonBudget.optLong("instructions", DEFAULT_INSTRUCTIONS),
+                jsonBudget.optLong("time", DEFAULT_TIME));
+    }
+
+    @Override
+    public String toString() {
+        return instructions + " instructions / " + time + " ms";
+    }
+}
@@ -0,0 +1,153 @@
+package edu.stanford.braincat.rulepedia.channels.generic;
+
+import android.os.Debug;
+import android.os.SystemClock;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextFactory;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+
+import edu.stanford.braincat.rulepedia.exceptions.ScriptBudgetException;
+
+/**
+ * Created by gcampagn on 6/8/15.
+ * <p>
+ * Creates the Rhino Contexts used to run channel scripts, and stops scripts
+ * that go over their ScriptBudget.
+ * <p>
+ * Scripts are interpreted, so Rhino calls back every OBSERVER_THRESHOLD
+ * instructions, which is where the budget is checked. Time spent blocked in
+ * Java code called by the script is only noticed when the script resumes.
+ * <p>
+ * Every entry into a Context is paired with an exit, so no thread keeps a
+ * Context once it is done with scripts.
+ * <p>
+ * Each call runs in a scope of its own, whose prototype is the sealed scope
+ * shared by the channel: the script sees the standard objects, and the
+ * globals it assigns are dropped when it returns.
+ */
+class ScriptContextFactory extends ContextFactory {
+    // how often (in instructions) the budget is checked
+    private static final int OBSERVER_THRESHOLD = 10000;
+
+    private static final ScriptContextFactory instance = new ScriptContextFactory();
+
+    public static ScriptContextFactory get() {
+        return instance;
+    }
+
+    private static class BudgetContext extends Context {
+        private ScriptBudget budget;
+        private long instructions;
+        private long startTime;
+
+        private BudgetContext(ContextFactory factory) {
+            super(factory);
+        }
+    }
+
+    // thrown from inside the interpreter: an Error cannot be caught by the script
+    private static class BudgetExceededError extends Error {
+        private BudgetExceededError(String message) {
+            super(message);
+        }
+    }
+
+    private ScriptContextFactory() {
+    }
+
+    @Override
+    protected Context makeContext() {
+        BudgetContext ctx = new BudgetContext(this);
+        ctx.setOptimizationLevel(-1);
+        ctx.setInstructionObserverThreshold(OBSERVER_THRESHOLD);
+        return ctx;
+    }
+
+    @Override
+    protected void observeInstructionCount(Context cx, int instructionCount) {
+        BudgetContext ctx = (BudgetContext) cx;
+        if (ctx.budget == null)
+            return;
+
+        ctx.instructions += instructionCount;
+        if (ctx.instructions > ctx.budget.getInstructions())
+            throw new BudgetExceededError("script ran for more than " + ctx.budget.getInstructions() + " instructions");
+        if (SystemClock.uptimeMillis() - ctx.startTime > ctx.budget.getTime())
+            throw new BudgetExceededError("script ran for more than " + ctx.budget.getTime() + " ms");
+    }
+
+    /**
+     * Create a sealed scope with the standard objects, to be shared by all
+     * the scripts of a channel, on any thread.
+     */
+    Scriptable initSharedScope() {
+        Context cx = enterContext();
+        try {
+            ScriptableObject scope = cx.initSafeStandardObjects(null, true);
+            scope.sealObject();
+            return scope;
+        } finally {
+            Context.exit();
+        }
+    }
+
+    Function compileFunction(Scriptable sharedScope, String body, String sourceName) {
+        Context cx = enterContext();
+        try {
+            return cx.compileFunction(sharedScope, body, sourceName, 1, null);
+        } finally {
+            Context.exit();
+        }
+    }
+
+    /**
+     * Call a script function within the given budget, and charge its cost
+     * to the named script in the ScriptProfiler.
+     * <p>
+     * A function must not be called by two threads at once, it is moved to
+     * the scope of the call.
+     */
+    Object call(String scriptName, ScriptBudget budget, Function function, Scriptable sharedScope,
+                Scriptable thisArg, Object[] args) throws ScriptBudgetException {
+        Context cx = enterContext();
+        try {
+            // implicit globals land in the top scope of the function
+            Scriptable scope = cx.newObject(sharedScope);
+            scope.setPrototype(sharedScope);
+            scope.setParentScope(null);
+            function.setParentScope(scope);
+
+            if (!(cx instanceof BudgetContext) || ((BudgetContext) cx).budget != null) {
+                // not one of ours, or a nested call already covered by the outer budget
+                return function.call(cx, scope, thisArg, args);
+            }
+
+            return callWithBudget(scriptName, budget, (BudgetContext) cx, function, scope, thisArg, args);
+        } finally {
+            Context.exit();
+        }
+    }
+
+    private static Object callWithBudget(String scriptName, ScriptBudget budget, BudgetContext ctx, Function function,
+                                         Scriptable scope, Scriptable thisArg, Object[] args) throws ScriptBudgetException {
+        ctx.budget = budget;
+        ctx.instructions = 0;
+        ctx.startTime = SystemClock.uptimeMillis();
+        long startCpuTime = Debug.threadCpuTimeNanos();
+        boolean exceeded = false;
+
+        try {
+            return function.call(ctx, scope, thisArg, args);
+        } catch (BudgetExceededError e) {
+            exceeded = true;
+            throw new ScriptBudgetException(scriptName + ": " + e.getMessage());
+        } finally {
+            ScriptProfiler.get().record(scriptName, Debug.threadCpuTimeNanos() - startCpuTime,
+                    ctx.instructions, exceeded);
+            ctx.budget = null;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package edu.stanford.braincat.rulepedia.channels.generic;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Created by gcampagn on 6/8/15.
+ * <p>
+ * CPU time and instructions spent in each channel script, reported by
+ * dumpsys through RuleExecutorService.
+ * <p>
+ * Instructions are only counted in steps of the observer threshold, so short
+ * scripts show up as zero.
+ */
+public class ScriptProfiler {
+    private static final ScriptProfiler instance = new ScriptProfiler();
+
+    public static ScriptProfiler get() {
+        return instance;
+    }
+
+    private static class Profile {
+        private long calls;
+        private long cpuTime;
+        private long maxCpuTime;
+        private long instructions;
+        private long exceeded;
+    }
+
+    private final Map<String, Profile> profiles;
+
+    private ScriptProfiler() {
+        profiles = new TreeMap<>();
+    }
+
+    public synchronized void record(String scriptName, long cpuNanos, long instructions, boolean exceeded) {
+        Profile profile = profiles.get(scriptName);
+        if (profile == null) {
+            profile = new Profile();
+            profiles.put(scriptName, profile);
+        }
+
+        profile.calls++;
+        profile.cpuTime += cpuNanos;
+        profile.maxCpuTime = Math.max(profile.maxCpuTime, cpuNanos);
+        profile.instructions += instructions;
+        if (exceeded)
+            profile.exceeded++;
+    }
+
+    public synchronized long getExceededCount(String scriptName) {
+        Profile profile = profiles.get(scriptName);
+        return profile == null ? 0 : profile.exceeded;
+    }
+
+    public synchronized void dump(PrintWriter writer) {
+        writer.println("Scripts (calls / cpu ms / max cpu ms / instructions / over budget):");
+        for (Map.Entry<String, Profile> e : profiles.entrySet()) {
+            Profile p = e.getValue();
+            writer.println("  " + e.getKey() + ": " + p.calls + " / " + p.cpuTime / 1000000 + " / "
+                    + p.maxCpuTime / 1000000 + " / " + p.instructions + " / " + p.exceeded);
+        }
+    }
+}
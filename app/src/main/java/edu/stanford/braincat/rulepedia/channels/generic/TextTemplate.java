@@ -0,0 +1,77 @@
+package edu.stanford.braincat.rulepedia.channels.generic;
+
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import edu.stanford.braincat.rulepedia.exceptions.TriggerValueTypeException;
+import edu.stanford.braincat.rulepedia.exceptions.UnknownObjectException;
+import edu.stanford.braincat.rulepedia.model.Value;
+
+/**
+ * Created by gcampagn on 6/13/15.
+ * <p>
+ * A string from the channel catalog with {{name}} placeholders, split once
+ * into literal and placeholder parts.
+ * <p>
+ * {{url}} expands to the url of the channel, any other placeholder to the
+ * parameter of the same name. Placeholders without a value are left as
+ * they are.
+ */
+final class TextTemplate {
+    private static final String URL = "url";
+
+    // even indices are literals, odd indices are placeholder names
+    private final List<String> parts;
+
+    private TextTemplate(List<String> parts) {
+        this.parts = Collections.unmodifiableList(parts);
+    }
+
+    static TextTemplate parse(String text) {
+        List<String> parts = new ArrayList<>();
+
+        int start = 0;
+        while (true) {
+            int open = text.indexOf("{{", start);
+            int close = open < 0 ? -1 : text.indexOf("}}", open + 2);
+            if (close < 0) {
+                parts.add(text.substring(start));
+                break;
+            }
+
+            parts.add(text.substring(start, open));
+            parts.add(text.substring(open + 2, close));
+            start = close + 2;
+        }
+
+        return new TextTemplate(parts);
+    }
+
+    boolean isConstant() {
+        return parts.size() == 1;
+    }
+
+    String expand(String url, @Nullable Map<String, Value> params) throws TriggerValueTypeException, UnknownObjectException {
+        if (isConstant())
+            return parts.get(0);
+
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < parts.size(); i++) {
+            String part = parts.get(i);
+            if (i % 2 == 0) {
+                builder.append(part);
+            } else if (part.equals(URL)) {
+                builder.append(url);
+            } else if (params != null && params.containsKey(part)) {
+                builder.append(params.get(part).resolve(null).toString());
+            } else {
+                builder.append("{{").append(part).append("}}");
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -2,30 +2,51 @@ package edu.stanford.braincat.rulepedia.channels.generic;
 
 import android.content.Context;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.ArrayDeque;
-import java.util.Queue;
+import java.net.URLConnection;
 
-import edu.stanford.braincat.rulepedia.events.EventSource;
+import edu.stanford.braincat.rulepedia.channels.EndpointBreakers;
+import edu.stanford.braincat.rulepedia.events.ActivationStage;
+import edu.stanford.braincat.rulepedia.events.Checkpointable;
+import edu.stanford.braincat.rulepedia.events.EventQueue;
 import edu.stanford.braincat.rulepedia.events.EventSourceHandler;
+import edu.stanford.braincat.rulepedia.events.StagedEventSource;
 import edu.stanford.braincat.rulepedia.events.TimeoutEventSource;
+import edu.stanford.braincat.rulepedia.service.CircuitBreaker;
 
 /**
  * Created by gcampagn on 5/15/15.
+ * <p>
+ * Only the phase of the polling timer is checkpointed, a response that was
+ * not handled is fetched again.
  */
-public class WebPollingEventSource implements EventSource {
+public class WebPollingEventSource implements StagedEventSource, Checkpointable {
     private final URL url;
-    private final EventSource pollingSource;
-    private final Queue<InputStream> requestQueue;
+    private final TimeoutEventSource pollingSource;
+    private final EventQueue<InputStream> requestQueue;
 
     public WebPollingEventSource(String url, long timeout) throws MalformedURLException {
         this.url = new URL(url);
         this.pollingSource = new TimeoutEventSource(timeout);
-        this.requestQueue = new ArrayDeque<>();
+        // only the latest response matters to the rules
+        this.requestQueue = new EventQueue<InputStream>(1, EventQueue.OverflowPolicy.COALESCE_LATEST) {
+            @Override
+            protected void onDiscard(InputStream stream) {
+                closeQuietly(stream);
+            }
+        };
+    }
+
+    @Override
+    public ActivationStage getActivationStage() {
+        return ActivationStage.NETWORK;
     }
 
     @Override
@@ -33,9 +54,38 @@ public class WebPollingEventSource implements EventSource {
         pollingSource.install(ctx, handler);
     }
 
+    @Override
+    public String getCheckpointKey() {
+        return "poll:" + url;
+    }
+
+    @Override
+    public long getStateVersion() {
+        return pollingSource.getStateVersion();
+    }
+
+    @Override
+    public JSONObject saveState() throws JSONException {
+        return pollingSource.saveState();
+    }
+
+    @Override
+    public void restoreState(JSONObject state) throws JSONException {
+        pollingSource.restoreState(state);
+    }
+
     @Override
     public void uninstall(Context ctx) throws IOException {
         pollingSource.uninstall(ctx);
+        requestQueue.clear();
+    }
+
+    private static void closeQuietly(InputStream stream) {
+        try {
+            stream.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
     }
 
     public InputStream getLastConnection() {
@@ -48,7 +98,21 @@ public class WebPollingEventSource implements EventSource {
             return true;
 
         if (pollingSource.checkEvent()) {
-            requestQueue.offer(new BufferedInputStream(url.openStream()));
+            // skip the poll while the server is down, the tick is consumed in updateState()
+            CircuitBreaker breaker = EndpointBreakers.get().getBreaker(url);
+            if (!breaker.allowRequest())
+                return false;
+
+            URLConnection connection = url.openConnection();
+            InputStream stream;
+            try {
+                stream = connection.getInputStream();
+            } catch (IOException e) {
+                EndpointBreakers.get().recordFailure(url, connection);
+                throw e;
+            }
+            breaker.recordSuccess();
+            requestQueue.offer(new BufferedInputStream(stream));
             return true;
         }
 
@@ -57,6 +121,9 @@ public class WebPollingEventSource implements EventSource {
 
     @Override
     public void updateState() throws IOException {
-        requestQueue.poll().close();
+        InputStream stream = requestQueue.poll();
+        if (stream != null)
+            stream.close();
+        pollingSource.updateState();
     }
 }
@@ -4,6 +4,7 @@ import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.util.Log;
 
 import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.fitness.Fitness;
@@ -11,15 +12,17 @@ import com.google.android.gms.fitness.data.Session;
 
 import java.io.IOException;
 
-import edu.stanford.braincat.rulepedia.events.EventSource;
+import edu.stanford.braincat.rulepedia.events.ActivationStage;
 import edu.stanford.braincat.rulepedia.events.EventSourceHandler;
 import edu.stanford.braincat.rulepedia.events.IntentEventSource;
-import edu.stanford.braincat.rulepedia.exceptions.RuleExecutionException;
+import edu.stanford.braincat.rulepedia.events.StagedEventSource;
+import edu.stanford.braincat.rulepedia.service.Callback;
+import edu.stanford.braincat.rulepedia.service.RuleExecutorService;
 
 /**
  * Created by gcampagn on 5/13/15.
  */
-public class ActivityMonitorEventSource implements EventSource {
+public class ActivityMonitorEventSource implements StagedEventSource {
     private static final String INTENT = "edu.stanford.braincat.rulepedia.channels.googlefit.ACTIVITY";
 
     public static class Event {
@@ -49,6 +52,7 @@ public class ActivityMonitorEventSource implements EventSource {
     private Event cachedEvent;
     private GoogleApiClient client;
     private PendingIntent pendingIntent;
+    private boolean installed;
 
     public ActivityMonitorEventSource(GoogleFitChannel channel) {
         intentSource = new IntentEventSource(new IntentFilter(INTENT));
@@ -56,28 +60,64 @@ public class ActivityMonitorEventSource implements EventSource {
     }
 
     @Override
-    public void install(Context ctx, EventSourceHandler handler) throws IOException {
-        try {
-            client = channel.acquireClient(ctx);
-        } catch (RuleExecutionException e) {
-            throw new IOException(e);
-        }
+    public ActivationStage getActivationStage() {
+        return ActivationStage.REMOTE_SERVICE;
+    }
+
+    @Override
+    public void install(final Context ctx, EventSourceHandler handler) throws IOException {
+        if (installed)
+            throw new IllegalStateException("double install");
+        installed = true;
 
-        Intent intent = new Intent(ctx, IntentEventSource.EventSourceBroadcastReceiver.class);
-        intent.setAction(INTENT);
-        pendingIntent = PendingIntent.getBroadcast(ctx, 0, intent, 0);
-        Fitness.SessionsApi.registerForSessions(client, pendingIntent);
+        channel.getClientManager().acquire(ctx);
+        registerWhenConnected(ctx);
+    }
+
+    /**
+     * Register for sessions once connected, instead of blocking the executor
+     * on the connection. If connecting fails, wait for the next attempt of
+     * the client manager, which backs off on its own.
+     */
+    private void registerWhenConnected(final Context ctx) {
+        final GoogleFitClientManager manager = channel.getClientManager();
+
+        manager.whenConnected(new Callback<Void>() {
+            @Override
+            public void run(Void result, Exception error) {
+                if (!installed || pendingIntent != null)
+                    return;
+
+                try {
+                    if (error != null)
+                        throw error;
+                    client = manager.getClient();
+                } catch (Exception e) {
+                    Log.w(RuleExecutorService.LOG_TAG, "Failed to monitor Google Fit activities, will retry", e);
+                    registerWhenConnected(ctx);
+                    return;
+                }
+
+                Intent intent = new Intent(ctx, IntentEventSource.EventSourceBroadcastReceiver.class);
+                intent.setAction(INTENT);
+                pendingIntent = PendingIntent.getBroadcast(ctx, 0, intent, 0);
+                Fitness.SessionsApi.registerForSessions(client, pendingIntent);
+            }
+        });
     }
 
     @Override
     public void uninstall(Context ctx) {
-        if (client == null)
+        if (!installed)
             throw new IllegalStateException("event source was not installed");
+        installed = false;
 
-        Fitness.SessionsApi.unregisterForSessions(client, pendingIntent);
-        pendingIntent = null;
-        client = null;
-        channel.releaseClient();
+        if (pendingIntent != null) {
+            Fitness.SessionsApi.unregisterForSessions(client, pendingIntent);
+            pendingIntent = null;
+            client = null;
+        }
+        channel.getClientManager().release();
     }
 
     public Event getLastEvent() {
@@ -27,13 +27,15 @@ import edu.stanford.braincat.rulepedia.exceptions.TriggerValueTypeException;
 import edu.stanford.braincat.rulepedia.exceptions.UnknownObjectException;
 import edu.stanford.braincat.rulepedia.model.Action;
 import edu.stanford.braincat.rulepedia.model.Channel;
+import edu.stanford.braincat.rulepedia.model.DeferredAction;
 import edu.stanford.braincat.rulepedia.model.ObjectPool;
 import edu.stanford.braincat.rulepedia.model.Value;
+import edu.stanford.braincat.rulepedia.service.Callback;
 
 /**
  * Created by gcampagn on 5/13/15.
  */
-public class FetchCurrentDataAction implements Action {
+public class FetchCurrentDataAction implements DeferredAction {
     private static final String FITNESS_CURRENT_VALUE_PREFIX = "fitness-current-value-";
 
     private volatile Channel channel;
@@ -79,11 +81,24 @@ public class FetchCurrentDataAction implements Action {
         context.put(FITNESS_CURRENT_VALUE_PREFIX + dataTypeId, Value.Number.class);
     }
 
+    @Override
+    public boolean isReady(Context ctx) {
+        return ((GoogleFitChannel) channel).getClientManager().isConnected();
+    }
+
+    @Override
+    public void whenReady(Context ctx, Callback<Void> callback) {
+        ((GoogleFitChannel) channel).whenConnected(ctx, callback);
+    }
+
     @Override
     public void execute(Context ctx, Map<String, Value> context) throws UnknownObjectException, RuleExecutionException {
-        GoogleApiClient client = ((GoogleFitChannel) channel).acquireClient(ctx);
+        GoogleFitClientManager manager = ((GoogleFitChannel) channel).getClientManager();
+        manager.acquire(ctx);
 
         try {
+            GoogleApiClient client = manager.getClient();
+
             long now = System.currentTimeMillis();
             DataReadRequest.Builder builder = new DataReadRequest.Builder()
                     .read(dataType.getType())
@@ -113,7 +128,7 @@ public class FetchCurrentDataAction implements Action {
             else
                 throw new RuleExecutionException("Google Fit data point has invalid type");
         } finally {
-            ((GoogleFitChannel) channel).releaseClient();
+            manager.release();
         }
     }
 
@@ -2,16 +2,8 @@ package edu.stanford.braincat.rulepedia.channels.googlefit;
 
 import android.content.Context;
 import android.support.annotation.NonNull;
-import android.util.Log;
 
 import com.google.android.gms.common.api.GoogleApiClient;
-import com.google.android.gms.fitness.Fitness;
-import com.google.android.gms.fitness.data.Bucket;
-import com.google.android.gms.fitness.data.DataPoint;
-import com.google.android.gms.fitness.data.DataSet;
-import com.google.android.gms.fitness.data.Field;
-import com.google.android.gms.fitness.request.DataReadRequest;
-import com.google.android.gms.fitness.result.DataReadResult;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -20,9 +12,7 @@ import org.json.JSONObject;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Map;
-import java.util.concurrent.TimeUnit;
 
 import edu.stanford.braincat.rulepedia.events.EventSource;
 import edu.stanford.braincat.rulepedia.exceptions.RuleExecutionException;
@@ -30,14 +20,15 @@ import edu.stanford.braincat.rulepedia.exceptions.TriggerValueTypeException;
 import edu.stanford.braincat.rulepedia.exceptions.UnknownObjectException;
 import edu.stanford.braincat.rulepedia.model.Action;
 import edu.stanford.braincat.rulepedia.model.Channel;
+import edu.stanford.braincat.rulepedia.model.DeferredAction;
 import edu.stanford.braincat.rulepedia.model.ObjectPool;
 import edu.stanford.braincat.rulepedia.model.Value;
-import edu.stanford.braincat.rulepedia.service.RuleExecutorService;
+import edu.stanford.braincat.rulepedia.service.Callback;
 
 /**
  * Created by gcampagn on 5/13/15.
  */
-public class FetchHistoryDataAction implements Action {
+public class FetchHistoryDataAction implements DeferredAction {
     private static final String FITNESS_STATISTICS_PREFIX = "fitness-statistics-";
 
     private volatile Channel channel;
@@ -91,11 +82,24 @@ public class FetchHistoryDataAction implements Action {
         context.put(FITNESS_STATISTICS_PREFIX + dataTypeId, Value.Number.class);
     }
 
+    @Override
+    public boolean isReady(Context ctx) {
+        return ((GoogleFitChannel) channel).getClientManager().isConnected();
+    }
+
+    @Override
+    public void whenReady(Context ctx, Callback<Void> callback) {
+        ((GoogleFitChannel) channel).whenConnected(ctx, callback);
+    }
+
     @Override
     public void execute(Context ctx, Map<String, Value> context) throws TriggerValueTypeException, UnknownObjectException, RuleExecutionException {
-        GoogleApiClient client = ((GoogleFitChannel) channel).acquireClient(ctx);
+        GoogleFitClientManager manager = ((GoogleFitChannel) channel).getClientManager();
+        manager.acquire(ctx);
 
         try {
+            GoogleApiClient client = manager.getClient();
+
             Value.Number resolvedPeriod = (Value.Number) aggregatePeriod.resolve(context);
             Value.Text resolvedActivity;
             if (activityFilter != null)
@@ -103,54 +107,11 @@ public class FetchHistoryDataAction implements Action {
             else
                 resolvedActivity = null;
 
-            long now = System.currentTimeMillis();
-            DataReadRequest.Builder builder = new DataReadRequest.Builder()
-                    .aggregate(dataType.getInput(), dataType.getOutput())
-                    .setTimeRange(now - resolvedPeriod.getNumber().longValue(), now, TimeUnit.MILLISECONDS);
-            if (resolvedActivity != null)
-                builder.bucketByActivityType(resolvedPeriod.getNumber().intValue(), TimeUnit.MILLISECONDS);
-            else
-                builder.bucketByTime(resolvedPeriod.getNumber().intValue(), TimeUnit.MILLISECONDS);
-
-            DataReadResult result = Fitness.HistoryApi.readData(client, builder.build()).await();
-            Bucket bucket = null;
-            for (Bucket b : result.getBuckets()) {
-                if (resolvedActivity != null && !b.getActivity().equals(resolvedActivity.getText()))
-                    continue;
-
-                bucket = b;
-                break;
-            }
-            if (bucket == null)
-                throw new RuleExecutionException("No data from Google Fit");
-
-            if (bucket.getEndTime(TimeUnit.MILLISECONDS) - bucket.getStartTime(TimeUnit.MILLISECONDS) < resolvedPeriod.getNumber().longValue() - 60000)
-                Log.w(RuleExecutorService.LOG_TAG, "Google Fit data API returned bucket too short");
-
-            DataSet dataSet = bucket.getDataSet(dataType.getOutput());
-            List<DataPoint> dataPoints = dataSet.getDataPoints();
-
-            String dataTypeId = dataType.toString();
-
-            if (dataPoints.size() == 0) {
-                context.put(FITNESS_STATISTICS_PREFIX + dataTypeId, new Value.Number(0));
-                return;
-            }
-
-            if (dataPoints.size() != 1)
-                throw new RuleExecutionException("Google Fit did not bucket the data properly, got " + dataPoints.size() + " points in one bucket");
-
-            com.google.android.gms.fitness.data.Value value = dataPoints.get(0).getValue(dataType.getField());
-
-
-            if (value.getFormat() == Field.FORMAT_INT32)
-                context.put(FITNESS_STATISTICS_PREFIX + dataTypeId, new Value.Number(value.asInt()));
-            else if (value.getFormat() == Field.FORMAT_FLOAT)
-                context.put(FITNESS_STATISTICS_PREFIX + dataTypeId, new Value.Number(value.asFloat()));
-            else
-                throw new RuleExecutionException("Google Fit data point has invalid type");
+            Value.Number value = ((GoogleFitChannel) channel).getHistoryCache().get(client, dataType,
+                    resolvedActivity != null ? resolvedActivity.getText() : null, resolvedPeriod.getNumber().longValue());
+            context.put(FITNESS_STATISTICS_PREFIX + dataType.toString(), value);
         } finally {
-            ((GoogleFitChannel) channel).releaseClient();
+            manager.release();
         }
     }
 
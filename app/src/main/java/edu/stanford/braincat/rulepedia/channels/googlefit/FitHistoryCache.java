@@ -0,0 +1,235 @@
+package edu.stanford.braincat.rulepedia.channels.googlefit;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.fitness.Fitness;
+import com.google.android.gms.fitness.data.Bucket;
+import com.google.android.gms.fitness.data.DataPoint;
+import com.google.android.gms.fitness.data.DataSet;
+import com.google.android.gms.fitness.data.Field;
+import com.google.android.gms.fitness.request.DataReadRequest;
+import com.google.android.gms.fitness.result.DataReadResult;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import edu.stanford.braincat.rulepedia.exceptions.RuleExecutionException;
+import edu.stanford.braincat.rulepedia.model.Value;
+import edu.stanford.braincat.rulepedia.service.RuleExecutorService;
+
+/**
+ * Created by gcampagn on 6/4/15.
+ * <p>
+ * Cache of aggregated Google Fit history, keyed by data type, activity
+ * filter and aggregation period.
+ * <p>
+ * Each window is kept as a list of time slices. A request within the
+ * staleness bound of the last fetch is answered from the cache, otherwise
+ * only the slice between the last fetch and now is read from Google Fit,
+ * and slices that fell out of the window are dropped (prorating the one
+ * straddling its start). The whole window is read again periodically, to
+ * pick up data that was synced late.
+ * <p>
+ * Only used from the rule executor thread.
+ */
+public class FitHistoryCache {
+    public static final long DEFAULT_STALENESS = 30 * 1000;
+    public static final long DEFAULT_MAX_INCREMENTAL_AGE = 15 * 60 * 1000;
+
+    private static class Slice {
+        private final long start;
+        private final long end;
+        // false if Google Fit had no data points for this slice
+        private final boolean hasValue;
+        private final double value;
+
+        private Slice(long start, long end, boolean hasValue, double value) {
+            this.start = start;
+            this.end = end;
+            this.hasValue = hasValue;
+            this.value = value;
+        }
+    }
+
+    private static class Window {
+        private final LinkedList<Slice> slices;
+        private long lastEnd;
+        private long fullFetchTime;
+        private boolean isInt;
+        private Value.Number result;
+
+        private Window() {
+            slices = new LinkedList<>();
+        }
+    }
+
+    private final Map<String, Window> windows;
+    private long staleness;
+    private long maxIncrementalAge;
+
+    public FitHistoryCache() {
+        windows = new HashMap<>();
+        staleness = DEFAULT_STALENESS;
+        maxIncrementalAge = DEFAULT_MAX_INCREMENTAL_AGE;
+    }
+
+    /**
+     * Set how long an aggregate can be reused without querying Google Fit.
+     */
+    public void setStaleness(long staleness) {
+        this.staleness = staleness;
+    }
+
+    /**
+     * Set how long a window is updated incrementally before it is read again
+     * in full.
+     */
+    public void setMaxIncrementalAge(long maxIncrementalAge) {
+        this.maxIncrementalAge = maxIncrementalAge;
+    }
+
+    public void clear() {
+        windows.clear();
+    }
+
+    private static String makeKey(HistoryDataTypeValue dataType, @Nullable String activity, long period) {
+        return dataType.toString() + "/" + (activity != null ? activity : "") + "/" + period;
+    }
+
+    public Value.Number get(GoogleApiClient client, HistoryDataTypeValue dataType, @Nullable String activity, long period) throws RuleExecutionException {
+        long now = System.currentTimeMillis();
+        String key = makeKey(dataType, activity, period);
+        Window window = windows.get(key);
+
+        if (window != null && now - window.lastEnd <= staleness)
+            return window.result;
+
+        if (window == null || window.lastEnd <= now - period || now - window.fullFetchTime > maxIncrementalAge) {
+            Window newWindow = new Window();
+            newWindow.slices.add(fetchSlice(client, dataType, activity, now - period, now, period, true, newWindow));
+            newWindow.fullFetchTime = now;
+            window = newWindow;
+            windows.put(key, window);
+        } else {
+            window.slices.add(fetchSlice(client, dataType, activity, window.lastEnd, now, period, false, window));
+        }
+
+        window.lastEnd = now;
+        window.result = combine(window, dataType.getField(), now - period);
+        return window.result;
+    }
+
+    private static Slice fetchSlice(GoogleApiClient client, HistoryDataTypeValue dataType, @Nullable String activity,
+                                    long start, long end, long period, boolean full, Window window) throws RuleExecutionException {
+        int duration = (int) Math.min(end - start, Integer.MAX_VALUE);
+        DataReadRequest.Builder builder = new DataReadRequest.Builder()
+                .aggregate(dataType.getInput(), dataType.getOutput())
+                .setTimeRange(start, end, TimeUnit.MILLISECONDS);
+        // only activity segments at least as long as the period count, for
+        // full and incremental slices alike, or they would disagree
+        if (activity != null)
+            builder.bucketByActivityType((int) Math.min(period, Integer.MAX_VALUE), TimeUnit.MILLISECONDS);
+        else
+            builder.bucketByTime(duration, TimeUnit.MILLISECONDS);
+
+        DataReadResult result = Fitness.HistoryApi.readData(client, builder.build()).await();
+        Bucket bucket = null;
+        for (Bucket b : result.getBuckets()) {
+            if (activity != null && !b.getActivity().equals(activity))
+                continue;
+
+            bucket = b;
+            break;
+        }
+        if (bucket == null) {
+            // no activity of this type since the last fetch is fine
+            if (full)
+                throw new RuleExecutionException("No data from Google Fit");
+            return new Slice(start, end, false, 0);
+        }
+
+        if (full && bucket.getEndTime(TimeUnit.MILLISECONDS) - bucket.getStartTime(TimeUnit.MILLISECONDS) < end - start - 60000)
+            Log.w(RuleExecutorService.LOG_TAG, "Google Fit data API returned bucket too short");
+
+        DataSet dataSet = bucket.getDataSet(dataType.getOutput());
+        List<DataPoint> dataPoints = dataSet.getDataPoints();
+
+        if (dataPoints.size() == 0)
+            return new Slice(start, end, false, 0);
+
+        if (dataPoints.size() != 1)
+            throw new RuleExecutionException("Google Fit did not bucket the data properly, got " + dataPoints.size() + " points in one bucket");
+
+        com.google.android.gms.fitness.data.Value value = dataPoints.get(0).getValue(dataType.getField());
+
+        if (value.getFormat() == Field.FORMAT_INT32) {
+            window.isInt = true;
+            return new Slice(start, end, true, value.asInt());
+        } else if (value.getFormat() == Field.FORMAT_FLOAT) {
+            window.isInt = false;
+            return new Slice(start, end, true, value.asFloat());
+        } else {
+            throw new RuleExecutionException("Google Fit data point has invalid type");
+        }
+    }
+
+    private static Value.Number combine(Window window, Field field, long windowStart) {
+        boolean isMax = field.equals(Field.FIELD_MAX);
+        boolean isAverage = field.equals(Field.FIELD_AVERAGE);
+
+        double sum = 0;
+        double max = 0;
+        double weightedSum = 0;
+        long totalWeight = 0;
+        boolean any = false;
+
+        Iterator<Slice> iterator = window.slices.iterator();
+        while (iterator.hasNext()) {
+            Slice slice = iterator.next();
+            if (slice.end <= windowStart) {
+                iterator.remove();
+                continue;
+            }
+            if (!slice.hasValue)
+                continue;
+
+            long start = Math.max(slice.start, windowStart);
+            long length = slice.end - start;
+            if (length <= 0)
+                continue;
+
+            if (isMax) {
+                // the maximum cannot be prorated, keep it until the slice leaves the window
+                max = any ? Math.max(max, slice.value) : slice.value;
+            } else if (isAverage) {
+                weightedSum += slice.value * length;
+                totalWeight += length;
+            } else {
+                // assume a uniform rate within the slice
+                sum += slice.value * length / (slice.end - slice.start);
+            }
+            any = true;
+        }
+
+        double result;
+        if (!any)
+            result = 0;
+        else if (isMax)
+            result = max;
+        else if (isAverage)
+            result = totalWeight > 0 ? weightedSum / totalWeight : 0;
+        else
+            result = sum;
+
+        if (window.isInt)
+            return new Value.Number((int) Math.round(result));
+        else
+            return new Value.Number((float) result);
+    }
+}
@@ -2,28 +2,23 @@ package edu.stanford.braincat.rulepedia.channels.googlefit;
 
 import android.content.Context;
 
-import com.google.android.gms.common.ConnectionResult;
-import com.google.android.gms.common.Scopes;
-import com.google.android.gms.common.api.GoogleApiClient;
-import com.google.android.gms.common.api.Scope;
-import com.google.android.gms.fitness.Fitness;
-
 import java.lang.ref.WeakReference;
 
-import edu.stanford.braincat.rulepedia.exceptions.RuleExecutionException;
 import edu.stanford.braincat.rulepedia.model.Channel;
+import edu.stanford.braincat.rulepedia.service.Callback;
 
 /**
  * Created by gcampagn on 5/13/15.
  */
 public class GoogleFitChannel extends Channel {
-    private int clientRefCount;
-    private GoogleApiClient client;
+    private final GoogleFitClientManager clientManager;
+    private final FitHistoryCache historyCache;
     private WeakReference<ActivityMonitorEventSource> activityMonitorSourceRef;
 
     public GoogleFitChannel(GoogleFitChannelFactory factory, String url) {
         super(factory, url);
-        clientRefCount = 0;
+        clientManager = new GoogleFitClientManager();
+        historyCache = new FitHistoryCache();
     }
 
     @Override
@@ -31,32 +26,31 @@ public class GoogleFitChannel extends Channel {
         return "Google Fit";
     }
 
-    GoogleApiClient acquireClient(Context ctx) throws RuleExecutionException {
-        if (client == null) {
-            GoogleApiClient tmpClient = new GoogleApiClient.Builder(ctx)
-                    .useDefaultAccount()
-                    .addScope(new Scope(Scopes.FITNESS_BODY_READ))
-                    .addScope(new Scope(Scopes.FITNESS_LOCATION_READ))
-                    .addScope(new Scope(Scopes.FITNESS_NUTRITION_READ))
-                    .addScope(new Scope(Scopes.FITNESS_ACTIVITY_READ))
-                    .addApi(Fitness.SESSIONS_API)
-                    .addApi(Fitness.HISTORY_API)
-                    .addApi(Fitness.SENSORS_API).build();
-            ConnectionResult result = tmpClient.blockingConnect();
-            if (!result.isSuccess())
-                throw new RuleExecutionException("Failed to connect to Google Fit");
-            client = tmpClient;
-        }
+    GoogleFitClientManager getClientManager() {
+        return clientManager;
+    }
 
-        clientRefCount++;
-        return client;
+    FitHistoryCache getHistoryCache() {
+        return historyCache;
     }
 
-    void releaseClient() {
-        if (--clientRefCount == 0) {
-            client.disconnect();
-            client = null;
-        }
+    /**
+     * Call back on the calling thread once the client is connected, or with
+     * an error if it failed to connect, keeping the connection alive until
+     * the callback returns.
+     */
+    void whenConnected(Context ctx, final Callback<Void> callback) {
+        clientManager.acquire(ctx);
+        clientManager.whenConnected(new Callback<Void>() {
+            @Override
+            public void run(Void result, Exception error) {
+                try {
+                    callback.run(result, error);
+                } finally {
+                    clientManager.release();
+                }
+            }
+        });
     }
 
     public ActivityMonitorEventSource getActivityMonitorEventSource() {
@@ -0,0 +1,244 @@
+package edu.stanford.braincat.rulepedia.channels.googlefit;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.Scopes;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.common.api.Scope;
+import com.google.android.gms.fitness.Fitness;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.stanford.braincat.rulepedia.exceptions.RuleExecutionException;
+import edu.stanford.braincat.rulepedia.service.Callback;
+import edu.stanford.braincat.rulepedia.service.RuleExecutorService;
+
+/**
+ * Created by gcampagn on 6/4/15.
+ * <p>
+ * Owns the GoogleApiClient of a GoogleFitChannel.
+ * <p>
+ * The client is connected asynchronously on first use, and kept connected
+ * for an idle window after the last user releases it, so that rules firing
+ * every few minutes don't pay a full connect and disconnect each time.
+ * <p>
+ * If connecting fails, the callers waiting for the connection are failed,
+ * and the next attempt is delayed with exponential backoff (up to
+ * MAX_RETRY_DELAY), retrying on its own as long as someone holds a
+ * reference.
+ * <p>
+ * Methods can be called from any thread. The client runs on the main
+ * thread, and callers are notified through their Callback, on their
+ * own thread.
+ */
+public class GoogleFitClientManager implements GoogleApiClient.ConnectionCallbacks, GoogleApiClient.OnConnectionFailedListener {
+    public static final long DEFAULT_IDLE_TIMEOUT = 5 * 60 * 1000;
+    private static final long INITIAL_RETRY_DELAY = 5 * 1000;
+    private static final long MAX_RETRY_DELAY = 15 * 60 * 1000;
+
+    private enum State {
+        DISCONNECTED, CONNECTING, CONNECTED, WAITING_RETRY
+    }
+
+    private final List<Callback<Void>> pending;
+    private final Handler handler;
+    private final Runnable disconnectRunnable;
+    private final Runnable retryRunnable;
+    private Context context;
+    private GoogleApiClient client;
+    private State state;
+    private int refCount;
+    private long idleTimeout;
+    private long retryDelay;
+    // uptime of the earliest next connection attempt, 0 if not backing off
+    private long nextAttemptTime;
+
+    public GoogleFitClientManager() {
+        pending = new ArrayList<>();
+        handler = new Handler(Looper.getMainLooper());
+        disconnectRunnable = new Runnable() {
+            @Override
+            public void run() {
+                disconnect();
+            }
+        };
+        retryRunnable = new Runnable() {
+            @Override
+            public void run() {
+                retry();
+            }
+        };
+        state = State.DISCONNECTED;
+        refCount = 0;
+        idleTimeout = DEFAULT_IDLE_TIMEOUT;
+        retryDelay = INITIAL_RETRY_DELAY;
+        nextAttemptTime = 0;
+    }
+
+    public synchronized long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Set how long the client stays connected after the last release().
+     * A timeout of 0 disconnects immediately.
+     */
+    public synchronized void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public synchronized boolean isConnected() {
+        return state == State.CONNECTED;
+    }
+
+    /**
+     * Take a reference on the client, starting the connection if needed.
+     * <p>
+     * Each call must be matched by a call to release().
+     */
+    public synchronized void acquire(Context ctx) {
+        handler.removeCallbacks(disconnectRunnable);
+        refCount++;
+        context = ctx.getApplicationContext();
+
+        if (state != State.DISCONNECTED)
+            return;
+
+        // a recent attempt failed, don't hammer the service
+        if (nextAttemptTime > SystemClock.uptimeMillis()) {
+            state = State.WAITING_RETRY;
+            handler.postAtTime(retryRunnable, nextAttemptTime);
+            return;
+        }
+
+        connect();
+    }
+
+    private void connect() {
+        client = new GoogleApiClient.Builder(context)
+                .useDefaultAccount()
+                .addScope(new Scope(Scopes.FITNESS_BODY_READ))
+                .addScope(new Scope(Scopes.FITNESS_LOCATION_READ))
+                .addScope(new Scope(Scopes.FITNESS_NUTRITION_READ))
+                .addScope(new Scope(Scopes.FITNESS_ACTIVITY_READ))
+                .addApi(Fitness.SESSIONS_API)
+                .addApi(Fitness.HISTORY_API)
+                .addApi(Fitness.SENSORS_API)
+                .addConnectionCallbacks(this)
+                .addOnConnectionFailedListener(this)
+                .setHandler(handler)
+                .build();
+        state = State.CONNECTING;
+        client.connect();
+    }
+
+    public synchronized void release() {
+        if (refCount == 0)
+            throw new IllegalStateException("google fit client was not acquired");
+        if (--refCount > 0)
+            return;
+
+        if (state == State.WAITING_RETRY) {
+            // nobody wants the client anymore, stop retrying
+            handler.removeCallbacks(retryRunnable);
+            state = State.DISCONNECTED;
+        } else if (idleTimeout > 0) {
+            handler.postDelayed(disconnectRunnable, idleTimeout);
+        } else {
+            disconnect();
+        }
+    }
+
+    /**
+     * Call back once the client is connected (immediately if it is), or
+     * with an error when the next connection attempt fails.
+     * <p>
+     * The caller must hold a reference on the client.
+     */
+    public synchronized void whenConnected(Callback<Void> callback) {
+        if (refCount == 0)
+            throw new IllegalStateException("google fit client was not acquired");
+
+        if (state == State.CONNECTED)
+            callback.post(null, null);
+        else
+            pending.add(callback);
+    }
+
+    /**
+     * Return the connected client, or fail if the connection could not
+     * be established.
+     */
+    public synchronized GoogleApiClient getClient() throws RuleExecutionException {
+        if (state != State.CONNECTED)
+            throw new RuleExecutionException("Failed to connect to Google Fit");
+        return client;
+    }
+
+    private synchronized void disconnect() {
+        if (refCount > 0 || state == State.DISCONNECTED || state == State.WAITING_RETRY)
+            return;
+
+        client.disconnect();
+        client = null;
+        state = State.DISCONNECTED;
+    }
+
+    private synchronized void retry() {
+        if (state != State.WAITING_RETRY)
+            return;
+
+        if (refCount > 0)
+            connect();
+        else
+            state = State.DISCONNECTED;
+    }
+
+    private void completePending(Exception error) {
+        List<Callback<Void>> toComplete = new ArrayList<>(pending);
+        pending.clear();
+
+        for (Callback<Void> callback : toComplete)
+            callback.post(null, error);
+    }
+
+    @Override
+    public synchronized void onConnected(Bundle bundle) {
+        state = State.CONNECTED;
+        retryDelay = INITIAL_RETRY_DELAY;
+        nextAttemptTime = 0;
+        completePending(null);
+    }
+
+    @Override
+    public synchronized void onConnectionSuspended(int cause) {
+        // GoogleApiClient reconnects on its own, queue callers until it does
+        Log.i(RuleExecutorService.LOG_TAG, "Google Fit connection suspended, cause " + cause);
+        state = State.CONNECTING;
+    }
+
+    @Override
+    public synchronized void onConnectionFailed(ConnectionResult connectionResult) {
+        Log.e(RuleExecutorService.LOG_TAG, "Failed to connect to Google Fit: " + connectionResult +
+                ", next attempt in " + retryDelay / 1000 + " s");
+        client = null;
+        nextAttemptTime = SystemClock.uptimeMillis() + retryDelay;
+        retryDelay = Math.min(2 * retryDelay, MAX_RETRY_DELAY);
+
+        if (refCount > 0) {
+            state = State.WAITING_RETRY;
+            handler.postAtTime(retryRunnable, nextAttemptTime);
+        } else {
+            state = State.DISCONNECTED;
+        }
+
+        completePending(new RuleExecutionException("Failed to connect to Google Fit: " + connectionResult));
+    }
+}
@@ -44,6 +44,10 @@ public abstract class SendMessageAction implements Action {
         return channel;
     }
 
+    protected Value getDestination() {
+        return destination;
+    }
+
     @Override
     public Collection<EventSource> getEventSources() {
         return Collections.emptySet();
@@ -1,6 +1,7 @@
 package edu.stanford.braincat.rulepedia.channels.interfaces;
 
 import android.content.Context;
+import android.util.DisplayMetrics;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -84,10 +85,20 @@ public abstract class SharePictureAction implements Action {
 
     protected abstract void sharePicture(Context ctx, Contact destination, Value.DirectPicture picture) throws UnknownObjectException;
 
+    /**
+     * The largest picture the destination can show, the picture is
+     * downsampled to fit. Defaults to the size of the screen.
+     */
+    protected int getMaxPictureDimension(Context ctx) {
+        DisplayMetrics metrics = ctx.getResources().getDisplayMetrics();
+        return Math.max(metrics.widthPixels, metrics.heightPixels);
+    }
+
     @Override
     public void execute(Context ctx, Map<String, Value> context) throws TriggerValueTypeException, RuleExecutionException, UnknownObjectException {
         Value.DirectObject resolvedDestination = (Value.DirectObject) destination.resolve(context);
-        Value.DirectPicture resolvedPicture = ((Value.Picture) message.resolve(context)).toPicture(ctx);
+        int maxDimension = getMaxPictureDimension(ctx);
+        Value.DirectPicture resolvedPicture = ((Value.Picture) message.resolve(context)).toPicture(ctx, maxDimension, maxDimension);
 
         sharePicture(ctx, (Contact) resolvedDestination.getObject(), resolvedPicture);
     }
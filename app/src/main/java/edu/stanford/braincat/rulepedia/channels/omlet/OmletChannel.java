@@ -9,6 +9,8 @@ import edu.stanford.braincat.rulepedia.model.Channel;
  */
 public class OmletChannel extends Channel {
     public static final String OMLET_PACKAGE = "mobisocial.omlet";
+    // pictures in a chat are not shown larger than this
+    public static final int MAX_PICTURE_DIMENSION = 1024;
 
     private WeakReference<OmletMessageEventSource> sourceRef;
 
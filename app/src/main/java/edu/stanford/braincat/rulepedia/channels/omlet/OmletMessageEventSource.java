@@ -5,9 +5,8 @@ import android.os.Message;
 import android.os.Messenger;
 
 import java.io.IOException;
-import java.util.ArrayDeque;
-import java.util.Queue;
 
+import edu.stanford.braincat.rulepedia.events.EventQueue;
 import edu.stanford.braincat.rulepedia.events.MessengerEventSource;
 
 /**
@@ -16,10 +15,10 @@ import edu.stanford.braincat.rulepedia.events.MessengerEventSource;
 public class OmletMessageEventSource extends MessengerEventSource {
     private static final long OBJECT_ADDED = 1;
 
-    private final Queue<OmletMessage> messageQueue;
+    private final EventQueue<OmletMessage> messageQueue;
 
     public OmletMessageEventSource() {
-        messageQueue = new ArrayDeque<>();
+        messageQueue = new EventQueue<>(EventQueue.OverflowPolicy.DROP_OLDEST);
     }
 
     @Override
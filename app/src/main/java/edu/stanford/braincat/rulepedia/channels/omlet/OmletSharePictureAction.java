@@ -19,6 +19,11 @@ public class OmletSharePictureAction extends SharePictureAction {
 
     }
 
+    @Override
+    protected int getMaxPictureDimension(Context ctx) {
+        return Math.min(OmletChannel.MAX_PICTURE_DIMENSION, super.getMaxPictureDimension(ctx));
+    }
+
     @Override
     protected void sharePicture(Context ctx, Contact contact, Value.DirectPicture picture) {
         // FIXME should be SENDTO
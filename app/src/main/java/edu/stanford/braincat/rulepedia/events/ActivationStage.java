@@ -0,0 +1,27 @@
+package edu.stanford.braincat.rulepedia.events;
+
+/**
+ * Created by gcampagn on 6/6/15.
+ * <p>
+ * How expensive it is to bring up an event source, which determines when
+ * rules using it are activated at boot.
+ * <p>
+ * Rules with only LOCAL sources are activated before the executor starts
+ * handling events, the others are activated in the background, in stage
+ * and then priority order.
+ */
+public enum ActivationStage {
+    // broadcast receivers, timers and other in-process sources
+    LOCAL,
+    // sources that talk to the network
+    NETWORK,
+    // sources that bind to or connect to another process
+    REMOTE_SERVICE;
+
+    public static ActivationStage of(EventSource source) {
+        if (source instanceof StagedEventSource)
+            return ((StagedEventSource) source).getActivationStage();
+        else
+            return LOCAL;
+    }
+}
@@ -0,0 +1,43 @@
+package edu.stanford.braincat.rulepedia.events;
+
+import android.support.annotation.Nullable;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Created by gcampagn on 6/17/15.
+ * <p>
+ * State of an event source or trigger that should survive the service being
+ * killed, such as queued events or the phase of a timer.
+ * <p>
+ * The executor saves the state periodically while the rule is installed,
+ * and restores it after the rule is resolved again at boot, before its
+ * event sources are installed.
+ */
+public interface Checkpointable {
+    long NO_VERSION = -1;
+
+    /**
+     * A name for the state, unique among the event sources of one trigger.
+     */
+    String getCheckpointKey();
+
+    /**
+     * A number that changes whenever the state changes, so that state that
+     * was saved already is not serialized again, or NO_VERSION if the state
+     * is not tracked and must be saved every time.
+     */
+    long getStateVersion();
+
+    /**
+     * Returns the current state, or null if there is nothing worth keeping.
+     */
+    @Nullable
+    JSONObject saveState() throws JSONException;
+
+    /**
+     * Replace the current state with one returned by saveState().
+     */
+    void restoreState(JSONObject state) throws JSONException;
+}
@@ -0,0 +1,12 @@
+package edu.stanford.braincat.rulepedia.events;
+
+/**
+ * Created by gcampagn on 6/20/15.
+ * <p>
+ * A predicate on the raw events of a source, checked when they arrive so
+ * that events nobody wants are dropped before they are queued and before
+ * the executor runs a pass for them.
+ */
+public interface EventFilter<T> {
+    boolean accept(T event);
+}
@@ -0,0 +1,172 @@
+package edu.stanford.braincat.rulepedia.events;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Created by gcampagn on 6/5/15.
+ * <p>
+ * A bounded queue of pending events for an EventSource.
+ * <p>
+ * What happens when an event arrives and the queue is full depends on the
+ * overflow policy chosen by the source:
+ * <ul>
+ * <li>DROP_OLDEST: the oldest pending event is discarded</li>
+ * <li>COALESCE_LATEST: the newest pending event is replaced, so that rules
+ * still see the most recent state</li>
+ * <li>BLOCK: the event is refused and offer() returns false, the producer
+ * should hold on to it and try again once the queue drains</li>
+ * </ul>
+ * Like event sources themselves, queues are only accessed from the rule
+ * executor thread.
+ */
+public class EventQueue<E> {
+    public enum OverflowPolicy {
+        DROP_OLDEST, COALESCE_LATEST, BLOCK
+    }
+
+    public static final int DEFAULT_CAPACITY = 64;
+
+    private final ArrayDeque<E> queue;
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private long droppedCount;
+    // bumped on every change, see getVersion()
+    private long version;
+
+    public EventQueue(int capacity, OverflowPolicy policy) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity must be positive");
+
+        this.queue = new ArrayDeque<>(Math.min(capacity, DEFAULT_CAPACITY));
+        this.capacity = capacity;
+        this.policy = policy;
+        droppedCount = 0;
+    }
+
+    public EventQueue(OverflowPolicy policy) {
+        this(DEFAULT_CAPACITY, policy);
+    }
+
+    /**
+     * Called with events that are discarded because of overflow, so that
+     * sources can release resources associated with them.
+     */
+    protected void onDiscard(E event) {
+    }
+
+    public boolean offer(E event) {
+        if (queue.size() < capacity) {
+            queue.offerLast(event);
+            version++;
+            return true;
+        }
+
+        switch (policy) {
+            case DROP_OLDEST:
+                onDiscard(queue.pollFirst());
+                queue.offerLast(event);
+                droppedCount++;
+                version++;
+                return true;
+
+            case COALESCE_LATEST:
+                onDiscard(queue.pollLast());
+                queue.offerLast(event);
+                droppedCount++;
+                version++;
+                return true;
+
+            case BLOCK:
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Offer events that must stay together, such as the parts of one
+     * broadcast.
+     * <p>
+     * With BLOCK, the batch is refused unless it fits, except that an empty
+     * queue takes it whole even if it is larger than the capacity, so that
+     * a batch is never split or lost. With the other policies, the events
+     * are offered one by one.
+     */
+    public boolean offerAll(Collection<? extends E> events) {
+        if (policy == OverflowPolicy.BLOCK) {
+            if (events.size() > remainingCapacity() && !queue.isEmpty())
+                return false;
+            queue.addAll(events);
+            version++;
+            return true;
+        }
+
+        for (E event : events)
+            offer(event);
+        return true;
+    }
+
+    public E peek() {
+        return queue.peekFirst();
+    }
+
+    public E element() {
+        E event = queue.peekFirst();
+        if (event == null)
+            throw new NoSuchElementException();
+        return event;
+    }
+
+    public E poll() {
+        E event = queue.pollFirst();
+        if (event != null)
+            version++;
+        return event;
+    }
+
+    public boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    public int size() {
+        return queue.size();
+    }
+
+    public int remainingCapacity() {
+        return capacity - queue.size();
+    }
+
+    /**
+     * Returns the number of events lost or coalesced because the queue was full.
+     */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * Returns a number that changes whenever the content of the queue
+     * changes.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns a copy of the pending events, oldest first.
+     */
+    public List<E> snapshot() {
+        return new ArrayList<>(queue);
+    }
+
+    public void clear() {
+        if (queue.isEmpty())
+            return;
+
+        while (!queue.isEmpty())
+            onDiscard(queue.pollFirst());
+        version++;
+    }
+}
@@ -7,8 +7,15 @@ import android.support.annotation.NonNull;
 
 /**
  * Created by gcampagn on 5/26/15.
+ * <p>
+ * Event sources deliver on this handler, and every message is followed by
+ * a call to messageReceived(), unless the source dropped the event that
+ * the message carried (see eventFiltered()).
  */
 public abstract class EventSourceHandler extends Handler {
+    // only touched on the looper thread
+    private boolean filtered;
+
     public EventSourceHandler(Looper looper) {
         super(looper);
     }
@@ -19,9 +26,23 @@ public abstract class EventSourceHandler extends Handler {
 
     @Override
     public void dispatchMessage(@NonNull Message message) {
+        filtered = false;
         super.dispatchMessage(message);
+        if (filtered) {
+            filtered = false;
+            return;
+        }
         messageReceived();
     }
 
+    /**
+     * Called by an event source, while handling a message of this handler,
+     * when it rejected the event the message was for, so there is nothing
+     * new to process.
+     */
+    public void eventFiltered() {
+        filtered = true;
+    }
+
     public abstract void messageReceived();
 }
@@ -0,0 +1,44 @@
+package edu.stanford.braincat.rulepedia.events;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Created by gcampagn on 6/20/15.
+ * <p>
+ * The filters of everyone subscribed to a shared event source. An event is
+ * accepted if any subscriber wants it, or if nobody registered a filter at
+ * all; a subscriber that wants every event registers a filter accepting
+ * everything.
+ * <p>
+ * Filters are compared by identity, so registering the same filter twice
+ * is harmless.
+ */
+public class FilterSet<T> implements EventFilter<T> {
+    private final Set<EventFilter<T>> filters;
+
+    public FilterSet() {
+        filters = Collections.newSetFromMap(new IdentityHashMap<EventFilter<T>, Boolean>());
+    }
+
+    public synchronized void add(EventFilter<T> filter) {
+        filters.add(filter);
+    }
+
+    public synchronized void remove(EventFilter<T> filter) {
+        filters.remove(filter);
+    }
+
+    @Override
+    public synchronized boolean accept(T event) {
+        if (filters.isEmpty())
+            return true;
+
+        for (EventFilter<T> f : filters) {
+            if (f.accept(event))
+                return true;
+        }
+        return false;
+    }
+}
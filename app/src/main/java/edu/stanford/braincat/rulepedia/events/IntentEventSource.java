@@ -4,40 +4,167 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.support.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
 
 import java.io.IOException;
+import java.net.URISyntaxException;
 import java.util.ArrayDeque;
-import java.util.Queue;
+import java.util.List;
 
 /**
  * Created by gcampagn on 5/2/15.
+ * <p>
+ * Pending intents are checkpointed as intent URIs, which keep the action,
+ * data, categories and the extras of primitive types.
+ * <p>
+ * An EventFilter can reject intents in onReceive(), for what the
+ * IntentFilter cannot express; rejected intents are not queued and do not
+ * cause a pass of the executor.
+ * <p>
+ * With the BLOCK overflow policy no intent is lost: those the queue refuses
+ * wait in a backlog, and move to the queue as it drains.
  */
-public class IntentEventSource implements EventSource {
+public class IntentEventSource implements EventSource, Checkpointable {
     private final IntentFilter filter;
-    private final Queue<Intent> queue;
+    private final EventQueue<Intent> queue;
+    // intents refused by a full BLOCK queue, oldest first
+    private final ArrayDeque<Intent> backlog;
+    private long backlogVersion;
+    private volatile EventFilter<Intent> eventFilter;
     private BroadcastReceiver receiver;
+    private EventSourceHandler handler;
 
     public class EventSourceBroadcastReceiver extends BroadcastReceiver {
         @Override
         public void onReceive(Context ctx, Intent intent) {
-            queue.offer(intent);
+            EventFilter<Intent> currentFilter = eventFilter;
+            if (currentFilter != null && !currentFilter.accept(intent)) {
+                // we run on the handler, as a message of its own
+                if (handler != null)
+                    handler.eventFiltered();
+                return;
+            }
+
+            if (!backlog.isEmpty() || !queue.offer(intent)) {
+                backlog.offerLast(intent);
+                backlogVersion++;
+            }
         }
     }
 
+    /**
+     * A filter accepting the intents that have the category. An IntentFilter
+     * with the category still lets through intents with no category.
+     */
+    public static EventFilter<Intent> hasCategory(final String category) {
+        return new EventFilter<Intent>() {
+            @Override
+            public boolean accept(Intent intent) {
+                return intent.hasCategory(category);
+            }
+        };
+    }
+
     public IntentEventSource(IntentFilter filter) {
+        this(filter, EventQueue.DEFAULT_CAPACITY, EventQueue.OverflowPolicy.DROP_OLDEST);
+    }
+
+    public IntentEventSource(IntentFilter filter, int capacity, EventQueue.OverflowPolicy policy) {
         this.filter = filter;
-        this.queue = new ArrayDeque<>();
+        this.queue = new EventQueue<>(capacity, policy);
+        this.backlog = new ArrayDeque<>();
+    }
+
+    private void drainBacklog() {
+        while (!backlog.isEmpty() && queue.offer(backlog.peekFirst())) {
+            backlog.pollFirst();
+            backlogVersion++;
+        }
+    }
+
+    private void clearBacklog() {
+        if (backlog.isEmpty())
+            return;
+        backlog.clear();
+        backlogVersion++;
+    }
+
+    public void setEventFilter(@Nullable EventFilter<Intent> eventFilter) {
+        this.eventFilter = eventFilter;
     }
 
     public Intent getLastIntent() {
         return queue.element();
     }
 
+    public long getDroppedCount() {
+        return queue.getDroppedCount();
+    }
+
+    /**
+     * Returns the intents not yet consumed, including the backlog, oldest
+     * first.
+     */
+    public List<Intent> getPendingIntents() {
+        List<Intent> pending = queue.snapshot();
+        pending.addAll(backlog);
+        return pending;
+    }
+
+    @Override
+    public String getCheckpointKey() {
+        return filter.countActions() > 0 ? "intent:" + filter.getAction(0) : "intent";
+    }
+
+    @Override
+    public long getStateVersion() {
+        // both only grow
+        return queue.getVersion() + backlogVersion;
+    }
+
+    @Override
+    public JSONObject saveState() throws JSONException {
+        if (queue.isEmpty())
+            return null;
+
+        JSONArray intents = new JSONArray();
+        for (Intent intent : getPendingIntents())
+            intents.put(intent.toUri(Intent.URI_INTENT_SCHEME));
+
+        JSONObject state = new JSONObject();
+        state.put("intents", intents);
+        return state;
+    }
+
+    @Override
+    public void restoreState(JSONObject state) throws JSONException {
+        queue.clear();
+        clearBacklog();
+
+        JSONArray intents = state.getJSONArray("intents");
+        for (int i = 0; i < intents.length(); i++) {
+            try {
+                Intent intent = Intent.parseUri(intents.getString(i), Intent.URI_INTENT_SCHEME);
+                if (!backlog.isEmpty() || !queue.offer(intent)) {
+                    backlog.offerLast(intent);
+                    backlogVersion++;
+                }
+            } catch (URISyntaxException e) {
+                throw new JSONException("malformed intent URI " + intents.getString(i));
+            }
+        }
+    }
+
     @Override
     public void install(Context ctx, EventSourceHandler handler) throws IOException {
         if (receiver != null)
             throw new IllegalStateException("double install");
         receiver = new EventSourceBroadcastReceiver();
+        this.handler = handler;
         ctx.registerReceiver(receiver, filter, null, handler);
     }
 
@@ -47,6 +174,9 @@ public class IntentEventSource implements EventSource {
             throw new IllegalStateException("double uninstall");
         ctx.unregisterReceiver(receiver);
         receiver = null;
+        handler = null;
+        queue.clear();
+        clearBacklog();
     }
 
     @Override
@@ -57,5 +187,6 @@ public class IntentEventSource implements EventSource {
     @Override
     public void updateState() {
         queue.poll();
+        drainBacklog();
     }
 }
@@ -15,7 +15,7 @@ import java.io.IOException;
 /**
  * Created by gcampagn on 5/26/15.
  */
-public abstract class MessengerEventSource implements EventSource {
+public abstract class MessengerEventSource implements StagedEventSource {
     private IBinder service;
     private ServiceConnection connection;
 
@@ -54,6 +54,11 @@ public abstract class MessengerEventSource implements EventSource {
         return service;
     }
 
+    @Override
+    public ActivationStage getActivationStage() {
+        return ActivationStage.REMOTE_SERVICE;
+    }
+
     @Override
     public void install(Context ctx, EventSourceHandler handler) throws IOException {
         MessageHandler self = new MessageHandler(handler.getLooper(), this, handler);
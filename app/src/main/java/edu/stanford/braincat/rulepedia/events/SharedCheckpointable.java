@@ -0,0 +1,11 @@
+package edu.stanford.braincat.rulepedia.events;
+
+/**
+ * Created by gcampagn on 6/17/15.
+ * <p>
+ * A Checkpointable event source with one instance for every rule that
+ * uses it, such as the event source of a channel. Its state is saved once,
+ * not once per rule, so its key must be unique among all event sources.
+ */
+public interface SharedCheckpointable extends Checkpointable {
+}
@@ -0,0 +1,11 @@
+package edu.stanford.braincat.rulepedia.events;
+
+/**
+ * Created by gcampagn on 6/6/15.
+ * <p>
+ * An event source that is more expensive to install than a local one.
+ * Sources that don't implement this interface are assumed to be LOCAL.
+ */
+public interface StagedEventSource extends EventSource {
+    ActivationStage getActivationStage();
+}
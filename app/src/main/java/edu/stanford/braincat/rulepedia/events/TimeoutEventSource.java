@@ -3,42 +3,106 @@ package edu.stanford.braincat.rulepedia.events;
 import android.content.Context;
 import android.os.Handler;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
 /**
  * Created by gcampagn on 4/30/15.
+ * <p>
+ * The checkpoint records when the next tick is due in wall clock time, so a
+ * restarted source resumes its phase instead of waiting a full timeout.
  */
-public class TimeoutEventSource implements EventSource, Runnable {
+public class TimeoutEventSource implements EventSource, Runnable, Checkpointable {
     private final long timeout;
     private Handler handler;
     private boolean triggered;
+    // wall clock time of the next tick, while installed
+    private long dueTime;
+    // from restoreState(), applied by the next install()
+    private long restoredDelay;
+    private boolean restoredTriggered;
+    // bumped whenever what saveState() returns changes
+    private long version;
 
     public TimeoutEventSource(long timeout) {
         if (timeout <= 0)
             throw new IllegalArgumentException("timeout must be positive");
 
         this.timeout = timeout;
+        restoredDelay = -1;
     }
 
     @Override
     public void run() {
-        if (handler != null)
+        if (handler != null) {
             triggered = true;
+            version++;
+        }
     }
 
     private void post() {
+        post(timeout);
+    }
+
+    private void post(long delay) {
         triggered = false;
-        handler.postDelayed(this, timeout);
+        dueTime = System.currentTimeMillis() + delay;
+        version++;
+        handler.postDelayed(this, delay);
     }
 
     @Override
     public void install(Context ctx, EventSourceHandler handler) {
         this.handler = handler;
-        post();
+
+        if (restoredTriggered) {
+            // the tick was not handled before the checkpoint, updateState()
+            // schedules the next one
+            triggered = true;
+            version++;
+        } else if (restoredDelay >= 0) {
+            post(restoredDelay);
+        } else {
+            post();
+        }
+        restoredDelay = -1;
+        restoredTriggered = false;
+    }
+
+    @Override
+    public String getCheckpointKey() {
+        return "timeout:" + timeout;
+    }
+
+    @Override
+    public long getStateVersion() {
+        return version;
+    }
+
+    @Override
+    public JSONObject saveState() throws JSONException {
+        if (handler == null)
+            return null;
+
+        JSONObject state = new JSONObject();
+        state.put("triggered", triggered);
+        state.put("due", dueTime);
+        return state;
+    }
+
+    @Override
+    public void restoreState(JSONObject state) throws JSONException {
+        restoredTriggered = state.getBoolean("triggered");
+        // the clock might have changed, never wait longer than a timeout
+        long delay = state.getLong("due") - System.currentTimeMillis();
+        restoredDelay = Math.max(0, Math.min(delay, timeout));
     }
 
     @Override
     public void uninstall(Context ctx) {
         handler = null;
         triggered = false;
+        version++;
     }
 
     @Override
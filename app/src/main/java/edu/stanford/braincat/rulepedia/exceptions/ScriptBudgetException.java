@@ -0,0 +1,13 @@
+package edu.stanford.braincat.rulepedia.exceptions;
+
+/**
+ * Created by gcampagn on 6/8/15.
+ * <p>
+ * A channel script was stopped because it ran for more instructions or
+ * longer than its channel allows.
+ */
+public class ScriptBudgetException extends RuleExecutionException {
+    public ScriptBudgetException(String message) {
+        super(message);
+    }
+}
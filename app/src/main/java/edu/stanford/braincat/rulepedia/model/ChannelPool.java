@@ -1,22 +1,34 @@
 package edu.stanford.braincat.rulepedia.model;
 
+import android.content.Context;
 import android.util.Log;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
 
+import edu.stanford.braincat.rulepedia.channels.BinaryJSON;
 import edu.stanford.braincat.rulepedia.channels.HTTPUtil;
 import edu.stanford.braincat.rulepedia.channels.android.NotificationManagerChannelFactory;
 import edu.stanford.braincat.rulepedia.channels.android.SMSChannelFactory;
-import edu.stanford.braincat.rulepedia.channels.generic.GenericChannelFactory;
+import edu.stanford.braincat.rulepedia.channels.generic.LazyChannelFactory;
 import edu.stanford.braincat.rulepedia.channels.googlefit.GoogleFitChannelFactory;
 import edu.stanford.braincat.rulepedia.channels.omlet.OmletChannelFactory;
+import edu.stanford.braincat.rulepedia.service.CacheRegistry;
+import edu.stanford.braincat.rulepedia.service.ManagedCache;
 
 /**
  * Created by gcampagn on 5/9/15.
+ * <p>
+ * The generic channels of the catalog are registered as LazyChannelFactory
+ * stubs, the full factories are only built for the channels that are used.
  */
 public class ChannelPool extends ObjectPool<Channel, ChannelFactory> {
     public static final String KIND = "channel";
@@ -28,41 +40,176 @@ public class ChannelPool extends ObjectPool<Channel, ChannelFactory> {
 
     public static final String LOG_TAG = "rulepedia.Channels";
 
+    // binary copy of the last channel list we got from the server
+    private static final String CATALOG_CACHE = "catalog.bin";
+
     private static final ChannelPool instance = new ChannelPool();
 
     public static ChannelPool get() {
         return instance;
     }
 
+    private boolean loaded;
+    private final List<LazyChannelFactory> catalog;
+
     private ChannelPool() {
         super(KIND);
+        catalog = new ArrayList<>();
 
         registerFactory(new SMSChannelFactory());
         registerFactory(new NotificationManagerChannelFactory());
         registerFactory(new GoogleFitChannelFactory());
         registerFactory(new OmletChannelFactory());
 
-        try {
-            JSONArray jsonChannels = (JSONArray) HTTPUtil.getJSON(CHANNELS_DB).nextValue();
-
-            for (int i = 0; i < jsonChannels.length(); i++) {
-                JSONObject channel = jsonChannels.getJSONObject(i);
+        CacheRegistry.get().register("channel factories", new ManagedCache() {
+            @Override
+            public long getSize() {
+                // what the resident factories were decoded from, a lower bound
+                // of what they take on the heap
+                synchronized (ChannelPool.this) {
+                    long size = 0;
+                    for (LazyChannelFactory stub : catalog) {
+                        if (stub.isResident())
+                            size += stub.getEncodedSize();
+                    }
+                    return size;
+                }
+            }
 
-                String id = channel.getString("id");
-                if (hasFactory(id))
-                    continue;
+            @Override
+            public long getHitCount() {
+                synchronized (ChannelPool.this) {
+                    long hits = 0;
+                    for (LazyChannelFactory stub : catalog)
+                        hits += stub.getHitCount();
+                    return hits;
+                }
+            }
 
-                try {
-                    ChannelFactory factory = new GenericChannelFactory(channel);
-                    registerFactory(factory);
-                } catch (JSONException e) {
-                    Log.w(LOG_TAG, "Failed to parse channel factory " + id, e);
+            @Override
+            public long getMissCount() {
+                synchronized (ChannelPool.this) {
+                    long misses = 0;
+                    for (LazyChannelFactory stub : catalog)
+                        misses += stub.getMissCount();
+                    return misses;
                 }
             }
+
+            @Override
+            public void shrink(float keep) {
+                // the factories are only softly reachable, no point in keeping some
+                if (keep < 1)
+                    trimMemory();
+            }
+        }, CacheRegistry.COST_MEDIUM);
+    }
+
+    private void registerStub(LazyChannelFactory stub) {
+        if (hasFactory(stub.getName()))
+            return;
+
+        registerFactory(stub);
+        catalog.add(stub);
+    }
+
+    private void registerGenericFactories(JSONArray jsonChannels) throws JSONException {
+        for (int i = 0; i < jsonChannels.length(); i++) {
+            JSONObject channel = jsonChannels.getJSONObject(i);
+
+            try {
+                registerStub(LazyChannelFactory.fromJSON(channel));
+            } catch (JSONException e) {
+                Log.w(LOG_TAG, "Failed to parse channel factory " + i, e);
+            }
+        }
+    }
+
+    private void registerGenericFactories(BinaryJSON.Document cached) throws JSONException {
+        for (int i = 0; i < cached.length(); i++) {
+            try {
+                registerStub(LazyChannelFactory.fromCatalog(cached, i));
+            } catch (JSONException e) {
+                Log.w(LOG_TAG, "Failed to parse channel factory " + i, e);
+            }
+        }
+    }
+
+    private void saveCatalog(Context ctx, JSONArray jsonChannels) {
+        File file = ctx.getFileStreamPath(CATALOG_CACHE);
+        File tmpFile = ctx.getFileStreamPath(CATALOG_CACHE + ".tmp");
+
+        try {
+            try (FileOutputStream output = new FileOutputStream(tmpFile)) {
+                BinaryJSON.write(output, jsonChannels);
+            }
+            if (!tmpFile.renameTo(file))
+                throw new IOException("Failed to rename " + tmpFile + " to " + file);
         } catch (IOException | JSONException e) {
+            Log.w(LOG_TAG, "Failed to cache channel list", e);
+        }
+    }
+
+    /**
+     * Load the generic channels from the web server, or from the copy cached
+     * on disk if the server cannot be reached.
+     * <p>
+     * The stubs are built from the mapped copy on disk whenever possible, so
+     * the factories can be decoded again from it after being trimmed.
+     */
+    public synchronized void load(Context ctx) {
+        if (loaded)
+            return;
+        loaded = true;
+
+        JSONArray jsonChannels = null;
+        try {
+            jsonChannels = (JSONArray) HTTPUtil.getJSON(CHANNELS_DB).nextValue();
+            saveCatalog(ctx, jsonChannels);
+        } catch (IOException | JSONException | ClassCastException e) {
             Log.e(LOG_TAG, "Failed to retrieve channel list from web server", e);
         }
+
+        File file = ctx.getFileStreamPath(CATALOG_CACHE);
+        if (file.exists()) {
+            try {
+                registerGenericFactories(BinaryJSON.map(file));
+                Log.i(LOG_TAG, "Loaded " + catalog.size() + " channels from the catalog");
+                return;
+            } catch (IOException | JSONException e) {
+                Log.e(LOG_TAG, "Failed to load cached channel list", e);
+            }
+        }
+
+        if (jsonChannels == null)
+            return;
+        try {
+            registerGenericFactories(jsonChannels);
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, "Failed to parse channel list", e);
+        }
     }
 
+    /**
+     * Let the generic channel factories that are not in use be collected.
+     */
+    public synchronized void trimMemory() {
+        for (LazyChannelFactory stub : catalog)
+            stub.trimMemory();
+    }
 
+    public synchronized void dump(PrintWriter writer) {
+        int resident = 0;
+        long deferred = 0;
+        for (LazyChannelFactory stub : catalog) {
+            if (stub.isResident())
+                resident++;
+            else
+                deferred += stub.getEncodedSize();
+        }
+
+        writer.println("Channel catalog:");
+        writer.println("  " + catalog.size() + " in catalog, " + resident + " resident, ~"
+                + (deferred / 1024) + " KB not decoded");
+    }
 }
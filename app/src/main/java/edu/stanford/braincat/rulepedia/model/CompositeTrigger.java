@@ -42,6 +42,22 @@ public abstract class CompositeTrigger implements Trigger {
         return Collections.unmodifiableList(children);
     }
 
+    /**
+     * Returns true if all the leaves of this trigger are IsolatedTriggers.
+     */
+    public boolean isIsolated() {
+        for (Trigger t : children) {
+            if (t instanceof CompositeTrigger) {
+                if (!((CompositeTrigger) t).isIsolated())
+                    return false;
+            } else if (!(t instanceof IsolatedTrigger)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
     protected abstract boolean compose(boolean t1, boolean t2);
 
     protected abstract String getHumanComposeOp();
@@ -75,7 +91,7 @@ public abstract class CompositeTrigger implements Trigger {
 
     public boolean isFiring() throws RuleExecutionException {
         boolean v = compose(children.get(0).isFiring(), children.get(1).isFiring());
-        for (int i = 2; i <= children.size(); i++)
+        for (int i = 2; i < children.size(); i++)
             v = compose(v, children.get(i).isFiring());
 
         return v;
@@ -84,7 +100,7 @@ public abstract class CompositeTrigger implements Trigger {
     public String toHumanString() {
         StringBuilder builder = new StringBuilder();
         builder.append(children.get(0).toHumanString());
-        for (int i = 1; i <= children.size(); i++) {
+        for (int i = 1; i < children.size(); i++) {
             builder.append(getHumanComposeOp());
             builder.append(children.get(i).toHumanString());
         }
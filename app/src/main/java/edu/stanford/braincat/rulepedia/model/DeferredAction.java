@@ -0,0 +1,24 @@
+package edu.stanford.braincat.rulepedia.model;
+
+import android.content.Context;
+
+import edu.stanford.braincat.rulepedia.service.Callback;
+
+/**
+ * Created by gcampagn on 6/4/15.
+ * <p>
+ * An action that depends on an asynchronous resource (such as a remote
+ * service connection) and should not block the rule executor while it
+ * becomes available.
+ * <p>
+ * When a rule fires and one of its actions is not ready, the remaining
+ * actions are queued until whenReady() calls back, on the thread that
+ * fired the rule. If the resource could not be obtained, the callback gets
+ * an error and the remaining actions are dropped. Either way the outcome is
+ * reported to whoever fired the rule, see Rule.fire().
+ */
+public interface DeferredAction extends Action {
+    boolean isReady(Context ctx);
+
+    void whenReady(Context ctx, Callback<Void> callback);
+}
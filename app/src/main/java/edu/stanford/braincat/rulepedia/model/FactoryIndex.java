@@ -0,0 +1,200 @@
+package edu.stanford.braincat.rulepedia.model;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import edu.stanford.braincat.rulepedia.service.RuleExecutorService;
+
+/**
+ * Created by gcampagn on 6/14/15.
+ * <p>
+ * Finds the factories that can create an object for a URL, without asking
+ * each factory in turn.
+ * <p>
+ * Factories are stored in a trie keyed by their URL prefix, so a lookup
+ * walks the URL once. The factories that also have a URL pattern and share
+ * the same prefix are matched with one combined pattern, where each of them
+ * is an optional lookahead followed by an empty group, so the URL is tried
+ * against all of them and the groups that matched tell which ones accept it.
+ * <p>
+ * Each pattern keeps its own flags in a non-capturing group. Patterns that
+ * cannot be moved into another one, because they use backreferences (which
+ * would point to the wrong group), comments or flags that cannot be written
+ * inline, are matched one by one instead.
+ * <p>
+ * The index is immutable, ObjectPool builds a new one when factories are
+ * added.
+ */
+final class FactoryIndex<F extends ObjectPool.ObjectFactory<?>> {
+    // Pattern flags that have an inline equivalent
+    private static final int[] INLINE_FLAGS = {
+            Pattern.CASE_INSENSITIVE, Pattern.MULTILINE, Pattern.DOTALL,
+            Pattern.UNICODE_CASE, Pattern.UNIX_LINES
+    };
+    private static final String INLINE_FLAG_CHARS = "imsud";
+    // comments, which could swallow what follows the pattern, or a named
+    // group, which could clash with one of another pattern
+    private static final Pattern UNCOMBINABLE = Pattern.compile("\\(\\?(?:[a-zA-Z]*x|<[a-zA-Z])");
+
+    private static final class Node<F extends ObjectPool.ObjectFactory<?>> {
+        private final Map<Character, Node<F>> children = new HashMap<>();
+        private final List<F> prefixFactories = new ArrayList<>();
+        private final List<F> patternFactories = new ArrayList<>();
+        private Pattern combined;
+        // group index of each pattern factory in the combined pattern,
+        // or 0 if it is matched on its own
+        private int[] groups;
+
+        private void compile() {
+            StringBuilder builder = new StringBuilder();
+            groups = new int[patternFactories.size()];
+            int group = 1;
+            for (int i = 0; i < patternFactories.size(); i++) {
+                Pattern pattern = patternFactories.get(i).getUrlPattern();
+                String flags = inlineFlags(pattern);
+                if (flags == null)
+                    continue;
+
+                builder.append("(?:(?=(?").append(flags).append(':').append(pattern.pattern()).append(")\\z)())?");
+                group += pattern.matcher("").groupCount();
+                groups[i] = group++;
+            }
+            if (builder.length() == 0)
+                return;
+
+            try {
+                combined = Pattern.compile(builder.toString());
+            } catch (PatternSyntaxException e) {
+                // something inlineFlags() did not see coming, fall back to matching one by one
+                Log.w(RuleExecutorService.LOG_TAG, "Failed to combine URL patterns", e);
+                groups = new int[patternFactories.size()];
+            }
+        }
+
+        private void match(String url, List<F> into) {
+            Matcher m = null;
+            if (combined != null) {
+                m = combined.matcher(url);
+                // every alternative is optional and empty, so this always succeeds
+                m.lookingAt();
+            }
+
+            for (int i = 0; i < groups.length; i++) {
+                boolean matches;
+                if (groups[i] != 0)
+                    matches = m.group(groups[i]) != null;
+                else
+                    matches = patternFactories.get(i).getUrlPattern().matcher(url).matches();
+                if (matches)
+                    into.add(patternFactories.get(i));
+            }
+            into.addAll(prefixFactories);
+        }
+    }
+
+    /**
+     * Returns the flags of the pattern in inline form, or null if it cannot
+     * be part of a combined pattern.
+     */
+    private static String inlineFlags(Pattern pattern) {
+        String regex = pattern.pattern();
+        if (hasBackreference(regex) || UNCOMBINABLE.matcher(regex).find())
+            return null;
+
+        StringBuilder flags = new StringBuilder();
+        int remaining = pattern.flags();
+        for (int i = 0; i < INLINE_FLAGS.length; i++) {
+            if ((remaining & INLINE_FLAGS[i]) != 0) {
+                flags.append(INLINE_FLAG_CHARS.charAt(i));
+                remaining &= ~INLINE_FLAGS[i];
+            }
+        }
+        // COMMENTS, LITERAL or CANON_EQ
+        if (remaining != 0)
+            return null;
+        return flags.toString();
+    }
+
+    private static boolean hasBackreference(String regex) {
+        for (int i = 0; i < regex.length() - 1; i++) {
+            if (regex.charAt(i) != '\\')
+                continue;
+
+            char next = regex.charAt(i + 1);
+            if ((next >= '1' && next <= '9') || next == 'k')
+                return true;
+            if (next == 'Q') {
+                // quoted up to \E
+                int end = regex.indexOf("\\E", i + 2);
+                if (end < 0)
+                    return false;
+                i = end;
+            }
+            i++;
+        }
+        return false;
+    }
+
+    private final Node<F> root;
+
+    FactoryIndex(Collection<F> factories) {
+        root = new Node<>();
+
+        List<Node<F>> withPatterns = new ArrayList<>();
+        for (F factory : factories) {
+            Node<F> node = root;
+            String prefix = factory.getPrefix();
+            for (int i = 0; i < prefix.length(); i++) {
+                Node<F> child = node.children.get(prefix.charAt(i));
+                if (child == null) {
+                    child = new Node<>();
+                    node.children.put(prefix.charAt(i), child);
+                }
+                node = child;
+            }
+
+            if (factory.getUrlPattern() != null) {
+                node.patternFactories.add(factory);
+                withPatterns.add(node);
+            } else {
+                node.prefixFactories.add(factory);
+            }
+        }
+
+        for (Node<F> node : withPatterns) {
+            if (node.combined == null)
+                node.compile();
+        }
+    }
+
+    /**
+     * Returns the factories that accept the URL, those with the longest
+     * prefix first.
+     */
+    List<F> lookup(String url) {
+        List<Node<F>> path = new ArrayList<>();
+
+        Node<F> node = root;
+        path.add(node);
+        for (int i = 0; i < url.length(); i++) {
+            node = node.children.get(url.charAt(i));
+            if (node == null)
+                break;
+            path.add(node);
+        }
+
+        List<F> result = new ArrayList<>();
+        for (int i = path.size() - 1; i >= 0; i--)
+            path.get(i).match(url, result);
+        return result.isEmpty() ? Collections.<F>emptyList() : result;
+    }
+}
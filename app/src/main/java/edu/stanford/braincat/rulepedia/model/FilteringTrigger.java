@@ -0,0 +1,18 @@
+package edu.stanford.braincat.rulepedia.model;
+
+/**
+ * Created by gcampagn on 6/20/15.
+ * <p>
+ * A trigger that can tell its event sources which events it cares about,
+ * so the others are dropped at the source.
+ * <p>
+ * The executor registers the filters once the trigger is resolved, before
+ * installing its event sources, and unregisters them when the rule is
+ * disabled. The trigger must still check the events it gets, as the
+ * source also lets through what other triggers want.
+ */
+public interface FilteringTrigger extends Trigger {
+    void registerFilters();
+
+    void unregisterFilters();
+}
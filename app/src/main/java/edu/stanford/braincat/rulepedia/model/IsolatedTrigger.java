@@ -0,0 +1,13 @@
+package edu.stanford.braincat.rulepedia.model;
+
+/**
+ * Created by gcampagn on 6/6/15.
+ * <p>
+ * Marker for triggers whose isFiring() only reads the state captured by
+ * the last update() and writes state private to the trigger, so that it
+ * can be evaluated on a worker thread concurrently with other rules.
+ * <p>
+ * A composite trigger is isolated if all its children are.
+ */
+public interface IsolatedTrigger extends Trigger {
+}
@@ -1,10 +1,13 @@
 package edu.stanford.braincat.rulepedia.model;
 
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.util.HashMap;
+import android.support.annotation.Nullable;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.util.Map;
-import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -12,6 +15,9 @@ import edu.stanford.braincat.rulepedia.exceptions.UnknownObjectException;
 
 /**
  * Created by gcampagn on 4/30/15.
+ * <p>
+ * Objects are cached weakly by URL, and looked up without locking. On a
+ * miss, the factory is found through a FactoryIndex.
  */
 public class ObjectPool<K extends ObjectPool.Object, F extends ObjectPool.ObjectFactory<K>> {
     public static final String PREFIX = "https://rulepedia.stanford.edu/oid/";
@@ -74,6 +80,15 @@ public class ObjectPool<K extends ObjectPool.Object, F extends ObjectPool.Object
             return url.startsWith(prefix);
         }
 
+        /**
+         * If not null, only URLs that start with the prefix and match this
+         * pattern are passed to create().
+         */
+        @Nullable
+        public Pattern getUrlPattern() {
+            return null;
+        }
+
         public abstract K create(String url) throws UnknownObjectException;
 
         public abstract K createPlaceholder(String url);
@@ -81,43 +96,96 @@ public class ObjectPool<K extends ObjectPool.Object, F extends ObjectPool.Object
         public abstract String getName();
     }
 
+    // a weak reference that remembers its key, to clean up the cache
+    private static class ObjectRef<K> extends WeakReference<K> {
+        private final String url;
+
+        private ObjectRef(String url, K object, ReferenceQueue<? super K> queue) {
+            super(object, queue);
+            this.url = url;
+        }
+    }
+
     private final Pattern placeholderPattern;
-    private final Map<String, K> knownObjects;
+    private final ConcurrentMap<String, ObjectRef<K>> knownObjects;
+    private final ReferenceQueue<K> collectedObjects;
     private final Map<String, F> knownFactories;
+    // rebuilt lazily after factories are registered
+    private volatile FactoryIndex<F> factoryIndex;
 
     protected ObjectPool(String kind) {
         placeholderPattern = Pattern.compile("^https://rulepedia\\.stanford\\.edu/oid/placeholder/" + kind + "/([[a-z]\\-]+)$");
-        knownObjects = new WeakHashMap<>();
-        knownFactories = new HashMap<>();
+        knownObjects = new ConcurrentHashMap<>();
+        collectedObjects = new ReferenceQueue<>();
+        knownFactories = new ConcurrentHashMap<>();
     }
 
-    protected void registerFactory(F factory) {
+    protected synchronized void registerFactory(F factory) {
         knownFactories.put(factory.getName(), factory);
+        factoryIndex = null;
     }
 
     protected boolean hasFactory(String name) {
         return knownFactories.containsKey(name);
     }
 
-    public synchronized K getObject(String url) throws UnknownObjectException {
-        K existing = knownObjects.get(url);
-        if (existing != null)
-            return existing;
+    private FactoryIndex<F> getFactoryIndex() {
+        FactoryIndex<F> index = factoryIndex;
+        if (index != null)
+            return index;
 
-        // verify the url is valid
-        try {
-            new URL(url);
-        } catch (MalformedURLException mue) {
-            throw new UnknownObjectException(url);
+        synchronized (this) {
+            if (factoryIndex == null)
+                factoryIndex = new FactoryIndex<>(knownFactories.values());
+            return factoryIndex;
         }
+    }
 
-        for (ObjectFactory<K> factory : knownFactories.values()) {
-            if (factory.acceptsURL(url)) {
-                K newObject = factory.create(url);
-                knownObjects.put(url, newObject);
+    private void expungeCollected() {
+        Reference<? extends K> ref;
+        while ((ref = collectedObjects.poll()) != null)
+            knownObjects.remove(((ObjectRef<?>) ref).url, ref);
+    }
+
+    /**
+     * Cache an object, unless another thread cached one for the same URL
+     * first, in which case that one is returned.
+     */
+    private K cacheObject(String url, K newObject) {
+        ObjectRef<K> newRef = new ObjectRef<>(url, newObject, collectedObjects);
+
+        while (true) {
+            ObjectRef<K> oldRef = knownObjects.putIfAbsent(url, newRef);
+            if (oldRef == null)
                 return newObject;
+
+            K existing = oldRef.get();
+            if (existing != null)
+                return existing;
+            if (knownObjects.replace(url, oldRef, newRef))
+                return newObject;
+        }
+    }
+
+    public K getObject(String url) throws UnknownObjectException {
+        ObjectRef<K> ref = knownObjects.get(url);
+        K existing = ref != null ? ref.get() : null;
+        if (existing != null)
+            return existing;
+
+        expungeCollected();
+
+        UnknownObjectException error = null;
+        for (F factory : getFactoryIndex().lookup(url)) {
+            try {
+                return cacheObject(url, factory.create(url));
+            } catch (UnknownObjectException e) {
+                // try a factory with a shorter prefix
+                error = e;
             }
         }
+        if (error != null)
+            throw error;
 
         Matcher m = placeholderPattern.matcher(url);
         if (m.matches()) {
@@ -0,0 +1,147 @@
+package edu.stanford.braincat.rulepedia.model;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import edu.stanford.braincat.rulepedia.channels.Util;
+
+/**
+ * Created by gcampagn on 6/3/15.
+ * <p>
+ * A byte bounded cache of downloaded pictures, stored as files in the
+ * application cache directory.
+ * <p>
+ * The modification time of a file is when the picture was last downloaded
+ * or revalidated, and the oldest files are evicted first.
+ */
+public class PictureDiskCache {
+    private static final String LOG_TAG = "rulepedia.Pictures";
+
+    private final File directory;
+    private final long maxBytes;
+    private long currentBytes;
+
+    public PictureDiskCache(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+
+        if (!directory.isDirectory() && !directory.mkdirs())
+            Log.w(LOG_TAG, "Failed to create picture cache directory " + directory);
+
+        currentBytes = 0;
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File f : files)
+                currentBytes += f.length();
+        }
+    }
+
+    private static String keyToFileName(String key) {
+        return Util.toSHA1(key);
+    }
+
+    /**
+     * Returns the cached file for this key, or null if it is not in the cache.
+     */
+    public synchronized File get(String key) {
+        File file = new File(directory, keyToFileName(key));
+        if (!file.isFile())
+            return null;
+        return file;
+    }
+
+    /**
+     * Mark a cached file as up to date with its source.
+     */
+    public synchronized void touch(File file) {
+        //noinspection ResultOfMethodCallIgnored
+        file.setLastModified(System.currentTimeMillis());
+    }
+
+    /**
+     * Store the content of the stream in the cache, and return the
+     * corresponding file.
+     */
+    public File put(String key, InputStream input) throws IOException {
+        String fileName = keyToFileName(key);
+        File tmpFile = new File(directory, fileName + ".tmp");
+
+        long size = 0;
+        try (OutputStream output = new FileOutputStream(tmpFile)) {
+            byte[] buffer = new byte[8192];
+            while (true) {
+                int read = input.read(buffer);
+                if (read < 0)
+                    break;
+                output.write(buffer, 0, read);
+                size += read;
+            }
+        } catch (IOException e) {
+            //noinspection ResultOfMethodCallIgnored
+            tmpFile.delete();
+            throw e;
+        }
+
+        synchronized (this) {
+            File file = new File(directory, fileName);
+            if (file.exists()) {
+                currentBytes -= file.length();
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+
+            // make room first, so that we never evict the file we are returning
+            trimToSize(maxBytes - size);
+
+            if (!tmpFile.renameTo(file)) {
+                //noinspection ResultOfMethodCallIgnored
+                tmpFile.delete();
+                throw new IOException("Failed to store picture in disk cache");
+            }
+            currentBytes += size;
+            return file;
+        }
+    }
+
+    public synchronized long size() {
+        return currentBytes;
+    }
+
+    public synchronized void trimToSize(long bytes) {
+        if (currentBytes <= bytes)
+            return;
+
+        File[] files = directory.listFiles();
+        if (files == null)
+            return;
+
+        // oldest download first
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long lhsTime = lhs.lastModified();
+                long rhsTime = rhs.lastModified();
+                return lhsTime < rhsTime ? -1 : (lhsTime == rhsTime ? 0 : 1);
+            }
+        });
+
+        for (File f : files) {
+            if (currentBytes <= bytes)
+                break;
+            // being written right now
+            if (f.getName().endsWith(".tmp"))
+                continue;
+
+            long length = f.length();
+            if (f.delete())
+                currentBytes -= length;
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package edu.stanford.braincat.rulepedia.model;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.support.annotation.Nullable;
+import android.util.Base64;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+
+import edu.stanford.braincat.rulepedia.channels.Util;
+import edu.stanford.braincat.rulepedia.exceptions.UnknownObjectException;
+import edu.stanford.braincat.rulepedia.service.CacheRegistry;
+import edu.stanford.braincat.rulepedia.service.LruManagedCache;
+
+/**
+ * Created by gcampagn on 6/3/15.
+ * <p>
+ * Loads Picture values into bitmaps.
+ * <p>
+ * Pictures are decoded at the requested size (reading the bounds first and
+ * downsampling), decoded bitmaps and their encoded form are kept in byte
+ * bounded memory caches, and downloaded pictures are kept in a disk cache.
+ * <p>
+ * Pictures behind a URL can change, so decoded pictures are only reused for
+ * a few minutes, and downloaded pictures older than an hour are revalidated
+ * with the server (If-Modified-Since) before use. Inline data: pictures
+ * never change, and are decoded at their own size unless the caller asks
+ * for a smaller one.
+ * <p>
+ * Bitmaps are not reused for decoding: a DirectPicture handed out to an
+ * action can still be drawn after it falls out of the cache.
+ */
+public class PictureLoader {
+    public static final int DEFAULT_MAX_DIMENSION = 1024;
+
+    private static final int MEMORY_CACHE_BYTES = (int) Math.min(Runtime.getRuntime().maxMemory() / 16, 8 * 1024 * 1024);
+    private static final int ENCODED_CACHE_BYTES = 2 * 1024 * 1024;
+    private static final long DISK_CACHE_BYTES = 16 * 1024 * 1024;
+    private static final String DISK_CACHE_DIR = "pictures";
+    private static final long MEMORY_TTL_MS = 5 * 60 * 1000;
+    private static final long REVALIDATE_AFTER_MS = 60 * 60 * 1000;
+
+    private static final String LOG_TAG = "rulepedia.Pictures";
+
+    private static final PictureLoader instance = new PictureLoader();
+
+    public static PictureLoader get() {
+        return instance;
+    }
+
+    private static class CachedPicture {
+        private final Value.DirectPicture picture;
+        // 0 if the picture never expires
+        private final long expiresAt;
+
+        private CachedPicture(Value.DirectPicture picture, long expiresAt) {
+            this.picture = picture;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean isExpired(long now) {
+            return expiresAt != 0 && now >= expiresAt;
+        }
+    }
+
+    private final LruCache<String, CachedPicture> memoryCache;
+    private final LruCache<String, String> encodedCache;
+    private PictureDiskCache diskCache;
+
+    private PictureLoader() {
+        memoryCache = new LruCache<String, CachedPicture>(MEMORY_CACHE_BYTES) {
+            @Override
+            protected int sizeOf(String key, CachedPicture value) {
+                return value.picture.getPicture().getByteCount();
+            }
+        };
+
+        encodedCache = new LruCache<String, String>(ENCODED_CACHE_BYTES) {
+            @Override
+            protected int sizeOf(String key, String value) {
+                return 2 * value.length();
+            }
+        };
+
+        // both caches are sized in bytes already
+        CacheRegistry.get().register("pictures", new LruManagedCache(memoryCache, 1), CacheRegistry.COST_MEDIUM);
+        CacheRegistry.get().register("encoded pictures", new LruManagedCache(encodedCache, 1), CacheRegistry.COST_LOW);
+    }
+
+    private synchronized PictureDiskCache getDiskCache(Context ctx) {
+        if (diskCache == null)
+            diskCache = new PictureDiskCache(new File(ctx.getCacheDir(), DISK_CACHE_DIR), DISK_CACHE_BYTES);
+        return diskCache;
+    }
+
+    private static String cacheKey(String rep, int maxWidth, int maxHeight) {
+        // inline pictures are big, don't keep a copy in the key
+        if (rep.startsWith("data:"))
+            rep = "data:" + rep.length() + ":" + Long.toHexString(Util.fingerprint64(rep));
+        return maxWidth + "x" + maxHeight + ":" + rep;
+    }
+
+    /**
+     * Load a picture at the default size: inline pictures as they are,
+     * others downsampled to DEFAULT_MAX_DIMENSION.
+     */
+    public Value.DirectPicture load(@Nullable Context ctx, String rep) throws UnknownObjectException {
+        if (rep.startsWith("data:"))
+            return load(ctx, rep, Integer.MAX_VALUE, Integer.MAX_VALUE);
+        else
+            return load(ctx, rep, DEFAULT_MAX_DIMENSION, DEFAULT_MAX_DIMENSION);
+    }
+
+    public Value.DirectPicture load(@Nullable Context ctx, String rep, int maxWidth, int maxHeight) throws UnknownObjectException {
+        String key = cacheKey(rep, maxWidth, maxHeight);
+        long now = System.currentTimeMillis();
+
+        CachedPicture cached = memoryCache.get(key);
+        if (cached != null) {
+            if (!cached.isExpired(now))
+                return cached.picture;
+            memoryCache.remove(key);
+        }
+
+        Value.DirectPicture picture;
+        long expiresAt;
+        if (rep.startsWith("data:")) {
+            picture = new Value.DirectPicture(null, key, decodeDataUrl(rep, maxWidth, maxHeight));
+            expiresAt = 0;
+        } else if (rep.startsWith(ContentResolver.SCHEME_CONTENT)) {
+            picture = new Value.DirectPicture(rep, key, decodeContentUri(ctx, rep, maxWidth, maxHeight));
+            expiresAt = now + MEMORY_TTL_MS;
+        } else {
+            picture = new Value.DirectPicture(rep, key, decodeRemote(ctx, rep, maxWidth, maxHeight));
+            expiresAt = now + MEMORY_TTL_MS;
+        }
+
+        // the encoded form of the previous version is stale too
+        encodedCache.remove(key);
+        memoryCache.put(key, new CachedPicture(picture, expiresAt));
+        return picture;
+    }
+
+    String getEncoded(Value.DirectPicture picture) {
+        String key = picture.getCacheKey();
+        if (key != null) {
+            String cached = encodedCache.get(key);
+            if (cached != null)
+                return cached;
+        }
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        picture.getPicture().compress(Bitmap.CompressFormat.PNG, 100, stream);
+        String encoded = "data:text/png;base64," + Uri.encode(Base64.encodeToString(stream.toByteArray(), Base64.DEFAULT));
+
+        if (key != null)
+            encodedCache.put(key, encoded);
+        return encoded;
+    }
+
+    private interface StreamOpener {
+        InputStream open() throws IOException;
+    }
+
+    private static int computeSampleSize(BitmapFactory.Options bounds, int maxWidth, int maxHeight) {
+        int sampleSize = 1;
+
+        // keep halving while the result is still at least as large as requested
+        while (bounds.outWidth / (2 * sampleSize) >= maxWidth || bounds.outHeight / (2 * sampleSize) >= maxHeight)
+            sampleSize *= 2;
+
+        return sampleSize;
+    }
+
+    private Bitmap decode(StreamOpener opener, String rep, int maxWidth, int maxHeight) throws IOException, UnknownObjectException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        try (InputStream stream = opener.open()) {
+            BitmapFactory.decodeStream(stream, null, options);
+        }
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+            throw new UnknownObjectException(rep);
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = computeSampleSize(options, maxWidth, maxHeight);
+
+        Bitmap bitmap;
+        try (InputStream stream = opener.open()) {
+            bitmap = BitmapFactory.decodeStream(stream, null, options);
+        }
+
+        if (bitmap == null)
+            throw new UnknownObjectException(rep);
+        return bitmap;
+    }
+
+    private Bitmap decodeDataUrl(String rep, int maxWidth, int maxHeight) throws UnknownObjectException {
+        String[] split = rep.split(",");
+
+        if (split.length != 2 || !split[0].endsWith(";base64"))
+            throw new UnknownObjectException(rep);
+
+        String uriDecoded = Uri.decode(split[1]);
+        final byte[] decoded = Base64.decode(uriDecoded, Base64.DEFAULT);
+
+        try {
+            return decode(new StreamOpener() {
+                @Override
+                public InputStream open() {
+                    return new ByteArrayInputStream(decoded);
+                }
+            }, rep, maxWidth, maxHeight);
+        } catch (IOException e) {
+            throw new UnknownObjectException(rep);
+        }
+    }
+
+    private Bitmap decodeContentUri(@Nullable Context ctx, String rep, int maxWidth, int maxHeight) throws UnknownObjectException {
+        if (ctx == null)
+            throw new UnknownObjectException(rep);
+
+        final ContentResolver resolver = ctx.getContentResolver();
+        final Uri uri = Uri.parse(rep);
+
+        try {
+            return decode(new StreamOpener() {
+                @Override
+                public InputStream open() throws FileNotFoundException {
+                    return resolver.openInputStream(uri);
+                }
+            }, rep, maxWidth, maxHeight);
+        } catch (IOException e) {
+            throw new UnknownObjectException(rep);
+        }
+    }
+
+    /**
+     * Download the picture into the disk cache, or if a cached copy is
+     * given, only if it changed since that copy was downloaded.
+     */
+    private static File download(PictureDiskCache cache, String rep, @Nullable File cached) throws IOException {
+        URLConnection connection = new URL(rep).openConnection();
+        try {
+            if (cached != null)
+                connection.setIfModifiedSince(cached.lastModified());
+
+            if (cached != null && connection instanceof HttpURLConnection &&
+                    ((HttpURLConnection) connection).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                cache.touch(cached);
+                return cached;
+            }
+
+            try (InputStream is = connection.getInputStream()) {
+                return cache.put(rep, is);
+            }
+        } finally {
+            if (connection instanceof HttpURLConnection)
+                ((HttpURLConnection) connection).disconnect();
+        }
+    }
+
+    private Bitmap decodeRemote(@Nullable Context ctx, final String rep, int maxWidth, int maxHeight) throws UnknownObjectException {
+        try {
+            if (ctx == null) {
+                // no disk cache available, stream the picture twice
+                return decode(new StreamOpener() {
+                    @Override
+                    public InputStream open() throws IOException {
+                        return new URL(rep).openStream();
+                    }
+                }, rep, maxWidth, maxHeight);
+            }
+
+            PictureDiskCache cache = getDiskCache(ctx);
+            File file = cache.get(rep);
+            if (file == null) {
+                file = download(cache, rep, null);
+            } else if (System.currentTimeMillis() - file.lastModified() >= REVALIDATE_AFTER_MS) {
+                try {
+                    file = download(cache, rep, file);
+                } catch (IOException e) {
+                    // better a stale picture than none
+                    Log.w(LOG_TAG, "Failed to revalidate picture " + rep + ", using the cached copy", e);
+                }
+            }
+
+            final File cachedFile = file;
+            return decode(new StreamOpener() {
+                @Override
+                public InputStream open() throws IOException {
+                    return new BufferedInputStream(new FileInputStream(cachedFile));
+                }
+            }, rep, maxWidth, maxHeight);
+        } catch (IOException e) {
+            throw new UnknownObjectException(rep);
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package edu.stanford.braincat.rulepedia.model;
 
 import android.content.Context;
+import android.support.annotation.Nullable;
+import android.util.Log;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -14,10 +16,13 @@ import java.util.HashSet;
 import java.util.Map;
 
 import edu.stanford.braincat.rulepedia.BuildConfig;
+import edu.stanford.braincat.rulepedia.channels.Util;
 import edu.stanford.braincat.rulepedia.events.EventSource;
 import edu.stanford.braincat.rulepedia.exceptions.RuleExecutionException;
 import edu.stanford.braincat.rulepedia.exceptions.TriggerValueTypeException;
 import edu.stanford.braincat.rulepedia.exceptions.UnknownObjectException;
+import edu.stanford.braincat.rulepedia.service.Callback;
+import edu.stanford.braincat.rulepedia.service.RuleExecutorService;
 import edu.stanford.braincat.rulepedia.service.RuleExecutorThread;
 
 /**
@@ -35,7 +40,10 @@ public class Rule {
     private final Trigger trigger;
     private final ArrayList<Action> actions;
     private boolean installed;
+    // a copy of installed for other threads, see wasInstalled()
+    private volatile boolean installedSnapshot;
     private volatile String id;
+    private volatile long fingerprint;
     private volatile int priority;
     private volatile boolean enabled;
 
@@ -58,7 +66,7 @@ public class Rule {
     }
 
     public boolean isInstalled() {
-        if (BuildConfig.DEBUG && !(Thread.currentThread() instanceof RuleExecutorThread))
+        if (BuildConfig.DEBUG && !RuleExecutorThread.isExecutorThread())
             throw new AssertionError();
         return installed;
     }
@@ -68,9 +76,18 @@ public class Rule {
     }
 
     public void setInstalled(boolean installed) {
-        if (BuildConfig.DEBUG && !(Thread.currentThread() instanceof RuleExecutorThread))
+        if (BuildConfig.DEBUG && !RuleExecutorThread.isExecutorThread())
             throw new AssertionError();
         this.installed = installed;
+        installedSnapshot = installed;
+    }
+
+    /**
+     * The value of isInstalled() as of the last change, readable from any
+     * thread. Only for reporting, the executor must use isInstalled().
+     */
+    public boolean wasInstalled() {
+        return installedSnapshot;
     }
 
     public String getName() {
@@ -89,6 +106,22 @@ public class Rule {
         if (this.id != null)
             throw new IllegalStateException("cannot set id twice");
         this.id = id;
+
+        for (int i = 0; i < actions.size(); i++) {
+            if (actions.get(i) instanceof RuleBoundAction)
+                ((RuleBoundAction) actions.get(i)).bindToRule(id, i);
+        }
+    }
+
+    /**
+     * A hash of the content of the rule, see RuleDatabase.
+     */
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    public void setFingerprint(long fingerprint) {
+        this.fingerprint = fingerprint;
     }
 
     public int getPriority() {
@@ -148,21 +181,85 @@ public class Rule {
         return enabled && trigger.isFiring();
     }
 
-    public void fire(Context ctx) throws RuleExecutionException {
+    public boolean fire(Context ctx) throws RuleExecutionException {
+        return fire(ctx, trigger, null);
+    }
+
+    /**
+     * Run the actions with the values produced by another trigger, which
+     * must be equivalent to the trigger of this rule and was evaluated in
+     * its place.
+     * <p>
+     * If a DeferredAction is not ready, the remaining actions run later, on
+     * this thread, and their outcome is reported to resumed: null if they all
+     * ran, or the exception that stopped them. resumed is not called if the
+     * rule is disabled in the meantime, or if no action had to wait.
+     * <p>
+     * Returns true if all the actions ran, false if some were deferred.
+     */
+    public boolean fire(Context ctx, Trigger source, @Nullable Callback<Void> resumed) throws RuleExecutionException {
         if (!enabled)
             throw new IllegalStateException("rule not enabled");
 
         try {
             Map<String, Value> context = new HashMap<>();
 
-            trigger.updateContext(context);
-            for (Action a : actions)
-                a.execute(ctx, context);
+            source.updateContext(context);
+            return executeActions(ctx, context, 0, resumed);
         } catch (UnknownObjectException | TriggerValueTypeException e) {
             throw new RuleExecutionException(e);
         }
     }
 
+    // returns false if an action is waiting to be ready, and will run the rest later
+    private boolean executeActions(final Context ctx, final Map<String, Value> context, int from,
+                                   final Callback<Void> resumed) throws UnknownObjectException, TriggerValueTypeException, RuleExecutionException {
+        for (int i = from; i < actions.size(); i++) {
+            Action a = actions.get(i);
+
+            if (a instanceof DeferredAction && !((DeferredAction) a).isReady(ctx)) {
+                final int next = i;
+                ((DeferredAction) a).whenReady(ctx, new Callback<Void>() {
+                    @Override
+                    public void run(Void result, Exception error) {
+                        if (error != null)
+                            reportResumed(resumed, error);
+                        else
+                            resumeActions(ctx, context, next, resumed);
+                    }
+                });
+                return false;
+            }
+
+            a.execute(ctx, context);
+        }
+
+        return true;
+    }
+
+    private void resumeActions(Context ctx, Map<String, Value> context, int from, Callback<Void> resumed) {
+        if (!enabled) {
+            Log.i(RuleExecutorService.LOG_TAG, "Rule " + toHumanString() + " was disabled while waiting for its actions");
+            return;
+        }
+
+        try {
+            if (executeActions(ctx, context, from, resumed))
+                reportResumed(resumed, null);
+        } catch (UnknownObjectException | TriggerValueTypeException e) {
+            reportResumed(resumed, new RuleExecutionException(e));
+        } catch (RuleExecutionException | RuntimeException e) {
+            reportResumed(resumed, e);
+        }
+    }
+
+    private void reportResumed(Callback<Void> resumed, Exception error) {
+        if (resumed != null)
+            resumed.run(null, error);
+        else if (error != null)
+            Log.e(RuleExecutorService.LOG_TAG, "Failed to run rule " + toHumanString(), error);
+    }
+
     public JSONObject toJSON() throws JSONException {
         JSONObject json = new JSONObject();
         json.put("name", name);
@@ -183,6 +280,17 @@ public class Rule {
         return json;
     }
 
+    /**
+     * What the rule does, without its id and state, in canonical JSON. Rules
+     * that do the same thing give the same string.
+     */
+    public String toCanonicalString() throws JSONException {
+        JSONObject json = toJSON();
+        json.remove("enabled");
+        json.remove("id");
+        return Util.toCanonicalJSON(json);
+    }
+
     public String toHumanString() {
         StringBuilder builder = new StringBuilder();
         builder.append("when ");
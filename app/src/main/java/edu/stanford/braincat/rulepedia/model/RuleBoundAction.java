@@ -0,0 +1,14 @@
+package edu.stanford.braincat.rulepedia.model;
+
+/**
+ * Created by gcampagn on 6/11/15.
+ * <p>
+ * An action that needs to know which rule it belongs to, such as to keep
+ * what it shows apart from the same action of other rules.
+ * <p>
+ * Rule.setId() binds each such action to the id of the rule and its
+ * position among the actions, which are both stable across restarts.
+ */
+public interface RuleBoundAction extends Action {
+    void bindToRule(String ruleId, int position);
+}
@@ -1,12 +1,14 @@
 package edu.stanford.braincat.rulepedia.model;
 
 import android.content.Context;
+import android.util.JsonReader;
 import android.util.Log;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -17,10 +19,15 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
 
+import edu.stanford.braincat.rulepedia.channels.BinaryJSON;
 import edu.stanford.braincat.rulepedia.channels.Util;
 import edu.stanford.braincat.rulepedia.exceptions.DuplicatedRuleException;
 import edu.stanford.braincat.rulepedia.exceptions.TriggerValueTypeException;
@@ -31,22 +38,34 @@ import edu.stanford.braincat.rulepedia.exceptions.UnknownObjectException;
  * Created by gcampagn on 4/30/15.
  */
 public class RuleDatabase {
+    private static final String RULES_BIN = "rules.bin";
+    // the format before rules.bin, only read to migrate
+    private static final String RULES_JSON = "rules.json";
+
     private final Map<String, Rule> rules;
     private final SortedSet<Rule> sortedRules;
+    // one rule per content fingerprint, to find duplicates without comparing every rule
+    private final Map<Long, Rule> byFingerprint;
     private boolean dirty;
     private boolean loaded;
 
     private final static RuleDatabase instance = new RuleDatabase();
 
+    public static final Comparator<Rule> PRIORITY_ORDER = new Comparator<Rule>() {
+        @Override
+        public int compare(Rule lhs, Rule rhs) {
+            // higher priority first, and rules with the same priority are
+            // still different rules
+            if (lhs.getPriority() != rhs.getPriority())
+                return rhs.getPriority() > lhs.getPriority() ? 1 : -1;
+            return lhs.getId().compareTo(rhs.getId());
+        }
+    };
+
     private RuleDatabase() {
         rules = new HashMap<>();
-        sortedRules = new TreeSet<>(new Comparator<Rule>() {
-            @Override
-            public int compare(Rule lhs, Rule rhs) {
-                // higher priority first
-                return rhs.getPriority() - lhs.getPriority();
-            }
-        });
+        sortedRules = new TreeSet<>(PRIORITY_ORDER);
+        byFingerprint = new HashMap<>();
     }
 
     public static RuleDatabase get() {
@@ -61,6 +80,25 @@ public class RuleDatabase {
         return Collections.unmodifiableSortedSet(sortedRules);
     }
 
+    public synchronized int getRuleCount() {
+        return sortedRules.size();
+    }
+
+    /**
+     * Returns a copy of a range of the rules, in priority order.
+     */
+    public synchronized List<Rule> getRules(int offset, int limit) {
+        List<Rule> result = new ArrayList<>();
+
+        Iterator<Rule> it = sortedRules.iterator();
+        for (int i = 0; i < offset && it.hasNext(); i++)
+            it.next();
+        while (result.size() < limit && it.hasNext())
+            result.add(it.next());
+
+        return result;
+    }
+
     public synchronized Rule getRuleById(String id) {
         return rules.get(id);
     }
@@ -172,16 +210,48 @@ public class RuleDatabase {
         Rule rule = new Rule(name, description, trigger, actions);
         rule.typeCheck();
 
-        if (!jsonRule.has("id")) {
-            rule.setId(Util.toSHA1(rule.toJSON().toString()));
-        } else {
-            String ruleID = jsonRule.getString("id");
-            rule.setId(ruleID);
-        }
+        String canonical = rule.toCanonicalString();
+        rule.setFingerprint(Util.fingerprint64(canonical));
+
+        String ruleID = jsonRule.optString("id", null);
+        if (ruleID == null || isLegacyId(ruleID))
+            ruleID = Util.toSHA1(canonical);
+        rule.setId(ruleID);
 
         return rule;
     }
 
+    /**
+     * Ids computed before the hash was hex encoded are raw digest bytes
+     * decoded in the platform charset, so they are neither stable nor
+     * printable. Ids given by the user always are.
+     */
+    private static boolean isLegacyId(String id) {
+        for (int i = 0; i < id.length(); i++) {
+            char c = id.charAt(i);
+            if (c < 0x20 || c > 0x7e)
+                return true;
+        }
+        return false;
+    }
+
+    private void index(Rule rule) {
+        rules.put(rule.getId(), rule);
+        sortedRules.add(rule);
+        if (!byFingerprint.containsKey(rule.getFingerprint()))
+            byFingerprint.put(rule.getFingerprint(), rule);
+    }
+
+    /**
+     * Returns true if a rule doing the same thing as this one is already
+     * in the database, whatever its id.
+     */
+    private boolean hasSameContent(Rule rule, String canonical) throws JSONException {
+        Rule other = byFingerprint.get(rule.getFingerprint());
+        // a fingerprint match is confirmed, 64 bits can collide
+        return other != null && other.toCanonicalString().equals(canonical);
+    }
+
     private void loadRule(JSONObject jsonRule, int position) throws
             JSONException, UnknownObjectException, UnknownChannelException, TriggerValueTypeException {
         Rule rule = parseRule(jsonRule);
@@ -193,9 +263,13 @@ public class RuleDatabase {
             rule.setEnabled(true);
 
         Log.d("!!!", "Trying to load rule with ID " + rule.getId());
+        if (!rule.getId().equals(jsonRule.optString("id", null))) {
+            // migrated from a legacy id, write it back
+            Log.i(ChannelPool.LOG_TAG, "Migrated rule id to " + rule.getId());
+            dirty = true;
+        }
 
-        rules.put(rule.getId(), rule);
-        sortedRules.add(rule);
+        index(rule);
     }
 
     public synchronized void load(Context ctx) throws IOException, UnknownObjectException, UnknownChannelException {
@@ -203,12 +277,27 @@ public class RuleDatabase {
             return;
 
         loaded = true;
-        try (FileInputStream file = ctx.openFileInput("rules.json")) {
+        File binFile = ctx.getFileStreamPath(RULES_BIN);
+        if (binFile.exists()) {
+            try {
+                BinaryJSON.Document root = BinaryJSON.map(binFile);
+
+                for (int i = 0; i < root.length(); i++)
+                    loadRule(root.getJSONObject(i), i);
+            } catch (TriggerValueTypeException | NullPointerException | ClassCastException | JSONException e) {
+                throw new IOException("Invalid database format on disk", e);
+            }
+            return;
+        }
+
+        // migrate from the old format, it is replaced on the next save
+        try (FileInputStream file = ctx.openFileInput(RULES_JSON)) {
             try {
                 JSONArray root = (JSONArray) Util.readJSON(file).nextValue();
 
                 for (int i = 0; i < root.length(); i++)
                     loadRule(root.getJSONObject(i), i);
+                dirty = true;
             } catch (TriggerValueTypeException | NullPointerException | ClassCastException | JSONException e) {
                 throw new IOException("Invalid database format on disk", e);
             }
@@ -217,11 +306,22 @@ public class RuleDatabase {
         }
     }
 
+    /**
+     * Make the next save() write the database, after a rule was changed in
+     * place.
+     */
+    public synchronized void markDirty() {
+        dirty = true;
+    }
+
     public synchronized void save(Context ctx) throws IOException {
         if (!dirty)
             return;
 
-        try (FileOutputStream file = ctx.openFileOutput("rules.json", Context.MODE_PRIVATE)) {
+        // write to the side and rename, the old file stays mapped by load()
+        File binFile = ctx.getFileStreamPath(RULES_BIN);
+        File tmpFile = ctx.getFileStreamPath(RULES_BIN + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(tmpFile)) {
             try {
                 JSONArray allRules = new JSONArray();
 
@@ -229,11 +329,15 @@ public class RuleDatabase {
                     allRules.put(r.toJSON());
                 }
 
-                Util.writeJSON(file, allRules);
+                BinaryJSON.write(file, allRules);
             } catch (JSONException e) {
                 throw new IOException("Failed to serialize db to json: " + e.getMessage());
             }
         }
+        if (!tmpFile.renameTo(binFile))
+            throw new IOException("Failed to rename " + tmpFile + " to " + binFile);
+
+        ctx.deleteFile(RULES_JSON);
     }
 
     public synchronized Rule addRule(JSONObject jsonRule) throws
@@ -241,23 +345,123 @@ public class RuleDatabase {
             DuplicatedRuleException {
         Rule rule = parseRule(jsonRule);
 
-        if (rules.containsKey(rule.getId()))
+        if (rules.containsKey(rule.getId()) || hasSameContent(rule, rule.toCanonicalString()))
             throw new DuplicatedRuleException();
 
         rule.setEnabled(true);
-        // FIXME: verify...
-        rule.setPriority(rules.size());
+        // above every existing rule, like commit()
+        rule.setPriority(sortedRules.isEmpty() ? 0 : sortedRules.first().getPriority() + 1);
 
-        rules.put(rule.getId(), rule);
-        sortedRules.add(rule);
+        index(rule);
         dirty = true;
 
         return rule;
     }
 
+    private static void parseInto(RuleImport batch, Object jsonRule) {
+        try {
+            if (!(jsonRule instanceof JSONObject))
+                throw new JSONException("a rule must be an object");
+
+            JSONObject json = (JSONObject) jsonRule;
+            Rule rule = parseRule(json);
+            rule.setEnabled(!json.has(Rule.ENABLED) || json.getBoolean(Rule.ENABLED));
+            batch.add(rule, null);
+        } catch (JSONException | UnknownObjectException | UnknownChannelException | TriggerValueTypeException e) {
+            batch.add(null, e);
+        } catch (RuntimeException e) {
+            Log.e(ChannelPool.LOG_TAG, "RuntimeException while parsing rule", e);
+            batch.add(null, e);
+        }
+    }
+
+    /**
+     * Parse and type check a JSON array of rules, one element at a time. A
+     * rule that fails is recorded in the result, a stream that is not valid
+     * JSON fails the whole batch.
+     * <p>
+     * This does not touch the database and can run on any thread once the
+     * channels are loaded.
+     */
+    public static RuleImport parseRules(JsonReader reader) throws IOException {
+        RuleImport batch = new RuleImport();
+
+        try {
+            reader.beginArray();
+            while (reader.hasNext())
+                parseInto(batch, Util.readJSONValue(reader));
+            reader.endArray();
+        } catch (JSONException | IllegalStateException | NumberFormatException e) {
+            throw new IOException("Invalid rule stream", e);
+        }
+
+        return batch;
+    }
+
+    public static RuleImport parseRules(List<JSONObject> jsonRules) {
+        RuleImport batch = new RuleImport();
+
+        for (JSONObject jsonRule : jsonRules)
+            parseInto(batch, jsonRule);
+
+        return batch;
+    }
+
+    /**
+     * Add the valid rules of a parsed batch, with one save() for all of
+     * them.
+     * <p>
+     * Rules whose id or content is already known, in the database or
+     * earlier in the batch, fail with DuplicatedRuleException. The others get priorities
+     * above every existing rule, in the order of the batch, so the first
+     * rule of the batch has the highest priority.
+     */
+    public synchronized void commit(RuleImport batch) {
+        Set<String> batchIds = new HashSet<>();
+        Map<Long, String> batchContent = new HashMap<>();
+        List<Rule> added = new ArrayList<>();
+        for (int i = 0; i < batch.size(); i++) {
+            Rule rule = batch.getRule(i);
+            if (batch.getError(i) != null)
+                continue;
+
+            try {
+                // the fingerprint was computed by parseRule(), the canonical
+                // string is computed once here
+                String canonical = rule.toCanonicalString();
+                String earlier = batchContent.get(rule.getFingerprint());
+                if (rules.containsKey(rule.getId()) || !batchIds.add(rule.getId()) || hasSameContent(rule, canonical) ||
+                        (earlier != null && earlier.equals(canonical))) {
+                    batch.fail(i, new DuplicatedRuleException());
+                    continue;
+                }
+                if (earlier == null)
+                    batchContent.put(rule.getFingerprint(), canonical);
+            } catch (JSONException e) {
+                batch.fail(i, e);
+                continue;
+            }
+            added.add(rule);
+        }
+
+        if (added.isEmpty())
+            return;
+
+        // stay strictly above what is there
+        int base = sortedRules.isEmpty() ? 0 : sortedRules.first().getPriority() + 1;
+        for (int i = 0; i < added.size(); i++) {
+            Rule rule = added.get(i);
+            rule.setPriority(base + added.size() - 1 - i);
+            index(rule);
+        }
+        dirty = true;
+    }
+
     public synchronized void removeRule(Rule rule) {
         rules.remove(rule.getId());
         sortedRules.remove(rule);
+        if (byFingerprint.get(rule.getFingerprint()) == rule)
+            byFingerprint.remove(rule.getFingerprint());
         dirty = true;
     }
 }
@@ -0,0 +1,65 @@
+package edu.stanford.braincat.rulepedia.model;
+
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Created by gcampagn on 6/19/15.
+ * <p>
+ * A batch of rules being installed together, and the outcome for each of
+ * them, in the order of the input.
+ * <p>
+ * RuleDatabase.parseRules() fills in the parsed rules or the parsing errors,
+ * RuleDatabase.commit() adds the valid ones in one go, and the executor
+ * records the rules that failed to enable.
+ */
+public class RuleImport {
+    private final List<Rule> rules;
+    private final List<Exception> errors;
+
+    RuleImport() {
+        rules = new ArrayList<>();
+        errors = new ArrayList<>();
+    }
+
+    void add(@Nullable Rule rule, @Nullable Exception error) {
+        rules.add(rule);
+        errors.add(error);
+    }
+
+    public int size() {
+        return rules.size();
+    }
+
+    /**
+     * The parsed rule at the position, null if it could not be parsed.
+     */
+    @Nullable
+    public Rule getRule(int index) {
+        return rules.get(index);
+    }
+
+    /**
+     * What went wrong with the rule at the position, null if it was
+     * installed.
+     */
+    @Nullable
+    public Exception getError(int index) {
+        return errors.get(index);
+    }
+
+    public void fail(int index, Exception error) {
+        errors.set(index, error);
+    }
+
+    public int getFailureCount() {
+        int count = 0;
+        for (Exception e : errors) {
+            if (e != null)
+                count++;
+        }
+        return count;
+    }
+}
@@ -4,22 +4,14 @@ import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.support.annotation.Nullable;
-import android.util.Base64;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.ByteArrayOutputStream;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.URLConnection;
 import java.util.Collection;
 import java.util.Map;
 
@@ -254,10 +246,17 @@ public abstract class Value {
 
     public static class DirectPicture extends Value {
         private final String url;
+        private final String cacheKey;
         private final Bitmap rep;
+        private String encoded;
 
         public DirectPicture(@Nullable String url, Bitmap rep) {
+            this(url, null, rep);
+        }
+
+        DirectPicture(@Nullable String url, @Nullable String cacheKey, Bitmap rep) {
             this.url = url;
+            this.cacheKey = cacheKey;
             this.rep = rep;
         }
 
@@ -265,15 +264,20 @@ public abstract class Value {
             return rep;
         }
 
+        @Nullable
+        String getCacheKey() {
+            return cacheKey;
+        }
+
         @Override
         public String toString() {
-            if (url != null) {
+            if (url != null)
                 return url;
-            } else {
-                ByteArrayOutputStream stream = new ByteArrayOutputStream();
-                rep.compress(Bitmap.CompressFormat.PNG, 100, stream);
-                return "data:text/png;base64," + Uri.encode(Base64.encodeToString(stream.toByteArray(), Base64.DEFAULT));
-            }
+
+            // encoding is expensive, and a picture can be substituted in many places
+            if (encoded == null)
+                encoded = PictureLoader.get().getEncoded(this);
+            return encoded;
         }
     }
 
@@ -304,45 +308,14 @@ public abstract class Value {
             if (rep.equals(PLACEHOLDER))
                 throw new UnknownObjectException(rep);
 
-            if (rep.startsWith("data:")) {
-                String[] split = rep.split(",");
-
-                if (split.length != 2 || !split[0].endsWith(";base64"))
-                    throw new UnknownObjectException(rep);
-
-                String uriDecoded = Uri.decode(split[1]);
-                byte[] decoded = Base64.decode(uriDecoded, Base64.DEFAULT);
-
-                return new DirectPicture(null, BitmapFactory.decodeByteArray(decoded, 0, decoded.length));
-            }
-
-            if (rep.startsWith(ContentResolver.SCHEME_CONTENT)) {
-                if (ctx == null)
-                    throw new UnknownObjectException(rep);
-
-                try {
-                    return new DirectPicture(rep, BitmapFactory.decodeStream(ctx.getContentResolver().openInputStream(Uri.parse(rep))));
-                } catch(FileNotFoundException e) {
-                    throw new UnknownObjectException(rep);
-                }
-            }
+            return PictureLoader.get().load(ctx, rep);
+        }
 
-            try {
-                URL url = new URL(rep);
-                URLConnection connection = url.openConnection();
-                try {
-                    try (InputStream is = connection.getInputStream()) {
-                        return new DirectPicture(rep, BitmapFactory.decodeStream(is));
-                    }
-                } finally {
-                    if (connection instanceof HttpURLConnection)
-                        ((HttpURLConnection) connection).disconnect();
-                }
-            } catch(IOException e) {
-                // fall through
-            }
+        public Value.DirectPicture toPicture(Context ctx, int maxWidth, int maxHeight) throws UnknownObjectException {
+            if (rep.equals(PLACEHOLDER))
+                throw new UnknownObjectException(rep);
 
-            throw new UnknownObjectException(rep);
+            return PictureLoader.get().load(ctx, rep, maxWidth, maxHeight);
         }
 
         public static Picture fromString(String string) throws UnknownObjectException {
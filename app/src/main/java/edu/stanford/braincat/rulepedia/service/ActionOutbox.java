@@ -0,0 +1,488 @@
+package edu.stanford.braincat.rulepedia.service;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.stanford.braincat.rulepedia.channels.HTTPOutboxSender;
+import edu.stanford.braincat.rulepedia.channels.android.SMSOutboxSender;
+
+/**
+ * Created by gcampagn on 6/10/15.
+ * <p>
+ * A persistent queue of side effects that rules want to have on the outside
+ * world.
+ * <p>
+ * Actions are enqueued as fully resolved payloads and sent later from a
+ * thread of the outbox, so rule evaluation never waits for the network.
+ * Entries for the same batch key (usually the remote host) are sent one
+ * after the other in the same flush, and back off together when one fails.
+ * <p>
+ * The log on disk is a sequence of JSON lines, one "add" per enqueued entry
+ * and one "ack" per entry that was sent (or given up on). It is replayed
+ * when the outbox starts, and rewritten with only the pending entries once
+ * enough acks accumulate. The "add" is written and synced by enqueue()
+ * itself, so an action is never lost once it returns.
+ * <p>
+ * Ids continue from the log, so they are only known once it was replayed.
+ * Until then, enqueue() writes its entries without an id, and the replay
+ * numbers them in log order, so enqueue() never waits for the previous
+ * sender thread to finish what it was sending.
+ * <p>
+ * Before anything is queued, an ActionThrottle drops duplicates and
+ * actions over the rate limit of their destination.
+ */
+public class ActionOutbox {
+    public static final String TYPE_HTTP = "http";
+    public static final String TYPE_SMS = "sms";
+
+    private static final String LOG_FILE = "outbox.log";
+    // coalesce a burst of actions into one flush
+    private static final long FLUSH_DELAY = 250;
+    private static final long BASE_BACKOFF = 5 * 1000;
+    private static final long MAX_BACKOFF = 30 * 60 * 1000;
+    private static final int MAX_ATTEMPTS = 12;
+    private static final int COMPACT_THRESHOLD = 64;
+    // entries enqueued before the replay get their id from it
+    private static final long NO_ID = -1;
+
+    public interface Sender {
+        /**
+         * Entries with the same batch key are sent together, and back off
+         * together.
+         */
+        String getBatchKey(JSONObject payload) throws JSONException;
+
+        /**
+         * Perform the action. IOExceptions are retried, anything else drops
+         * the entry.
+         */
+        void send(Context ctx, JSONObject payload) throws IOException, JSONException;
+    }
+
+    private static class Entry {
+        private final long id;
+        private final String type;
+        private final JSONObject payload;
+        private int attempts;
+        private long nextAttempt;
+
+        private Entry(long id, String type, JSONObject payload) {
+            this.id = id;
+            this.type = type;
+            this.payload = payload;
+        }
+    }
+
+    private static final ActionOutbox instance = new ActionOutbox();
+
+    public static ActionOutbox get() {
+        return instance;
+    }
+
+    private final Map<String, Sender> senders;
+    private final ExecutorStats stats;
+    private final ActionThrottle throttle;
+
+    // only touched on the outbox thread
+    private final Map<Long, Entry> pending;
+    private int ackedSinceCompaction;
+    private long scheduledFlushTime;
+
+    // guards the log file and what is below
+    private final Object logLock;
+    private final List<Entry> incoming;
+    private final List<Entry> unnumbered;
+    private long nextId;
+    private boolean replayed;
+
+    private Context context;
+    private HandlerThread thread;
+    private HandlerThread stoppedThread;
+    private Handler handler;
+
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            scheduledFlushTime = 0;
+            flush();
+        }
+    };
+
+    private ActionOutbox() {
+        senders = new HashMap<>();
+        stats = new ExecutorStats();
+        throttle = new ActionThrottle(stats);
+        pending = new LinkedHashMap<>();
+        logLock = new Object();
+        incoming = new ArrayList<>();
+        unnumbered = new ArrayList<>();
+
+        senders.put(TYPE_HTTP, new HTTPOutboxSender());
+        senders.put(TYPE_SMS, new SMSOutboxSender());
+    }
+
+    /**
+     * Start the sender thread and replay the log, if not running already.
+     */
+    public synchronized void start(Context ctx) {
+        if (thread != null)
+            return;
+
+        synchronized (logLock) {
+            replayed = false;
+        }
+
+        final HandlerThread previous = stoppedThread;
+        stoppedThread = null;
+        context = ctx.getApplicationContext();
+        thread = new HandlerThread("ActionOutbox", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                // the previous thread might still be sending what it had
+                while (previous != null && previous.isAlive()) {
+                    try {
+                        previous.join();
+                    } catch (InterruptedException e) {
+                        // try again
+                    }
+                }
+
+                // whatever it did not send is still in the log
+                pending.clear();
+                scheduledFlushTime = 0;
+                replay();
+            }
+        });
+    }
+
+    /**
+     * Stop the sender thread once the pending messages are processed. What
+     * was not sent stays in the log for the next start.
+     */
+    public synchronized void stop() {
+        if (thread == null)
+            return;
+
+        thread.quitSafely();
+        stoppedThread = thread;
+        thread = null;
+        handler = null;
+    }
+
+    /**
+     * Queue an action for sending. The payload must not be modified after
+     * this call.
+     * <p>
+     * The entry is on disk when this returns. Returns false if the action
+     * was suppressed by the throttle.
+     */
+    public boolean enqueue(Context ctx, final String type, final JSONObject payload) {
+        Sender sender = senders.get(type);
+        if (sender == null)
+            throw new IllegalArgumentException("no outbox sender for " + type);
+
+        String destination;
+        try {
+            destination = type + ":" + sender.getBatchKey(payload);
+        } catch (JSONException e) {
+            throw new IllegalArgumentException("malformed " + type + " payload", e);
+        }
+        if (!throttle.admit(destination, payload.toString())) {
+            Log.i(RuleExecutorService.LOG_TAG, "Suppressed outbound action to " + destination);
+            return false;
+        }
+
+        Handler currentHandler;
+        synchronized (this) {
+            start(ctx);
+            currentHandler = handler;
+        }
+
+        synchronized (logLock) {
+            Entry entry = new Entry(replayed ? nextId++ : NO_ID, type, payload);
+            try {
+                appendLines(Collections.singletonList(addLine(entry)));
+            } catch (IOException | JSONException e) {
+                Log.w(RuleExecutorService.LOG_TAG, "Failed to write outbox entry to disk", e);
+            }
+            if (replayed)
+                incoming.add(entry);
+            else
+                unnumbered.add(entry);
+        }
+
+        stats.increment("enqueued");
+        currentHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                scheduleFlush(FLUSH_DELAY);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Move the entries written by enqueue() to pending. Must be called with
+     * logLock held, on the outbox thread.
+     */
+    private void takeIncoming() {
+        for (Entry e : incoming)
+            pending.put(e.id, e);
+        incoming.clear();
+    }
+
+    private File getLogFile() {
+        return new File(context.getFilesDir(), LOG_FILE);
+    }
+
+    private static String addLine(Entry entry) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("op", "add");
+        if (entry.id != NO_ID)
+            json.put("id", entry.id);
+        json.put("type", entry.type);
+        json.put("payload", entry.payload);
+        return json.toString();
+    }
+
+    private static String ackLine(long id) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("op", "ack");
+        json.put("id", id);
+        return json.toString();
+    }
+
+    private void writeLines(File file, List<String> lines, boolean append) throws IOException {
+        FileOutputStream out = new FileOutputStream(file, append);
+        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"))) {
+            for (String line : lines) {
+                writer.write(line);
+                writer.write('\n');
+            }
+            writer.flush();
+            out.getFD().sync();
+        }
+    }
+
+    private void appendLines(List<String> lines) throws IOException {
+        writeLines(getLogFile(), lines, true);
+    }
+
+    private void replay() {
+        synchronized (logLock) {
+            // entries that were not taken before a stop are in the log,
+            // and so are those enqueued since
+            incoming.clear();
+            doReplay();
+            unnumbered.clear();
+            replayed = true;
+        }
+        scheduleFlush(0);
+    }
+
+    private void doReplay() {
+        File file = getLogFile();
+        // the log alone decides the numbering, see below
+        nextId = 0;
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                try {
+                    JSONObject json = new JSONObject(line);
+                    boolean add = json.getString("op").equals("add");
+                    long id;
+                    // numbered by position, so a replay after a failed compaction agrees
+                    if (add && !json.has("id"))
+                        id = nextId++;
+                    else
+                        id = json.getLong("id");
+                    nextId = Math.max(nextId, id + 1);
+
+                    if (add)
+                        pending.put(id, new Entry(id, json.getString("type"), json.getJSONObject("payload")));
+                    else
+                        pending.remove(id);
+                } catch (JSONException e) {
+                    // a line cut short by a crash, skip it
+                    Log.w(RuleExecutorService.LOG_TAG, "Ignoring corrupt outbox entry", e);
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // nothing to replay
+            return;
+        } catch (IOException e) {
+            Log.e(RuleExecutorService.LOG_TAG, "Failed to read outbox from disk", e);
+            return;
+        }
+
+        Log.i(RuleExecutorService.LOG_TAG, "Replayed " + pending.size() + " pending outbox entries");
+        compact();
+    }
+
+    private void compact() {
+        File file = getLogFile();
+        File tmp = new File(file.getPath() + ".tmp");
+
+        synchronized (logLock) {
+            // what enqueue() appended must survive the rewrite
+            takeIncoming();
+
+            try {
+                List<String> lines = new ArrayList<>();
+                for (Entry e : pending.values())
+                    lines.add(addLine(e));
+                // still waiting for the replay to number them
+                for (Entry e : unnumbered)
+                    lines.add(addLine(e));
+
+                writeLines(tmp, lines, false);
+                if (!tmp.renameTo(file))
+                    throw new IOException("Failed to rename " + tmp + " to " + file);
+
+                ackedSinceCompaction = 0;
+                stats.increment("compactions");
+            } catch (IOException | JSONException e) {
+                Log.w(RuleExecutorService.LOG_TAG, "Failed to compact outbox", e);
+            }
+        }
+    }
+
+    private void scheduleFlush(long delay) {
+        long time = SystemClock.uptimeMillis() + delay;
+        if (scheduledFlushTime != 0 && scheduledFlushTime <= time)
+            return;
+
+        handler.removeCallbacks(flushRunnable);
+        handler.postAtTime(flushRunnable, time);
+        scheduledFlushTime = time;
+    }
+
+    private void flush() {
+        long now = SystemClock.elapsedRealtime();
+        synchronized (logLock) {
+            takeIncoming();
+        }
+
+        // group what is due by batch key, keeping the enqueue order
+        Map<String, List<Entry>> batches = new LinkedHashMap<>();
+        List<Long> acked = new ArrayList<>();
+        for (Entry e : pending.values()) {
+            if (e.nextAttempt > now)
+                continue;
+
+            String key;
+            try {
+                key = e.type + ":" + senders.get(e.type).getBatchKey(e.payload);
+            } catch (JSONException | RuntimeException ex) {
+                Log.e(RuleExecutorService.LOG_TAG, "Dropping malformed outbox entry " + e.id, ex);
+                stats.increment("dropped");
+                acked.add(e.id);
+                continue;
+            }
+
+            List<Entry> batch = batches.get(key);
+            if (batch == null) {
+                batch = new ArrayList<>();
+                batches.put(key, batch);
+            }
+            batch.add(e);
+        }
+
+        for (List<Entry> batch : batches.values())
+            sendBatch(batch, now, acked);
+
+        for (Long id : acked)
+            pending.remove(id);
+        ackedSinceCompaction += acked.size();
+
+        if ((pending.isEmpty() && ackedSinceCompaction > 0) || ackedSinceCompaction >= COMPACT_THRESHOLD) {
+            compact();
+        } else if (!acked.isEmpty()) {
+            try {
+                List<String> lines = new ArrayList<>();
+                for (Long id : acked)
+                    lines.add(ackLine(id));
+                synchronized (logLock) {
+                    appendLines(lines);
+                }
+            } catch (IOException | JSONException e) {
+                // the entries will be sent again after a restart
+                Log.w(RuleExecutorService.LOG_TAG, "Failed to write outbox acks to disk", e);
+            }
+        }
+
+        long nextAttempt = Long.MAX_VALUE;
+        for (Entry e : pending.values())
+            nextAttempt = Math.min(nextAttempt, e.nextAttempt);
+        if (nextAttempt != Long.MAX_VALUE)
+            scheduleFlush(Math.max(0, nextAttempt - now));
+    }
+
+    private void sendBatch(List<Entry> batch, long now, List<Long> acked) {
+        Iterator<Entry> it = batch.iterator();
+        while (it.hasNext()) {
+            Entry e = it.next();
+
+            try {
+                senders.get(e.type).send(context, e.payload);
+                stats.increment("sent");
+                acked.add(e.id);
+            } catch (IOException ex) {
+                e.attempts++;
+                if (e.attempts >= MAX_ATTEMPTS) {
+                    Log.e(RuleExecutorService.LOG_TAG, "Giving up on outbox entry " + e.id + " after " + e.attempts + " attempts", ex);
+                    stats.increment("dropped");
+                    acked.add(e.id);
+                    continue;
+                }
+
+                // the destination is probably down, so the rest of the batch waits too
+                long backoff = Math.min(BASE_BACKOFF << (e.attempts - 1), MAX_BACKOFF);
+                Log.i(RuleExecutorService.LOG_TAG, "Failed to send outbox entry " + e.id + ", retrying in " + backoff + " ms");
+                stats.increment("retried");
+                e.nextAttempt = now + backoff;
+                while (it.hasNext())
+                    it.next().nextAttempt = now + backoff;
+                return;
+            } catch (JSONException | RuntimeException ex) {
+                Log.e(RuleExecutorService.LOG_TAG, "Dropping outbox entry " + e.id, ex);
+                stats.increment("dropped");
+                acked.add(e.id);
+            }
+        }
+    }
+
+    public void dump(PrintWriter writer) {
+        writer.println("Action outbox:");
+        stats.dump(writer);
+    }
+}
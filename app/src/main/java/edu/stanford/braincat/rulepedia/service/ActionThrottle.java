@@ -0,0 +1,102 @@
+package edu.stanford.braincat.rulepedia.service;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import edu.stanford.braincat.rulepedia.channels.Util;
+
+/**
+ * Created by gcampagn on 6/11/15.
+ * <p>
+ * Protects a destination (a remote host, the SMS radio) from runaway rules.
+ * <p>
+ * Each destination gets a TokenBucket, and an action whose content is the
+ * same as one accepted for the same destination within the dedupe window
+ * is suppressed. Content is compared by a 64 bit hash.
+ */
+public class ActionThrottle {
+    public static final int DEFAULT_CAPACITY = 20;
+    public static final long DEFAULT_REFILL_INTERVAL = 3 * 1000;
+    public static final long DEFAULT_DEDUPE_WINDOW = 60 * 1000;
+
+    // past this many destinations, idle buckets are forgotten
+    private static final int MAX_IDLE_BUCKETS = 64;
+
+    private final int capacity;
+    private final long refillInterval;
+    private final long dedupeWindow;
+    private final ExecutorStats stats;
+
+    private final Map<String, TokenBucket> buckets;
+    // content hash -> expiry time, oldest first
+    private final LinkedHashMap<Long, Long> recent;
+
+    public ActionThrottle(ExecutorStats stats) {
+        this(DEFAULT_CAPACITY, DEFAULT_REFILL_INTERVAL, DEFAULT_DEDUPE_WINDOW, stats);
+    }
+
+    public ActionThrottle(int capacity, long refillInterval, long dedupeWindow, ExecutorStats stats) {
+        this.capacity = capacity;
+        this.refillInterval = refillInterval;
+        this.dedupeWindow = dedupeWindow;
+        this.stats = stats;
+        buckets = new HashMap<>();
+        recent = new LinkedHashMap<>();
+    }
+
+    private static long hash(String destination, String content) {
+        return Util.fingerprint64(destination + '\0' + content);
+    }
+
+    private void expire(long now) {
+        Iterator<Map.Entry<Long, Long>> it = recent.entrySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().getValue() > now)
+                break;
+            it.remove();
+        }
+    }
+
+    private void pruneBuckets() {
+        // a full bucket is the same as a new one
+        Iterator<TokenBucket> it = buckets.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().isFull())
+                it.remove();
+        }
+    }
+
+    /**
+     * Returns true if an action with this content can be sent to the
+     * destination now, false if it should be dropped.
+     */
+    public synchronized boolean admit(String destination, String content) {
+        long now = SystemClock.elapsedRealtime();
+        expire(now);
+
+        long contentHash = hash(destination, content);
+        if (recent.containsKey(contentHash)) {
+            stats.increment("suppressed.duplicate");
+            return false;
+        }
+
+        TokenBucket bucket = buckets.get(destination);
+        if (bucket == null) {
+            if (buckets.size() >= MAX_IDLE_BUCKETS)
+                pruneBuckets();
+            bucket = new TokenBucket(capacity, refillInterval);
+            buckets.put(destination, bucket);
+        }
+        if (!bucket.tryAcquire()) {
+            stats.increment("suppressed.rate");
+            return false;
+        }
+
+        recent.put(contentHash, now + dedupeWindow);
+        return true;
+    }
+}
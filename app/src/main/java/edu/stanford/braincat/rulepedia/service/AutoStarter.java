@@ -14,7 +14,7 @@ public class AutoStarter extends BroadcastReceiver {
     public static void startService(Context context) {
         Log.i(RuleExecutorService.LOG_TAG, "Auto starting service");
 
-        Intent pushIntent = new Intent(context, RuleExecutorService.class);
+        Intent pushIntent = new Intent(context, RuleExecutorService.getServiceClass(context));
         context.startService(pushIntent);
     }
 
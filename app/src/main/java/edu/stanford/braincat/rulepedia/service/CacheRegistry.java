@@ -0,0 +1,129 @@
+package edu.stanford.braincat.rulepedia.service;
+
+import android.content.ComponentCallbacks2;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Created by gcampagn on 6/16/15.
+ * <p>
+ * Knows every in-memory cache of the app, and shrinks them when
+ * RuleExecutorService is told that memory is low.
+ * <p>
+ * Each cache is registered with the cost of rebuilding what it holds. The
+ * trim level is mapped to a pressure between 1 and 4: caches cheaper than the
+ * pressure are cleared, those that cost exactly the pressure are halved, and
+ * the more expensive ones are left alone. So the cheap caches go first, and
+ * only onLowMemory() or TRIM_MEMORY_COMPLETE clear everything.
+ */
+public class CacheRegistry {
+    // a lookup or a decode of data we have locally
+    public static final int COST_LOW = 1;
+    // a parse or a query to a content provider
+    public static final int COST_MEDIUM = 2;
+    // a network fetch, or a cache that rule firing relies on being warm
+    public static final int COST_HIGH = 3;
+
+    private static final int PRESSURE_ALL = 4;
+
+    private static class Registration {
+        private final ManagedCache cache;
+        private final int cost;
+        private int trims;
+
+        private Registration(ManagedCache cache, int cost) {
+            this.cache = cache;
+            this.cost = cost;
+        }
+    }
+
+    private static final CacheRegistry instance = new CacheRegistry();
+
+    public static CacheRegistry get() {
+        return instance;
+    }
+
+    private final Map<String, Registration> caches;
+
+    private CacheRegistry() {
+        caches = new TreeMap<>();
+    }
+
+    public synchronized void register(String name, ManagedCache cache, int cost) {
+        if (cost < COST_LOW || cost > COST_HIGH)
+            throw new IllegalArgumentException("invalid cache cost " + cost);
+        if (caches.containsKey(name))
+            throw new IllegalStateException("cache " + name + " is already registered");
+
+        caches.put(name, new Registration(cache, cost));
+    }
+
+    private static int pressureForLevel(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE)
+            return PRESSURE_ALL;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE)
+            return 3;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND)
+            return 2;
+        // the service has no UI, hiding it frees nothing
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN)
+            return 0;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL)
+            return 3;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+            return 2;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE)
+            return 1;
+        return 0;
+    }
+
+    /**
+     * Called from ComponentCallbacks2.onTrimMemory().
+     */
+    public void trimMemory(int level) {
+        shrink(pressureForLevel(level));
+    }
+
+    /**
+     * Called from ComponentCallbacks.onLowMemory().
+     */
+    public void lowMemory() {
+        shrink(PRESSURE_ALL);
+    }
+
+    private synchronized void shrink(int pressure) {
+        if (pressure == 0)
+            return;
+
+        long before = 0;
+        long after = 0;
+        for (Registration r : caches.values()) {
+            if (r.cost > pressure)
+                continue;
+
+            before += r.cache.getSize();
+            r.cache.shrink(r.cost < pressure ? 0 : 0.5f);
+            r.trims++;
+            after += r.cache.getSize();
+        }
+
+        Log.i(RuleExecutorService.LOG_TAG, "Memory pressure " + pressure + ", shrunk caches from "
+                + (before / 1024) + " KB to " + (after / 1024) + " KB");
+    }
+
+    public synchronized void dump(PrintWriter writer) {
+        writer.println("Caches (size / hit rate / trims):");
+        for (Map.Entry<String, Registration> e : caches.entrySet()) {
+            ManagedCache cache = e.getValue().cache;
+            long hits = cache.getHitCount();
+            long lookups = hits + cache.getMissCount();
+
+            writer.println("  " + e.getKey() + ": " + (cache.getSize() / 1024) + " KB / "
+                    + (lookups > 0 ? (100 * hits / lookups) + "%" : "-") + " of " + lookups
+                    + " / " + e.getValue().trims);
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package edu.stanford.braincat.rulepedia.service;
+
+import android.content.Context;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Created by gcampagn on 6/17/15.
+ * <p>
+ * A small key-value log for the checkpoints of the rule executor, kept in a
+ * memory mapped file so that writes survive the process being killed
+ * without an fsync.
+ * <p>
+ * The file has a header and two regions. Only one region is active: changed
+ * values are appended to it as records, and the end offset in the header is
+ * updated after the record is complete, so a half written record is never
+ * read back. When the active region is full, the live values are written to
+ * the other region, which then becomes active by flipping a single byte.
+ * <p>
+ * Putting a value equal to the current one writes nothing, so callers can
+ * save everything every time and only pay for what changed.
+ */
+public class CheckpointStore {
+    private static final String FILE_NAME = "checkpoint.bin";
+    private static final byte[] MAGIC = new byte[]{'R', 'P', 'C', 'K'};
+    private static final int VERSION = 1;
+    static final int REGION_SIZE = 64 * 1024;
+    // keys of the state shared by several rules, kept by retainRules()
+    static final String SHARED_PREFIX = "shared/";
+
+    // magic, version, active region, padding, end of region 0, end of region 1
+    private static final int OFFSET_VERSION = 4;
+    private static final int OFFSET_ACTIVE = 5;
+    private static final int OFFSET_END = 8;
+    private static final int HEADER_SIZE = 16;
+
+    // key length, value length (-1 for a removed key)
+    private static final int RECORD_HEADER_SIZE = 6;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // null if the file could not be mapped, checkpoints are disabled then
+    @Nullable
+    private final MappedByteBuffer buffer;
+    private final Map<String, String> values;
+    private int active;
+    private int end;
+
+    private long writes;
+    private long unchanged;
+    private long compactions;
+    private long dropped;
+
+    private CheckpointStore(@Nullable MappedByteBuffer buffer) {
+        this.buffer = buffer;
+        values = new HashMap<>();
+    }
+
+    /**
+     * Open the checkpoint file of the app. Never fails: if the file cannot
+     * be mapped, the store is empty and forgets what is put in it.
+     */
+    public static CheckpointStore open(Context ctx) {
+        File file = ctx.getFileStreamPath(FILE_NAME);
+
+        MappedByteBuffer buffer = null;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            // the mapping stays valid after the file is closed
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + 2 * REGION_SIZE);
+        } catch (IOException e) {
+            Log.e(RuleExecutorService.LOG_TAG, "Failed to map checkpoint file, checkpoints are disabled", e);
+        }
+
+        CheckpointStore store = new CheckpointStore(buffer);
+        store.load();
+        return store;
+    }
+
+    private static int regionStart(int region) {
+        return HEADER_SIZE + region * REGION_SIZE;
+    }
+
+    private boolean hasValidHeader() {
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (buffer.get(i) != MAGIC[i])
+                return false;
+        }
+        return buffer.get(OFFSET_VERSION) == VERSION;
+    }
+
+    private void reset() {
+        values.clear();
+        // invalid until the header is complete
+        buffer.put(OFFSET_VERSION, (byte) 0);
+        buffer.putInt(OFFSET_END, 0);
+        buffer.putInt(OFFSET_END + 4, 0);
+        buffer.put(OFFSET_ACTIVE, (byte) 0);
+        for (int i = 0; i < MAGIC.length; i++)
+            buffer.put(i, MAGIC[i]);
+        buffer.put(OFFSET_VERSION, (byte) VERSION);
+        active = 0;
+        end = 0;
+    }
+
+    private void load() {
+        if (buffer == null)
+            return;
+
+        if (!hasValidHeader()) {
+            reset();
+            return;
+        }
+
+        try {
+            active = buffer.get(OFFSET_ACTIVE) & 1;
+            end = buffer.getInt(OFFSET_END + 4 * active);
+            if (end < 0 || end > REGION_SIZE)
+                throw new IOException("invalid end offset " + end);
+
+            ByteBuffer region = regionSlice(active);
+            region.limit(end);
+            while (region.hasRemaining()) {
+                int keyLength = region.getShort() & 0xFFFF;
+                int valueLength = region.getInt();
+                String key = readString(region, keyLength);
+                if (valueLength < 0)
+                    values.remove(key);
+                else
+                    values.put(key, readString(region, valueLength));
+            }
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+            Log.w(RuleExecutorService.LOG_TAG, "Discarding corrupt checkpoint file", e);
+            reset();
+        }
+    }
+
+    private ByteBuffer regionSlice(int region) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(regionStart(region));
+        duplicate.limit(regionStart(region) + REGION_SIZE);
+        return duplicate.slice();
+    }
+
+    private static String readString(ByteBuffer region, int length) {
+        byte[] bytes = new byte[length];
+        region.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private static int recordSize(byte[] key, @Nullable byte[] value) {
+        return RECORD_HEADER_SIZE + key.length + (value != null ? value.length : 0);
+    }
+
+    private static void writeRecord(ByteBuffer region, byte[] key, @Nullable byte[] value) {
+        region.putShort((short) key.length);
+        region.putInt(value != null ? value.length : -1);
+        region.put(key);
+        if (value != null)
+            region.put(value);
+    }
+
+    /**
+     * Append a record to the active region, returns false if it does not fit.
+     */
+    private boolean append(byte[] key, @Nullable byte[] value) {
+        if (end + recordSize(key, value) > REGION_SIZE)
+            return false;
+
+        ByteBuffer region = regionSlice(active);
+        region.position(end);
+        writeRecord(region, key, value);
+        end = region.position();
+        // the record only exists once the end offset covers it
+        buffer.putInt(OFFSET_END + 4 * active, end);
+        return true;
+    }
+
+    /**
+     * Rewrite the live values into the other region and switch to it.
+     * Returns false if they don't fit, the active region is untouched then.
+     */
+    private boolean compact() {
+        int other = 1 - active;
+        ByteBuffer region = regionSlice(other);
+
+        for (Map.Entry<String, String> e : values.entrySet()) {
+            byte[] key = e.getKey().getBytes(UTF8);
+            byte[] value = e.getValue().getBytes(UTF8);
+            if (region.position() + recordSize(key, value) > REGION_SIZE)
+                return false;
+            writeRecord(region, key, value);
+        }
+
+        buffer.putInt(OFFSET_END + 4 * other, region.position());
+        buffer.put(OFFSET_ACTIVE, (byte) other);
+        active = other;
+        end = region.position();
+        compactions++;
+        return true;
+    }
+
+    private void write(String key, @Nullable String value) {
+        if (buffer == null)
+            return;
+
+        byte[] keyBytes = key.getBytes(UTF8);
+        byte[] valueBytes = value != null ? value.getBytes(UTF8) : null;
+        if (append(keyBytes, valueBytes) || compact())
+            return;
+
+        // the live values do not fit in a region, forget this key entirely
+        Log.w(RuleExecutorService.LOG_TAG, "Checkpoint store is full, dropping " + key);
+        values.remove(key);
+        dropped++;
+        if (!compact())
+            reset();
+    }
+
+    @Nullable
+    public synchronized String get(String key) {
+        return values.get(key);
+    }
+
+    /**
+     * Store a value, returns true if anything had to be written.
+     */
+    public synchronized boolean put(String key, String value) {
+        if (value.equals(values.get(key))) {
+            unchanged++;
+            return false;
+        }
+
+        values.put(key, value);
+        write(key, value);
+        writes++;
+        return true;
+    }
+
+    public synchronized void remove(String key) {
+        if (values.remove(key) == null)
+            return;
+
+        write(key, null);
+        writes++;
+    }
+
+    /**
+     * Remove every key that starts with the prefix.
+     */
+    public synchronized void removePrefix(String prefix) {
+        List<String> toRemove = new ArrayList<>();
+        for (String key : values.keySet()) {
+            if (key.startsWith(prefix))
+                toRemove.add(key);
+        }
+        for (String key : toRemove)
+            remove(key);
+    }
+
+    /**
+     * Remove the keys of rules that do not exist anymore. Keys start with
+     * the rule id, followed by a slash, or with SHARED_PREFIX.
+     */
+    public synchronized void retainRules(Set<String> ruleIds) {
+        boolean changed = false;
+        Iterator<String> it = values.keySet().iterator();
+        while (it.hasNext()) {
+            String key = it.next();
+            if (key.startsWith(SHARED_PREFIX))
+                continue;
+            int slash = key.indexOf('/');
+            if (slash < 0 || !ruleIds.contains(key.substring(0, slash))) {
+                it.remove();
+                changed = true;
+            }
+        }
+
+        if (changed && buffer != null && !compact())
+            reset();
+    }
+
+    /**
+     * Ask the kernel to write the file to disk, so the checkpoints also
+     * survive a reboot.
+     */
+    public synchronized void flush() {
+        if (buffer != null)
+            buffer.force();
+    }
+
+    public synchronized void dump(PrintWriter writer) {
+        writer.println("Checkpoints:");
+        if (buffer == null) {
+            writer.println("  disabled");
+            return;
+        }
+        writer.println("  " + values.size() + " keys, " + end + " / " + REGION_SIZE + " bytes in region " + active);
+        writer.println("  " + writes + " written, " + unchanged + " unchanged, " + compactions + " compactions, "
+                + dropped + " dropped");
+    }
+}
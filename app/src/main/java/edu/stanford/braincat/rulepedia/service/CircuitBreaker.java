@@ -0,0 +1,119 @@
+package edu.stanford.braincat.rulepedia.service;
+
+import android.os.SystemClock;
+
+/**
+ * Created by gcampagn on 6/9/15.
+ * <p>
+ * Stops calling something that keeps failing.
+ * <p>
+ * The breaker starts CLOSED. After failureThreshold failures in a row it
+ * goes OPEN and refuses every request until the backoff expires; then it lets
+ * a single probe through (HALF_OPEN). A successful probe closes it again, a
+ * failed one reopens it with twice the backoff, up to maxBackoff.
+ */
+public class CircuitBreaker {
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long baseBackoff;
+    private final long maxBackoff;
+
+    private State state;
+    private int failures;
+    private long backoff;
+    private long retryTime;
+    private boolean probing;
+
+    public CircuitBreaker(int failureThreshold, long baseBackoff, long maxBackoff) {
+        this.failureThreshold = failureThreshold;
+        this.baseBackoff = baseBackoff;
+        this.maxBackoff = maxBackoff;
+        state = State.CLOSED;
+        backoff = baseBackoff;
+    }
+
+    public synchronized State getState() {
+        if (state == State.OPEN && SystemClock.elapsedRealtime() >= retryTime)
+            return State.HALF_OPEN;
+        return state;
+    }
+
+    /**
+     * Returns true if the caller should go ahead, false if it should skip
+     * the request. In HALF_OPEN, only the first caller goes ahead, and it
+     * must report its outcome, or release the probe.
+     */
+    public synchronized boolean allowRequest() {
+        switch (state) {
+            case CLOSED:
+                return true;
+
+            case OPEN:
+                if (SystemClock.elapsedRealtime() < retryTime)
+                    return false;
+                state = State.HALF_OPEN;
+                probing = false;
+                // fall through
+
+            case HALF_OPEN:
+            default:
+                if (probing)
+                    return false;
+                probing = true;
+                return true;
+        }
+    }
+
+    public synchronized void recordSuccess() {
+        state = State.CLOSED;
+        failures = 0;
+        backoff = baseBackoff;
+        probing = false;
+    }
+
+    /**
+     * The caller went ahead but has no outcome to report, so let the next
+     * one probe instead.
+     */
+    public synchronized void releaseProbe() {
+        probing = false;
+    }
+
+    /**
+     * Returns true if this failure opened the breaker.
+     */
+    public synchronized boolean recordFailure() {
+        failures++;
+
+        if (state == State.HALF_OPEN) {
+            backoff = Math.min(backoff * 2, maxBackoff);
+            open();
+            return true;
+        }
+
+        if (state == State.CLOSED && failures >= failureThreshold) {
+            open();
+            return true;
+        }
+
+        return false;
+    }
+
+    private void open() {
+        state = State.OPEN;
+        probing = false;
+        retryTime = SystemClock.elapsedRealtime() + backoff;
+    }
+
+    public synchronized long getBackoff() {
+        return backoff;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return getState() + " (" + failures + " failures, backoff " + backoff + " ms)";
+    }
+}
@@ -0,0 +1,65 @@
+package edu.stanford.braincat.rulepedia.service;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Created by gcampagn on 6/6/15.
+ * <p>
+ * Counters and timings collected by a RuleExecutor, reported by
+ * dumpsys through RuleExecutorService.
+ */
+public class ExecutorStats {
+    private static class Timing {
+        private long count;
+        private long total;
+        private long max;
+    }
+
+    private final Map<String, Long> counters;
+    private final Map<String, Timing> timings;
+
+    public ExecutorStats() {
+        counters = new TreeMap<>();
+        timings = new TreeMap<>();
+    }
+
+    public synchronized void increment(String name) {
+        add(name, 1);
+    }
+
+    public synchronized void add(String name, long delta) {
+        Long value = counters.get(name);
+        counters.put(name, value == null ? delta : value + delta);
+    }
+
+    public synchronized long getCounter(String name) {
+        Long value = counters.get(name);
+        return value == null ? 0 : value;
+    }
+
+    public synchronized void recordTiming(String name, long millis) {
+        Timing timing = timings.get(name);
+        if (timing == null) {
+            timing = new Timing();
+            timings.put(name, timing);
+        }
+
+        timing.count++;
+        timing.total += millis;
+        timing.max = Math.max(timing.max, millis);
+    }
+
+    public synchronized void dump(PrintWriter writer) {
+        writer.println("Counters:");
+        for (Map.Entry<String, Long> e : counters.entrySet())
+            writer.println("  " + e.getKey() + ": " + e.getValue());
+
+        writer.println("Timings (count / total ms / max ms):");
+        for (Map.Entry<String, Timing> e : timings.entrySet()) {
+            Timing t = e.getValue();
+            writer.println("  " + e.getKey() + ": " + t.count + " / " + t.total + " / " + t.max);
+        }
+    }
+}
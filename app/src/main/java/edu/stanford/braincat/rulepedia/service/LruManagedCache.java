@@ -0,0 +1,44 @@
+package edu.stanford.braincat.rulepedia.service;
+
+import android.util.LruCache;
+
+/**
+ * Created by gcampagn on 6/16/15.
+ * <p>
+ * Exposes an android.util.LruCache as a ManagedCache.
+ * <p>
+ * unitBytes converts from the units of the LruCache (usually entries, or
+ * already bytes if it overrides sizeOf()) to bytes.
+ */
+public class LruManagedCache implements ManagedCache {
+    private final LruCache<?, ?> cache;
+    private final int unitBytes;
+
+    public LruManagedCache(LruCache<?, ?> cache, int unitBytes) {
+        this.cache = cache;
+        this.unitBytes = unitBytes;
+    }
+
+    @Override
+    public long getSize() {
+        return (long) cache.size() * unitBytes;
+    }
+
+    @Override
+    public long getHitCount() {
+        return cache.hitCount();
+    }
+
+    @Override
+    public long getMissCount() {
+        return cache.missCount();
+    }
+
+    @Override
+    public void shrink(float keep) {
+        if (keep <= 0)
+            cache.evictAll();
+        else
+            cache.trimToSize((int) (cache.size() * keep));
+    }
+}
@@ -0,0 +1,27 @@
+package edu.stanford.braincat.rulepedia.service;
+
+/**
+ * Created by gcampagn on 6/16/15.
+ * <p>
+ * A cache that can give memory back when the system asks, through the
+ * CacheRegistry.
+ * <p>
+ * Implementations must be thread safe, the registry calls them from the
+ * main thread.
+ */
+public interface ManagedCache {
+    /**
+     * Approximate memory held, in bytes.
+     */
+    long getSize();
+
+    long getHitCount();
+
+    long getMissCount();
+
+    /**
+     * Drop entries until only about the given fraction of the current size
+     * is left. 0 means drop everything.
+     */
+    void shrink(float keep);
+}
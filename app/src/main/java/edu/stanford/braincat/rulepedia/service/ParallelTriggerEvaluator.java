@@ -0,0 +1,155 @@
+package edu.stanford.braincat.rulepedia.service;
+
+import android.os.Process;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.stanford.braincat.rulepedia.exceptions.RuleExecutionException;
+import edu.stanford.braincat.rulepedia.model.CompositeTrigger;
+import edu.stanford.braincat.rulepedia.model.IsolatedTrigger;
+import edu.stanford.braincat.rulepedia.model.Rule;
+import edu.stanford.braincat.rulepedia.model.Trigger;
+
+/**
+ * Created by gcampagn on 6/6/15.
+ * <p>
+ * Evaluates the triggers of a batch of rules on a pool of worker threads.
+ * <p>
+ * Only rules with an isolated trigger are sent to the workers, the others
+ * are evaluated on the executor thread while the workers run. Results are
+ * returned in the order of the rules passed in, so the caller can dispatch
+ * them in priority order.
+ * <p>
+ * Workers enter a Rhino Context the first time they run a script, and keep
+ * it until they exit.
+ */
+class ParallelTriggerEvaluator {
+    // below this, the overhead of the handoff dominates
+    static final int MIN_PARALLEL_RULES = 8;
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    static class Result {
+        private final boolean firing;
+        private final Exception error;
+
+        private Result(boolean firing, Exception error) {
+            this.firing = firing;
+            this.error = error;
+        }
+
+        boolean isFiring() throws RuleExecutionException {
+            if (error instanceof RuleExecutionException)
+                throw (RuleExecutionException) error;
+            if (error instanceof RuntimeException)
+                throw (RuntimeException) error;
+            if (error != null)
+                throw new RuleExecutionException(error);
+            return firing;
+        }
+    }
+
+    private final ThreadPoolExecutor pool;
+
+    ParallelTriggerEvaluator() {
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+
+        pool = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, "RuleEvaluator-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    static boolean isIsolated(Trigger trigger) {
+        if (trigger instanceof CompositeTrigger)
+            return ((CompositeTrigger) trigger).isIsolated();
+        return trigger instanceof IsolatedTrigger;
+    }
+
+    /**
+     * Evaluate one rule on the calling thread.
+     */
+    static Result evaluate(Rule rule) {
+        try {
+            return new Result(rule.isFiring(), null);
+        } catch (RuleExecutionException | RuntimeException e) {
+            return new Result(false, e);
+        }
+    }
+
+    List<Result> evaluate(List<Rule> rules) {
+        List<Future<Result>> futures = new ArrayList<>(rules.size());
+        List<Result> results = new ArrayList<>(rules.size());
+
+        for (final Rule r : rules) {
+            if (r.isEnabled() && isIsolated(r.getTrigger())) {
+                futures.add(pool.submit(new Callable<Result>() {
+                    @Override
+                    public Result call() {
+                        return evaluate(r);
+                    }
+                }));
+            } else {
+                futures.add(null);
+            }
+        }
+
+        // evaluate the rest here in the meantime
+        for (int i = 0; i < rules.size(); i++) {
+            if (futures.get(i) == null)
+                results.add(evaluate(rules.get(i)));
+            else
+                results.add(null);
+        }
+
+        for (int i = 0; i < rules.size(); i++) {
+            Future<Result> future = futures.get(i);
+            if (future == null)
+                continue;
+
+            Result result;
+            while (true) {
+                try {
+                    result = future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    // try again, the workers never block
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    result = new Result(false, cause instanceof Exception ? (Exception) cause : new RuntimeException(cause));
+                    break;
+                }
+            }
+            results.set(i, result);
+        }
+
+        return results;
+    }
+
+    void shutdown() {
+        pool.shutdown();
+    }
+}
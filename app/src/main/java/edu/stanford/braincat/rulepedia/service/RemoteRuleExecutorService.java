@@ -0,0 +1,12 @@
+package edu.stanford.braincat.rulepedia.service;
+
+/**
+ * Created by gcampagn on 6/18/15.
+ * <p>
+ * RuleExecutorService, declared in the manifest to run in the ":engine"
+ * process. Which of the two is enabled is chosen by the
+ * engine_in_own_process resource, use RuleExecutorService.getServiceClass()
+ * to start or bind to the engine.
+ */
+public class RemoteRuleExecutorService extends RuleExecutorService {
+}
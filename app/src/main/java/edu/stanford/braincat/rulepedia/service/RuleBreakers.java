@@ -0,0 +1,110 @@
+package edu.stanford.braincat.rulepedia.service;
+
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.stanford.braincat.rulepedia.model.Rule;
+
+/**
+ * Created by gcampagn on 6/20/15.
+ * <p>
+ * The CircuitBreakers of the rules of a shard.
+ * <p>
+ * Rules that keep failing get a breaker, and are not evaluated at all
+ * while it is open. Only rules that failed recently have one.
+ * <p>
+ * Used on the shard thread, except for dump().
+ */
+class RuleBreakers {
+    private static final int FAILURE_THRESHOLD = 3;
+    private static final long BASE_BACKOFF = 30 * 1000;
+    private static final long MAX_BACKOFF = 30 * 60 * 1000;
+
+    private final Map<Rule, CircuitBreaker> breakers;
+    private final ExecutorStats stats;
+
+    RuleBreakers(ExecutorStats stats) {
+        this.stats = stats;
+        breakers = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Returns true if the rule should be evaluated in this pass.
+     */
+    boolean admit(Rule rule) {
+        CircuitBreaker breaker = breakers.get(rule);
+        if (breaker != null && !breaker.allowRequest()) {
+            stats.increment("breaker.skipped");
+            return false;
+        }
+        return true;
+    }
+
+    boolean isOpen(Rule rule) {
+        CircuitBreaker breaker = breakers.get(rule);
+        return breaker != null && breaker.getState() == CircuitBreaker.State.OPEN;
+    }
+
+    void failed(Rule rule, String message, Exception e) {
+        stats.increment("rules.failed");
+
+        CircuitBreaker breaker = breakers.get(rule);
+        if (breaker == null) {
+            breaker = new CircuitBreaker(FAILURE_THRESHOLD, BASE_BACKOFF, MAX_BACKOFF);
+            breakers.put(rule, breaker);
+            Log.e(RuleExecutorService.LOG_TAG, message + " " + rule.toHumanString(), e);
+        }
+
+        if (breaker.recordFailure()) {
+            stats.increment("breaker.opened");
+            Log.w(RuleExecutorService.LOG_TAG, "Rule " + rule.getId() + " keeps failing, backing off for "
+                    + breaker.getBackoff() + " ms");
+        }
+    }
+
+    /**
+     * The rule fired and all its actions ran.
+     */
+    void succeeded(Rule rule) {
+        CircuitBreaker breaker = breakers.remove(rule);
+        if (breaker != null && breaker.getState() != CircuitBreaker.State.CLOSED) {
+            stats.increment("breaker.closed");
+            Log.i(RuleExecutorService.LOG_TAG, "Rule " + rule.getId() + " recovered");
+        }
+    }
+
+    /**
+     * The rule was admitted but did not fire, which says nothing about
+     * whether it recovered.
+     */
+    void inconclusive(Rule rule) {
+        CircuitBreaker breaker = breakers.get(rule);
+        if (breaker != null)
+            breaker.releaseProbe();
+    }
+
+    void remove(Rule rule) {
+        breakers.remove(rule);
+    }
+
+    void clear() {
+        breakers.clear();
+    }
+
+    void dump(PrintWriter writer, int ruleCount) {
+        int open = 0;
+        int halfOpen = 0;
+        for (CircuitBreaker b : breakers.values()) {
+            CircuitBreaker.State state = b.getState();
+            if (state == CircuitBreaker.State.OPEN)
+                open++;
+            else if (state == CircuitBreaker.State.HALF_OPEN)
+                halfOpen++;
+        }
+        writer.println("Rule breakers: " + (ruleCount - open - halfOpen) + " closed / "
+                + open + " open / " + halfOpen + " half-open");
+    }
+}
@@ -0,0 +1,134 @@
+package edu.stanford.braincat.rulepedia.service;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import edu.stanford.braincat.rulepedia.exceptions.ScriptBudgetException;
+import edu.stanford.braincat.rulepedia.model.Rule;
+
+/**
+ * Created by gcampagn on 6/20/15.
+ * <p>
+ * What the rules of a shard are allowed to spend.
+ * <p>
+ * Rules whose scripts go over their budget are demoted: they are left out of
+ * the later passes of the current batch. A rule that goes over budget
+ * MAX_BUDGET_VIOLATIONS times within VIOLATION_WINDOW ms is disabled; older
+ * violations are forgotten.
+ * <p>
+ * Each rule can fire at most FIRE_CAPACITY times in a burst, and then once
+ * every FIRE_INTERVAL ms.
+ * <p>
+ * Only used on the shard thread.
+ */
+class RuleBudgets {
+    // script budget violations within the window before a rule is disabled
+    private static final int MAX_BUDGET_VIOLATIONS = 3;
+    private static final long VIOLATION_WINDOW = 60 * 60 * 1000;
+
+    private static final int FIRE_CAPACITY = 10;
+    private static final long FIRE_INTERVAL = 6 * 1000;
+
+    private static class Violations {
+        private int count;
+        private long windowStart;
+    }
+
+    private final Map<Rule, Violations> budgetViolations;
+    private final Set<Rule> demoted;
+    private final Map<Rule, TokenBucket> fireBuckets;
+    private final ExecutorStats stats;
+
+    RuleBudgets(ExecutorStats stats) {
+        this.stats = stats;
+        budgetViolations = new HashMap<>();
+        demoted = new HashSet<>();
+        fireBuckets = new HashMap<>();
+    }
+
+    /**
+     * Start a new batch: demoted rules get evaluated again.
+     */
+    void startBatch() {
+        demoted.clear();
+    }
+
+    boolean isDemoted(Rule rule) {
+        return demoted.contains(rule);
+    }
+
+    /**
+     * Record that the scripts of the rule went over budget. Returns true if
+     * the rule must be disabled.
+     * <p>
+     * Only the rule whose scripts ran must be charged, not the rules that
+     * share its trigger.
+     */
+    boolean budgetExceeded(Rule rule, ScriptBudgetException e) {
+        stats.increment("scripts.over-budget");
+        demoted.add(rule);
+
+        long now = SystemClock.elapsedRealtime();
+        Violations violations = budgetViolations.get(rule);
+        if (violations == null || now - violations.windowStart > VIOLATION_WINDOW) {
+            violations = new Violations();
+            violations.windowStart = now;
+            budgetViolations.put(rule, violations);
+        }
+        int count = ++violations.count;
+
+        if (count < MAX_BUDGET_VIOLATIONS) {
+            Log.w(RuleExecutorService.LOG_TAG, "Rule " + rule.toHumanString() + " went over its script budget, demoting", e);
+            return false;
+        }
+
+        Log.w(RuleExecutorService.LOG_TAG, "Rule " + rule.toHumanString() + " went over its script budget "
+                + count + " times, disabling", e);
+        stats.increment("rules.disabled.over-budget");
+        return true;
+    }
+
+    /**
+     * Take a token from the firing budget of the rule, returns false if it
+     * fired too often recently.
+     */
+    boolean admitFire(Rule rule) {
+        TokenBucket bucket = fireBuckets.get(rule);
+        if (bucket == null) {
+            bucket = new TokenBucket(FIRE_CAPACITY, FIRE_INTERVAL);
+            fireBuckets.put(rule, bucket);
+        }
+
+        if (bucket.tryAcquire())
+            return true;
+
+        stats.increment("suppressed.fire");
+        return false;
+    }
+
+    /**
+     * Forget the script budget violations of the rule, when the user turns
+     * it back on.
+     */
+    void forgive(Rule rule) {
+        budgetViolations.remove(rule);
+        demoted.remove(rule);
+    }
+
+    void remove(Rule rule) {
+        budgetViolations.remove(rule);
+        demoted.remove(rule);
+        fireBuckets.remove(rule);
+    }
+
+    void clear() {
+        budgetViolations.clear();
+        demoted.clear();
+        fireBuckets.clear();
+    }
+}
@@ -0,0 +1,302 @@
+package edu.stanford.braincat.rulepedia.service;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import edu.stanford.braincat.rulepedia.events.EventSource;
+import edu.stanford.braincat.rulepedia.exceptions.RuleExecutionException;
+import edu.stanford.braincat.rulepedia.exceptions.ScriptBudgetException;
+import edu.stanford.braincat.rulepedia.model.Rule;
+
+/**
+ * Created by gcampagn on 6/20/15.
+ * <p>
+ * Runs the passes of a shard: updates the triggers of its rules from the
+ * event sources, evaluates them, and fires the rules whose trigger is true,
+ * in priority order.
+ * <p>
+ * One batch drains up to MAX_BATCH_PASSES rounds of queued events: the
+ * first pass evaluates every rule, later passes only the rules that still
+ * have events queued.
+ * <p>
+ * Rules with the same trigger share one evaluation per pass, see
+ * TriggerGroups, and independent triggers can be evaluated on worker
+ * threads, see ParallelTriggerEvaluator.
+ * <p>
+ * Only used on the shard thread.
+ */
+class RuleDispatcher {
+    // upper bound on the number of queued events drained by one message
+    private static final int MAX_BATCH_PASSES = 32;
+
+    private final Context context;
+    private final RuleShard shard;
+    private final Collection<Rule> rules;
+    private final Set<EventSource> eventSources;
+    private final TriggerGroups triggerGroups;
+    private final RuleBreakers breakers;
+    private final RuleBudgets budgets;
+    private final ExecutorStats stats;
+    private final Set<Rule> failedRules;
+    private ParallelTriggerEvaluator parallelEvaluator;
+
+    RuleDispatcher(Context ctx, RuleShard shard, Collection<Rule> rules, Set<EventSource> eventSources,
+                   TriggerGroups triggerGroups, RuleBreakers breakers, RuleBudgets budgets, ExecutorStats stats) {
+        this.context = ctx;
+        this.shard = shard;
+        this.rules = rules;
+        this.eventSources = eventSources;
+        this.triggerGroups = triggerGroups;
+        this.breakers = breakers;
+        this.budgets = budgets;
+        this.stats = stats;
+        failedRules = new HashSet<>();
+    }
+
+    void setParallelEvaluation(boolean enabled) {
+        if (enabled && parallelEvaluator == null) {
+            parallelEvaluator = new ParallelTriggerEvaluator();
+        } else if (!enabled && parallelEvaluator != null) {
+            parallelEvaluator.shutdown();
+            parallelEvaluator = null;
+        }
+    }
+
+    /**
+     * Drain a batch of events. Returns true if events are left, which should
+     * be handled in a fresh message so the looper can breathe.
+     */
+    boolean runBatch() {
+        long startTime = SystemClock.elapsedRealtime();
+        Collection<Rule> passRules = rules;
+        budgets.startBatch();
+
+        for (int pass = 0; pass < MAX_BATCH_PASSES; pass++) {
+            stats.increment("passes");
+            failedRules.clear();
+
+            // rules that are down cost nothing until they are due for a probe
+            passRules = admitRules(passRules);
+
+            // recompute triggers based on the new state of the event sources
+            updateTriggers(passRules);
+
+            // dispatch any rule that now triggers true
+            dispatchRules(passRules);
+
+            // clear events and post any newly triggered message, if necessary
+            updateEventSourceState();
+
+            passRules = getRulesWithPendingEvents();
+            if (passRules.isEmpty()) {
+                stats.recordTiming("dispatch", SystemClock.elapsedRealtime() - startTime);
+                return false;
+            }
+        }
+
+        stats.recordTiming("dispatch", SystemClock.elapsedRealtime() - startTime);
+        return true;
+    }
+
+    private Collection<Rule> getRulesWithPendingEvents() {
+        List<Rule> pending = new ArrayList<>();
+
+        for (Rule r : rules) {
+            // demoted rules wait for the next message
+            if (!r.isEnabled() || budgets.isDemoted(r) || breakers.isOpen(r))
+                continue;
+
+            for (EventSource s : r.getEventSources()) {
+                try {
+                    if (s.checkEvent()) {
+                        pending.add(r);
+                        break;
+                    }
+                } catch (IOException e) {
+                    Log.e(RuleExecutorService.LOG_TAG, "Failed to check event source " + s.toString(), e);
+                }
+            }
+        }
+
+        return pending;
+    }
+
+    private List<Rule> admitRules(Collection<Rule> passRules) {
+        List<Rule> admitted = new ArrayList<>(passRules.size());
+
+        for (Rule r : passRules) {
+            if (breakers.admit(r))
+                admitted.add(r);
+        }
+
+        return admitted;
+    }
+
+    private void ruleFailed(Rule rule, String message, Exception e) {
+        failedRules.add(rule);
+        breakers.failed(rule, message, e);
+    }
+
+    private void budgetExceeded(Rule rule, ScriptBudgetException e) {
+        breakers.inconclusive(rule);
+        if (budgets.budgetExceeded(rule, e))
+            shard.disableOverBudget(rule);
+    }
+
+    // the outcome of the actions of a rule that waited for a DeferredAction
+    private void resumedRule(Rule rule, Exception error) {
+        if (!rule.isEnabled() || !rules.contains(rule))
+            return;
+
+        if (error == null)
+            breakers.succeeded(rule);
+        else if (error instanceof ScriptBudgetException)
+            budgetExceeded(rule, (ScriptBudgetException) error);
+        else
+            breakers.failed(rule, "Failed to run deferred actions of rule", error);
+    }
+
+    private void updateTriggers(Collection<Rule> passRules) {
+        // rules sharing a trigger get it updated once, and share its failure
+        Map<Rule, Rule> leaders = new HashMap<>();
+        Map<Rule, Exception> updated = new HashMap<>();
+        for (Rule r : passRules) {
+            Rule leader = triggerGroups.getLeader(r);
+            leaders.put(r, leader);
+            if (updated.containsKey(leader)) {
+                stats.increment("triggers.shared.updates");
+                continue;
+            }
+
+            Exception error = null;
+            try {
+                leader.updateTrigger();
+            } catch (RuleExecutionException | RuntimeException e) {
+                error = e;
+            }
+            updated.put(leader, error);
+        }
+
+        // only the rule whose trigger ran went over budget
+        for (Map.Entry<Rule, Exception> e : updated.entrySet()) {
+            if (e.getValue() instanceof ScriptBudgetException)
+                budgetExceeded(e.getKey(), (ScriptBudgetException) e.getValue());
+        }
+
+        for (Rule r : passRules) {
+            Exception error = updated.get(leaders.get(r));
+            if (error instanceof ScriptBudgetException) {
+                failedRules.add(r);
+                breakers.inconclusive(r);
+            } else if (error instanceof RuleExecutionException) {
+                // FIXME: notify the user!
+                ruleFailed(r, "Failed to update the trigger for rule", error);
+            } else if (error != null) {
+                ruleFailed(r, "RuntimeException while updating trigger for rule", error);
+            }
+        }
+    }
+
+    private void dispatchRules(Collection<Rule> passRules) {
+        // a rule with a failed update would fire on stale state
+        List<Rule> toDispatch = new ArrayList<>(passRules.size());
+        for (Rule r : passRules) {
+            if (!failedRules.contains(r))
+                toDispatch.add(r);
+        }
+
+        // each distinct trigger is evaluated once, by the leader of its group
+        Map<Rule, Rule> leaders = new HashMap<>();
+        List<Rule> evaluated = new ArrayList<>();
+        Set<Rule> seen = new HashSet<>();
+        for (Rule r : toDispatch) {
+            Rule leader = triggerGroups.getLeader(r);
+            leaders.put(r, leader);
+            if (seen.add(leader))
+                evaluated.add(leader);
+        }
+        stats.add("triggers.shared", toDispatch.size() - evaluated.size());
+
+        List<ParallelTriggerEvaluator.Result> results;
+        if (parallelEvaluator != null && evaluated.size() >= ParallelTriggerEvaluator.MIN_PARALLEL_RULES) {
+            long startTime = SystemClock.elapsedRealtime();
+            results = parallelEvaluator.evaluate(evaluated);
+            stats.recordTiming("evaluation.parallel", SystemClock.elapsedRealtime() - startTime);
+        } else {
+            results = new ArrayList<>(evaluated.size());
+            for (Rule r : evaluated)
+                results.add(ParallelTriggerEvaluator.evaluate(r));
+        }
+
+        Map<Rule, ParallelTriggerEvaluator.Result> leaderResults = new HashMap<>();
+        for (int i = 0; i < evaluated.size(); i++)
+            leaderResults.put(evaluated.get(i), results.get(i));
+
+        // fire on this thread, in priority order
+        Set<Rule> charged = new HashSet<>();
+        for (final Rule r : toDispatch) {
+            Rule leader = leaders.get(r);
+
+            try {
+                boolean firing;
+                try {
+                    firing = leaderResults.get(leader).isFiring();
+                } catch (ScriptBudgetException e) {
+                    // only the rule whose trigger ran went over budget
+                    if (charged.add(leader))
+                        budgetExceeded(leader, e);
+                    breakers.inconclusive(r);
+                    continue;
+                }
+
+                if (!firing || !budgets.admitFire(r)) {
+                    breakers.inconclusive(r);
+                    continue;
+                }
+
+                stats.increment("fired");
+                // created on this thread, so deferred actions report back here
+                boolean done = r.fire(context, leader.getTrigger(), new Callback<Void>() {
+                    @Override
+                    public void run(Void result, Exception error) {
+                        resumedRule(r, error);
+                    }
+                });
+                // otherwise the outcome comes later, in resumedRule()
+                if (done)
+                    breakers.succeeded(r);
+            } catch (ScriptBudgetException e) {
+                budgetExceeded(r, e);
+            } catch (RuleExecutionException e) {
+                ruleFailed(r, "Failed to run rule", e);
+            } catch (RuntimeException e) {
+                ruleFailed(r, "RuntimeException while running rule", e);
+            }
+        }
+    }
+
+    private void updateEventSourceState() {
+        for (EventSource s : eventSources) {
+            try {
+                s.updateState();
+            } catch (IOException e) {
+                Log.e(RuleExecutorService.LOG_TAG, "Failed to update event source " + s.toString(), e);
+            }
+        }
+    }
+
+    void destroy() {
+        setParallelEvaluation(false);
+        failedRules.clear();
+    }
+}
@@ -0,0 +1,367 @@
+package edu.stanford.braincat.rulepedia.service;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import edu.stanford.braincat.rulepedia.exceptions.DuplicatedRuleException;
+import edu.stanford.braincat.rulepedia.model.Rule;
+import edu.stanford.braincat.rulepedia.model.RuleDatabase;
+import edu.stanford.braincat.rulepedia.model.RuleImport;
+
+/**
+ * Created by gcampagn on 6/18/15.
+ * <p>
+ * Implements IRuleEngine on top of the RuleExecutor of the service.
+ * <p>
+ * Batched operations are started from the main thread (Callbacks need a
+ * looper, binder threads have none) and report once, when every rule of the
+ * batch is done. Status changes of rules are coalesced for STATUS_BATCH_DELAY
+ * ms and sent to the listeners in one call.
+ */
+public abstract class RuleEngineBinder extends IRuleEngine.Stub implements RuleStatusListener {
+    public static final String ERROR_DUPLICATED = "duplicated";
+    public static final String ERROR_NOT_RUNNING = "not running";
+
+    private static final long STATUS_BATCH_DELAY = 250;
+
+    private static class Batch {
+        private final IRuleBatchCallback callback;
+        private final String[] ids;
+        private final String[] errors;
+        private int remaining;
+
+        private Batch(IRuleBatchCallback callback, int size) {
+            this.callback = callback;
+            ids = new String[size];
+            errors = new String[size];
+            remaining = size;
+        }
+
+        private void complete(int index, @Nullable String id, @Nullable String error) {
+            ids[index] = id;
+            errors[index] = error;
+            if (--remaining == 0)
+                deliver();
+        }
+
+        private void failAll(String error) {
+            Arrays.fill(errors, error);
+            remaining = 0;
+            deliver();
+        }
+
+        private void deliver() {
+            try {
+                callback.onResult(Arrays.asList(ids), Arrays.asList(errors));
+            } catch (RemoteException e) {
+                // the caller went away, nothing to do
+                Log.i(RuleExecutorService.LOG_TAG, "Failed to deliver batch result", e);
+            }
+        }
+    }
+
+    private final Handler handler;
+    private final RemoteCallbackList<IRuleStatusListener> listeners;
+    // the executor we are listening to, only touched on the main thread
+    private RuleExecutor subscribedExecutor;
+
+    // guarded by this
+    private final Map<String, RuleInfo> changedRules;
+    private final Set<String> removedRules;
+    private boolean flushScheduled;
+
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushStatus();
+        }
+    };
+
+    protected RuleEngineBinder() {
+        handler = new Handler(Looper.getMainLooper());
+        listeners = new RemoteCallbackList<>();
+        changedRules = new LinkedHashMap<>();
+        removedRules = new LinkedHashSet<>();
+    }
+
+    /**
+     * Returns the future of the running executor, or null if the service was
+     * not started.
+     */
+    public abstract RuleExecutorFuture getRuleExecutorFuture();
+
+    private static String describeError(@Nullable Exception error) {
+        if (error instanceof DuplicatedRuleException)
+            return ERROR_DUPLICATED;
+        return error != null ? error.toString() : "unknown error";
+    }
+
+    private void whenReady(final Batch batch, final Callback<RuleExecutor> then) {
+        RuleExecutorFuture future = getRuleExecutorFuture();
+        if (future == null) {
+            batch.failAll(ERROR_NOT_RUNNING);
+            return;
+        }
+
+        future.whenReady(new Callback<RuleExecutor>() {
+            @Override
+            public void run(@Nullable RuleExecutor executor, @Nullable Exception error) {
+                if (executor == null)
+                    batch.failAll(describeError(error));
+                else
+                    then.run(executor, null);
+            }
+        });
+    }
+
+    private static void complete(Batch batch, RuleImport result, List<Integer> positions) {
+        for (int i = 0; i < result.size(); i++) {
+            Exception error = result.getError(i);
+            if (error == null)
+                batch.complete(positions.get(i), result.getRule(i).getId(), null);
+            else
+                batch.complete(positions.get(i), null, describeError(error));
+        }
+    }
+
+    @Override
+    public void installRules(final List<String> jsonRules, IRuleBatchCallback callback) {
+        final Batch batch = new Batch(callback, jsonRules.size());
+        if (jsonRules.isEmpty()) {
+            batch.deliver();
+            return;
+        }
+
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                whenReady(batch, new Callback<RuleExecutor>() {
+                    @Override
+                    public void run(@Nullable RuleExecutor executor, @Nullable Exception error) {
+                        final List<JSONObject> parsed = new ArrayList<>();
+                        final List<Integer> positions = new ArrayList<>();
+                        for (int i = 0; i < jsonRules.size(); i++) {
+                            try {
+                                parsed.add((JSONObject) new JSONTokener(jsonRules.get(i)).nextValue());
+                                positions.add(i);
+                            } catch (JSONException | ClassCastException e) {
+                                batch.complete(i, null, e.toString());
+                            }
+                        }
+                        if (parsed.isEmpty())
+                            return;
+
+                        // one transaction for the whole batch
+                        executor.installRules(parsed, new Callback<RuleImport>() {
+                            @Override
+                            public void run(@Nullable RuleImport result, @Nullable Exception error) {
+                                if (result != null) {
+                                    complete(batch, result, positions);
+                                } else {
+                                    for (Integer position : positions)
+                                        batch.complete(position, null, describeError(error));
+                                }
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    public void importRules(final ParcelFileDescriptor pack, final IRuleBatchCallback callback) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                // the size is only known once the pack is read
+                whenReady(new Batch(callback, 1), new Callback<RuleExecutor>() {
+                    @Override
+                    public void run(@Nullable RuleExecutor executor, @Nullable Exception error) {
+                        Reader input = new InputStreamReader(new ParcelFileDescriptor.AutoCloseInputStream(pack), Charset.forName("UTF-8"));
+
+                        executor.installRules(input, new Callback<RuleImport>() {
+                            @Override
+                            public void run(@Nullable RuleImport result, @Nullable Exception error) {
+                                if (result == null) {
+                                    new Batch(callback, 1).failAll(describeError(error));
+                                    return;
+                                }
+
+                                Batch batch = new Batch(callback, result.size());
+                                if (result.size() == 0) {
+                                    batch.deliver();
+                                    return;
+                                }
+
+                                List<Integer> positions = new ArrayList<>();
+                                for (int i = 0; i < result.size(); i++)
+                                    positions.add(i);
+                                complete(batch, result, positions);
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    public void deleteRules(final List<String> ids, IRuleBatchCallback callback) {
+        final Batch batch = new Batch(callback, ids.size());
+        if (ids.isEmpty()) {
+            batch.deliver();
+            return;
+        }
+
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                whenReady(batch, new Callback<RuleExecutor>() {
+                    @Override
+                    public void run(@Nullable RuleExecutor executor, @Nullable Exception error) {
+                        for (int i = 0; i < ids.size(); i++) {
+                            final int index = i;
+                            final String id = ids.get(i);
+
+                            executor.deleteRule(id, new Callback<Boolean>() {
+                                @Override
+                                public void run(@Nullable Boolean result, @Nullable Exception error) {
+                                    if (result != null)
+                                        batch.complete(index, id, null);
+                                    else
+                                        batch.complete(index, null, describeError(error));
+                                }
+                            });
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    public int getRuleCount() {
+        RuleDatabase db = RuleDatabase.get();
+        return db.isLoaded() ? db.getRuleCount() : 0;
+    }
+
+    @Override
+    public List<RuleInfo> listRules(int offset, int limit) {
+        List<RuleInfo> result = new ArrayList<>();
+
+        RuleDatabase db = RuleDatabase.get();
+        if (!db.isLoaded())
+            return result;
+
+        for (Rule r : db.getRules(offset, limit))
+            result.add(RuleInfo.of(r));
+        return result;
+    }
+
+    @Override
+    public void addStatusListener(IRuleStatusListener listener) {
+        listeners.register(listener);
+
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                subscribe();
+            }
+        });
+    }
+
+    @Override
+    public void removeStatusListener(IRuleStatusListener listener) {
+        listeners.unregister(listener);
+    }
+
+    private void subscribe() {
+        RuleExecutorFuture future = getRuleExecutorFuture();
+        if (future == null)
+            return;
+
+        future.whenReady(new Callback<RuleExecutor>() {
+            @Override
+            public void run(@Nullable RuleExecutor executor, @Nullable Exception error) {
+                // the service restarts the executor with a new future
+                if (executor == null || executor == subscribedExecutor)
+                    return;
+
+                executor.addStatusListener(RuleEngineBinder.this);
+                subscribedExecutor = executor;
+            }
+        });
+    }
+
+    private synchronized void scheduleFlush() {
+        if (flushScheduled)
+            return;
+
+        flushScheduled = true;
+        handler.postDelayed(flushRunnable, STATUS_BATCH_DELAY);
+    }
+
+    @Override
+    public void onRuleChanged(Rule rule) {
+        synchronized (this) {
+            changedRules.put(rule.getId(), RuleInfo.of(rule));
+            removedRules.remove(rule.getId());
+        }
+        scheduleFlush();
+    }
+
+    @Override
+    public void onRuleRemoved(String id) {
+        synchronized (this) {
+            changedRules.remove(id);
+            removedRules.add(id);
+        }
+        scheduleFlush();
+    }
+
+    private void flushStatus() {
+        List<RuleInfo> changed;
+        List<String> removed;
+        synchronized (this) {
+            flushScheduled = false;
+            changed = new ArrayList<>(changedRules.values());
+            removed = new ArrayList<>(removedRules);
+            changedRules.clear();
+            removedRules.clear();
+        }
+
+        int count = listeners.beginBroadcast();
+        try {
+            for (int i = 0; i < count; i++) {
+                try {
+                    listeners.getBroadcastItem(i).onRulesChanged(changed, removed);
+                } catch (RemoteException e) {
+                    // RemoteCallbackList drops dead listeners on its own
+                }
+            }
+        } finally {
+            listeners.finishBroadcast();
+        }
+    }
+}
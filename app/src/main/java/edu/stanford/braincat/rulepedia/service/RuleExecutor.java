@@ -1,42 +1,108 @@
 package edu.stanford.braincat.rulepedia.service;
 
 import android.content.Context;
+import android.os.Handler;
 import android.os.Looper;
+import android.os.Process;
+import android.util.JsonReader;
 import android.util.Log;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.IOException;
-import java.util.Collection;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import edu.stanford.braincat.rulepedia.BuildConfig;
-import edu.stanford.braincat.rulepedia.events.EventSource;
-import edu.stanford.braincat.rulepedia.events.EventSourceHandler;
+import edu.stanford.braincat.rulepedia.R;
+import edu.stanford.braincat.rulepedia.channels.EndpointBreakers;
+import edu.stanford.braincat.rulepedia.channels.generic.ScriptProfiler;
 import edu.stanford.braincat.rulepedia.exceptions.DuplicatedRuleException;
-import edu.stanford.braincat.rulepedia.exceptions.RuleExecutionException;
 import edu.stanford.braincat.rulepedia.exceptions.TriggerValueTypeException;
 import edu.stanford.braincat.rulepedia.exceptions.UnknownChannelException;
 import edu.stanford.braincat.rulepedia.exceptions.UnknownObjectException;
+import edu.stanford.braincat.rulepedia.model.Action;
+import edu.stanford.braincat.rulepedia.model.Channel;
+import edu.stanford.braincat.rulepedia.model.ChannelPool;
+import edu.stanford.braincat.rulepedia.model.CompositeTrigger;
 import edu.stanford.braincat.rulepedia.model.ObjectDatabase;
 import edu.stanford.braincat.rulepedia.model.Rule;
 import edu.stanford.braincat.rulepedia.model.RuleDatabase;
+import edu.stanford.braincat.rulepedia.model.RuleImport;
+import edu.stanford.braincat.rulepedia.model.Trigger;
 
 /**
  * Created by gcampagn on 5/2/15.
+ * <p>
+ * Owns the rule database, and routes rules to RuleShards.
+ * <p>
+ * All the rules that use a channel (in their trigger or their actions) run
+ * in the same shard, so channel state is only touched by one thread. When a
+ * new rule uses channels that live in different shards, the rules of the
+ * smaller shards that share those channels are migrated first.
+ * <p>
+ * So there is no coordination across shards: rules that are connected by
+ * their channels, even transitively, end up in one shard. Shards still share
+ * process-wide state that is not thread-safe, so rule_shard_count is 1 by
+ * default.
  */
-public class RuleExecutor extends EventSourceHandler {
+public class RuleExecutor extends Handler {
     private final Context context;
-    private final Set<EventSource> eventSources;
+    private final ExecutorStats stats;
+    private final List<RuleShard> shards;
+    private final Map<Rule, RuleShard> ruleShards;
+    private final Map<String, RuleShard> channelShards;
+    private boolean preparing;
     private ObjectDatabase objectdb;
     private RuleDatabase ruledb;
+    private final CheckpointStore checkpoints;
+    private final List<RuleStatusListener> statusListeners = new CopyOnWriteArrayList<>();
+
+    // handed to the shards, which report from their own threads
+    private final RuleStatusListener statusDispatcher = new RuleStatusListener() {
+        @Override
+        public void onRuleChanged(Rule rule) {
+            for (RuleStatusListener l : statusListeners)
+                l.onRuleChanged(rule);
+        }
+
+        @Override
+        public void onRuleRemoved(String id) {
+            for (RuleStatusListener l : statusListeners)
+                l.onRuleRemoved(id);
+        }
+    };
 
+    /**
+     * Create an executor with the number of shards in the rule_shard_count
+     * resource.
+     */
     public RuleExecutor(Context ctx, Looper looper) throws IOException {
+        this(ctx, looper, ctx.getResources().getInteger(R.integer.rule_shard_count));
+    }
+
+    public RuleExecutor(Context ctx, Looper looper, int shardCount) throws IOException {
         super(looper);
+        if (shardCount < 1)
+            throw new IllegalArgumentException("need at least one shard");
+
         context = ctx;
-        eventSources = new HashSet<>();
+        stats = new ExecutorStats();
+        ruleShards = new IdentityHashMap<>();
+        channelShards = new HashMap<>();
+
+        // generic channels must be known before the databases are parsed
+        ChannelPool.get().load(ctx);
 
         try {
             objectdb = ObjectDatabase.get();
@@ -46,11 +112,30 @@ public class RuleExecutor extends EventSourceHandler {
         } catch (UnknownObjectException | UnknownChannelException e) {
             throw new IOException("Failed to load database", e);
         }
+
+        checkpoints = CheckpointStore.open(ctx);
+
+        // the first shard shares our thread, so with one shard nothing changes
+        shards = new ArrayList<>();
+        shards.add(RuleShard.onLooper(0, ctx, looper, checkpoints, statusDispatcher));
+        for (int i = 1; i < shardCount; i++)
+            shards.add(RuleShard.withThread(i, ctx, checkpoints, statusDispatcher));
+
+        setParallelEvaluation(ctx.getResources().getBoolean(R.bool.parallel_trigger_evaluation));
+    }
+
+    public void addStatusListener(RuleStatusListener listener) {
+        statusListeners.add(listener);
+    }
+
+    public void removeStatusListener(RuleStatusListener listener) {
+        statusListeners.remove(listener);
     }
 
     public void save() throws IOException {
         objectdb.save(context);
         ruledb.save(context);
+        checkpoints.flush();
     }
 
     public void installRule(final JSONObject jsonRule, final edu.stanford.braincat.rulepedia.service.Callback<Rule> callback) {
@@ -61,6 +146,49 @@ public class RuleExecutor extends EventSourceHandler {
         });
     }
 
+    /**
+     * Install a JSON array of rules read from the stream, which is closed
+     * when done. The callback gets the outcome of every rule once all of
+     * them are enabled, or an error if the stream could not be read.
+     */
+    public void installRules(final Reader input, final edu.stanford.braincat.rulepedia.service.Callback<RuleImport> callback) {
+        // reading and parsing a pack can take a while, don't hold up the
+        // rules for it, only the commit happens on this thread
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+                final RuleImport batch;
+                try (JsonReader reader = new JsonReader(input)) {
+                    batch = RuleDatabase.parseRules(reader);
+                } catch (IOException e) {
+                    Log.e(RuleExecutorService.LOG_TAG, "Failed to read rules to install", e);
+                    callback.post(null, e);
+                    return;
+                }
+
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        doInstallRules(batch, callback);
+                    }
+                });
+            }
+        }, "RuleImport");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void installRules(final List<JSONObject> jsonRules, final edu.stanford.braincat.rulepedia.service.Callback<RuleImport> callback) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                doInstallRules(RuleDatabase.parseRules(jsonRules), callback);
+            }
+        });
+    }
+
     public void reloadRule(final String id, final edu.stanford.braincat.rulepedia.service.Callback<Rule> callback) {
         post(new Runnable() {
             @Override
@@ -79,53 +207,214 @@ public class RuleExecutor extends EventSourceHandler {
         });
     }
 
-    private void doEnableRule(Rule rule) throws UnknownObjectException {
-        rule.resolve();
+    private static void collectChannels(Trigger trigger, Set<String> channels) {
+        if (trigger instanceof CompositeTrigger) {
+            for (Trigger t : ((CompositeTrigger) trigger).getChildren())
+                collectChannels(t, channels);
+        } else {
+            Channel channel = trigger.getChannel();
+            if (channel != null)
+                channels.add(channel.getUrl());
+        }
+    }
 
-        boolean anyFailed = false;
-        boolean anySuccess = false;
-        Collection<EventSource> sources = rule.getEventSources();
-        for (EventSource s : sources) {
-            try {
-                s.install(context, this);
-                anySuccess = true;
-            } catch (IOException e) {
-                Log.e(RuleExecutorService.LOG_TAG, "Failed to install event source " + s.toString(), e);
-                anyFailed = true;
+    private static Set<String> getChannels(Rule rule) {
+        Set<String> channels = new HashSet<>();
+
+        collectChannels(rule.getTrigger(), channels);
+        for (Action a : rule.getActions()) {
+            Channel channel = a.getChannel();
+            if (channel != null)
+                channels.add(channel.getUrl());
+        }
+
+        return channels;
+    }
+
+    private RuleShard getLeastLoadedShard() {
+        Map<RuleShard, Integer> load = new HashMap<>();
+        for (RuleShard s : ruleShards.values()) {
+            Integer count = load.get(s);
+            load.put(s, count == null ? 1 : count + 1);
+        }
+
+        RuleShard best = null;
+        int bestLoad = Integer.MAX_VALUE;
+        for (RuleShard s : shards) {
+            Integer count = load.get(s);
+            int sLoad = count == null ? 0 : count;
+            if (sLoad < bestLoad) {
+                best = s;
+                bestLoad = sLoad;
             }
         }
-        if (!anyFailed)
-            eventSources.addAll(sources);
-        if (anySuccess)
-            rule.setInstalled(true);
+
+        return best;
     }
 
+    /**
+     * Pick the shard for a new rule: the shard already owning its channels,
+     * or the largest of them if they are spread over several, or the least
+     * loaded shard if none of its channels is in use.
+     */
+    private RuleShard pickShard(Set<String> channels) {
+        Set<RuleShard> involved = new HashSet<>();
+        for (String url : channels) {
+            RuleShard s = channelShards.get(url);
+            if (s != null)
+                involved.add(s);
+        }
 
-    private void doDisableRule(Rule rule) throws UnknownObjectException {
-        rule.resolve();
+        if (involved.isEmpty())
+            return getLeastLoadedShard();
+        if (involved.size() == 1)
+            return involved.iterator().next();
+
+        RuleShard target = null;
+        int targetLoad = -1;
+        for (RuleShard s : involved) {
+            int load = Collections.frequency(ruleShards.values(), s);
+            if (load > targetLoad) {
+                target = s;
+                targetLoad = load;
+            }
+        }
+        return target;
+    }
 
-        boolean anyFailed = false;
-        boolean anySuccess = false;
-        Collection<EventSource> sources = rule.getEventSources();
-        for (EventSource s : sources) {
-            try {
-                s.uninstall(context);
-                anySuccess = true;
-            } catch (IOException e) {
-                Log.e(RuleExecutorService.LOG_TAG, "Failed to uninstall event source " + s.toString(), e);
-                anyFailed = true;
+    /**
+     * Move the channels, and every rule that uses them, to the target shard,
+     * then run the continuation on the target shard's thread once the
+     * migration is done.
+     * <p>
+     * Migrated rules keep their trigger state and queued events, which the
+     * old shard hands over through the CheckpointStore.
+     */
+    private void migrate(final RuleShard target, Set<String> channels, final Runnable then) {
+        // move every rule elsewhere that shares a channel with the moving set,
+        // transitively, so that no channel ends up in two shards
+        Set<String> moving = new HashSet<>(channels);
+        List<Rule> toMove = new ArrayList<>();
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Map.Entry<Rule, RuleShard> e : ruleShards.entrySet()) {
+                if (e.getValue() == target || toMove.contains(e.getKey()))
+                    continue;
+
+                Set<String> ruleChannels = getChannels(e.getKey());
+                if (!Collections.disjoint(ruleChannels, moving)) {
+                    toMove.add(e.getKey());
+                    moving.addAll(ruleChannels);
+                    changed = true;
+                }
             }
         }
-        if (!anyFailed)
-            eventSources.removeAll(sources);
-        if (anySuccess)
-            rule.setInstalled(false);
+
+        for (String url : moving)
+            channelShards.put(url, target);
+
+        if (preparing) {
+            // nothing is running yet, the shards get their rules in prepare()
+            for (Rule r : toMove)
+                ruleShards.put(r, target);
+            return;
+        }
+
+        if (toMove.isEmpty()) {
+            if (then != null)
+                target.post(then);
+            return;
+        }
+
+        Log.i(RuleExecutorService.LOG_TAG, "Migrating " + toMove.size() + " rules to shard " + target.getIndex());
+        stats.add("rules.migrated", toMove.size());
+
+        final AtomicInteger remaining = new AtomicInteger(toMove.size());
+        for (final Rule r : toMove) {
+            RuleShard source = ruleShards.put(r, target);
+            source.handOverRule(r, new Runnable() {
+                @Override
+                public void run() {
+                    target.adoptRule(r);
+                    if (remaining.decrementAndGet() == 0 && then != null)
+                        target.post(then);
+                }
+            });
+        }
     }
 
-    private void doInstallRule(JSONObject jsonRule, edu.stanford.braincat.rulepedia.service.Callback<Rule> callback) {
+    private static void tryResolve(Rule rule) {
+        try {
+            rule.resolve();
+        } catch (UnknownObjectException e) {
+            // routed by the unresolved channels, the shard will report the
+            // problem when it tries to enable the rule
+            Log.i(RuleExecutorService.LOG_TAG, "Failed to resolve rule " + rule.getId(), e);
+        }
+    }
+
+    /**
+     * Assign a new rule to a shard and enable it there.
+     */
+    private void route(final Rule rule, final edu.stanford.braincat.rulepedia.service.Callback<Rule> callback) {
+        tryResolve(rule);
+        Set<String> channels = getChannels(rule);
+        final RuleShard target = pickShard(channels);
+        ruleShards.put(rule, target);
+        migrate(target, channels, new Runnable() {
+            @Override
+            public void run() {
+                target.addRule(rule, callback);
+            }
+        });
+    }
+
+    private void doInstallRules(final RuleImport batch, final edu.stanford.braincat.rulepedia.service.Callback<RuleImport> callback) {
+        RuleDatabase db = RuleDatabase.get();
+        db.commit(batch);
+
+        try {
+            // one write for the whole batch
+            db.save(context);
+        } catch (IOException e) {
+            Log.w(RuleExecutorService.LOG_TAG, "Failed to save rule database to disk", e);
+            // continue on failure, we'll try again later
+        }
+
+        List<Integer> toEnable = new ArrayList<>();
+        for (int i = 0; i < batch.size(); i++) {
+            if (batch.getError(i) == null)
+                toEnable.add(i);
+        }
+        stats.add("rules.installed", toEnable.size());
+        Log.i(RuleExecutorService.LOG_TAG, "Installing " + toEnable.size() + " of " + batch.size() + " rules");
+
+        if (toEnable.isEmpty()) {
+            callback.post(batch, null);
+            return;
+        }
+
+        // the batch is in priority order, and each shard enables its rules
+        // in the order they are routed
+        final AtomicInteger remaining = new AtomicInteger(toEnable.size());
+        for (final int index : toEnable) {
+            route(batch.getRule(index), new edu.stanford.braincat.rulepedia.service.Callback<Rule>() {
+                @Override
+                public void run(Rule result, Exception error) {
+                    if (result == null)
+                        batch.fail(index, error);
+                    if (remaining.decrementAndGet() == 0)
+                        callback.post(batch, null);
+                }
+            });
+        }
+    }
+
+    private void doInstallRule(JSONObject jsonRule, final edu.stanford.braincat.rulepedia.service.Callback<Rule> callback) {
         try {
             RuleDatabase db = RuleDatabase.get();
-            Rule rule = db.addRule(jsonRule);
+            final Rule rule = db.addRule(jsonRule);
 
             try {
                 // save eagerly to catch problems
@@ -135,11 +424,8 @@ public class RuleExecutor extends EventSourceHandler {
                 // continue on failure, we'll try again later
             }
 
-            if (BuildConfig.DEBUG && rule.isInstalled())
-                throw new AssertionError();
-            if (rule.isEnabled())
-                doEnableRule(rule);
-            callback.post(rule, null);
+            route(rule, callback);
+            stats.increment("rules.installed");
         } catch (DuplicatedRuleException e) {
             Log.d(RuleExecutorService.LOG_TAG, "Failed to install rule (duplicated)", e);
             callback.post(null, e);
@@ -165,24 +451,12 @@ public class RuleExecutor extends EventSourceHandler {
             return;
         }
 
-        if (rule.isEnabled() == rule.isInstalled()) {
-            callback.post(rule, null);
+        RuleShard shard = ruleShards.get(rule);
+        if (shard == null) {
+            callback.post(null, new IllegalStateException("rule " + id + " is not assigned to a shard"));
             return;
         }
-
-        try {
-            if (rule.isEnabled())
-                doEnableRule(rule);
-            else
-                doDisableRule(rule);
-            callback.post(rule, null);
-        } catch (UnknownObjectException e) {
-            Log.e(RuleExecutorService.LOG_TAG, "Failed to reload rule (object resolution problem)", e);
-            callback.post(null, e);
-        } catch (RuntimeException e) {
-            Log.e(RuleExecutorService.LOG_TAG, "RuntimeException while reloading rule!", e);
-            callback.post(null, e);
-        }
+        shard.reloadRule(rule, callback);
     }
 
     private void doDeleteRule(String id, edu.stanford.braincat.rulepedia.service.Callback<Boolean> callback) {
@@ -197,96 +471,87 @@ public class RuleExecutor extends EventSourceHandler {
         }
 
         db.removeRule(rule);
+        stats.increment("rules.deleted");
+        statusDispatcher.onRuleRemoved(id);
 
-        if (!rule.isInstalled()) {
+        RuleShard shard = ruleShards.remove(rule);
+        if (shard == null) {
             callback.post(true, null);
             return;
         }
 
-        try {
-            doDisableRule(rule);
-            callback.post(true, null);
-        } catch (UnknownObjectException e) {
-            Log.e(RuleExecutorService.LOG_TAG, "Failed to delete rule (object resolution problem)", e);
-            callback.post(null, e);
-        } catch (RuntimeException e) {
-            Log.e(RuleExecutorService.LOG_TAG, "RuntimeException while deleting rule!", e);
-            callback.post(null, e);
+        // forget the channels no other rule uses
+        Set<String> stillUsed = new HashSet<>();
+        for (Rule r : ruleShards.keySet())
+            stillUsed.addAll(getChannels(r));
+        for (String url : getChannels(rule)) {
+            if (!stillUsed.contains(url))
+                channelShards.remove(url);
         }
+
+        shard.removeRule(rule, callback);
     }
 
     public void prepare() {
-        for (Rule r : RuleDatabase.get().getAllRules()) {
-            if (!r.isEnabled())
-                continue;
-
-            try {
-                doEnableRule(r);
-            } catch (UnknownObjectException e) {
-                Log.i(RuleExecutorService.LOG_TAG, "Failed to bootstrap rule", e);
-            }
+        Map<RuleShard, List<Rule>> bootRules = new HashMap<>();
+        for (RuleShard s : shards)
+            bootRules.put(s, new ArrayList<Rule>());
+
+        preparing = true;
+        for (Rule r : new ArrayList<>(RuleDatabase.get().getAllRules())) {
+            // event sources and channels are only known once the rule is resolved
+            tryResolve(r);
+
+            Set<String> channels = getChannels(r);
+            RuleShard shard = pickShard(channels);
+            ruleShards.put(r, shard);
+            migrate(shard, channels, null);
         }
-    }
-
-    public void destroy() {
-        for (EventSource s : eventSources) {
-            try {
-                s.uninstall(context);
-            } catch (IOException e) {
-                Log.e(RuleExecutorService.LOG_TAG, "Failed to uninstall event source " + s.toString(), e);
-            }
+        preparing = false;
+
+        // forget the state of rules deleted while we were not running
+        Set<String> ruleIds = new HashSet<>();
+        for (Rule r : ruleShards.keySet())
+            ruleIds.add(r.getId());
+        checkpoints.retainRules(ruleIds);
+
+        for (Map.Entry<Rule, RuleShard> e : ruleShards.entrySet())
+            bootRules.get(e.getValue()).add(e.getKey());
+        for (Map.Entry<RuleShard, List<Rule>> e : bootRules.entrySet()) {
+            Collections.sort(e.getValue(), RuleDatabase.PRIORITY_ORDER);
+            e.getKey().prepare(e.getValue());
         }
-        eventSources.clear();
-
-        for (Rule r : RuleDatabase.get().getAllRules())
-            r.setInstalled(false);
     }
 
-    @Override
-    public void messageReceived() {
-        // recompute triggers based on the new state of the event sources
-        updateTriggers();
-
-        // dispatch any rule that now triggers true
-        dispatchRules();
-
-        // clear events and post any newly triggered message, if necessary
-        updateEventSourceState();
+    /**
+     * Evaluate the triggers of independent rules on a pool of worker threads.
+     * The default comes from the parallel_trigger_evaluation resource.
+     */
+    public void setParallelEvaluation(boolean enabled) {
+        for (RuleShard s : shards)
+            s.setParallelEvaluation(enabled);
     }
 
-    private void updateTriggers() {
-        for (Rule r : RuleDatabase.get().getAllRules()) {
-            try {
-                r.updateTrigger();
-            } catch (RuleExecutionException e) {
-                // FIXME: notify the user!
-                Log.e(RuleExecutorService.LOG_TAG, "Failed to update the trigger for rule " + r.toHumanString(), e);
-            } catch (RuntimeException e) {
-                Log.e(RuleExecutorService.LOG_TAG, "RuntimeException while updating trigger for rule " + r.toHumanString(), e);
-            }
-        }
+    public ExecutorStats getStats() {
+        return stats;
     }
 
-    private void dispatchRules() {
-        for (Rule r : RuleDatabase.get().getAllRules()) {
-            try {
-                if (r.isFiring())
-                    r.fire(context);
-            } catch (RuleExecutionException e) {
-                Log.e(RuleExecutorService.LOG_TAG, "Failed to run rule " + r.toHumanString(), e);
-            } catch (RuntimeException e) {
-                Log.e(RuleExecutorService.LOG_TAG, "RuntimeException while running rule " + r.toHumanString(), e);
-            }
-        }
+    public void dump(PrintWriter writer) {
+        writer.println("Shards: " + shards.size());
+        stats.dump(writer);
+        for (RuleShard s : shards)
+            s.dump(writer);
+        ScriptProfiler.get().dump(writer);
+        EndpointBreakers.get().dump(writer);
+        ChannelPool.get().dump(writer);
+        checkpoints.dump(writer);
     }
 
-    private void updateEventSourceState() {
-        for (EventSource s : eventSources) {
-            try {
-                s.updateState();
-            } catch (IOException e) {
-                Log.e(RuleExecutorService.LOG_TAG, "Failed to update event source " + s.toString(), e);
-            }
-        }
+    public void destroy() {
+        for (RuleShard s : shards)
+            s.quit();
+
+        ruleShards.clear();
+        channelShards.clear();
     }
 }
@@ -0,0 +1,107 @@
+package edu.stanford.braincat.rulepedia.service;
+
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Created by gcampagn on 6/5/15.
+ * <p>
+ * A handle on a RuleExecutor that is being started on its own thread.
+ * <p>
+ * The executor goes from STARTING to READY (or FAILED, if the databases could
+ * not be loaded), and finally to STOPPED when the service shuts down. Callers
+ * that need the executor register a callback with whenReady(), which runs
+ * once the startup completes, instead of blocking until it does.
+ */
+public class RuleExecutorFuture {
+    public enum State {
+        STARTING, READY, FAILED, STOPPED
+    }
+
+    private final List<Callback<RuleExecutor>> waiters;
+    private State state;
+    private RuleExecutor executor;
+    private Exception error;
+
+    public RuleExecutorFuture() {
+        waiters = new ArrayList<>();
+        state = State.STARTING;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Returns the executor if it is ready, null otherwise.
+     */
+    @Nullable
+    public synchronized RuleExecutor getNow() {
+        return state == State.READY ? executor : null;
+    }
+
+    /**
+     * Call back with the executor as soon as it is ready, or with an error if
+     * it failed to start or was stopped.
+     * <p>
+     * The callback runs on the thread that created it.
+     */
+    public void whenReady(Callback<RuleExecutor> callback) {
+        synchronized (this) {
+            if (state == State.STARTING) {
+                waiters.add(callback);
+                return;
+            }
+        }
+
+        complete(callback);
+    }
+
+    private void complete(Callback<RuleExecutor> callback) {
+        RuleExecutor result;
+        Exception resultError;
+
+        synchronized (this) {
+            result = executor;
+            resultError = error;
+        }
+
+        if (result != null)
+            callback.post(result, null);
+        else
+            callback.post(null, resultError);
+    }
+
+    private void transition(State newState, @Nullable RuleExecutor newExecutor, @Nullable Exception newError) {
+        List<Callback<RuleExecutor>> toComplete;
+
+        synchronized (this) {
+            if (state == State.STOPPED)
+                return;
+
+            state = newState;
+            executor = newExecutor;
+            error = newError;
+
+            toComplete = new ArrayList<>(waiters);
+            waiters.clear();
+        }
+
+        for (Callback<RuleExecutor> callback : toComplete)
+            complete(callback);
+    }
+
+    void setReady(RuleExecutor executor) {
+        transition(State.READY, executor, null);
+    }
+
+    void setFailed(Exception error) {
+        transition(State.FAILED, null, error);
+    }
+
+    void setStopped() {
+        transition(State.STOPPED, null, new IllegalStateException("rule executor was stopped"));
+    }
+}
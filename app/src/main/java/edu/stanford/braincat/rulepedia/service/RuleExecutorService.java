@@ -1,33 +1,63 @@
 package edu.stanford.braincat.rulepedia.service;
 
 import android.app.Service;
+import android.content.Context;
 import android.content.Intent;
 import android.os.IBinder;
-import android.os.Looper;
 import android.util.Log;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONTokener;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
+import edu.stanford.braincat.rulepedia.R;
 import edu.stanford.braincat.rulepedia.model.Rule;
 
 public class RuleExecutorService extends Service {
+    // the executor thread of the last service instance in this process,
+    // which may still be exiting when the next one starts
+    private static RuleExecutorThread lastExecutorThread;
+
     private RuleExecutorThread executorThread;
-    private RuleExecutor executor;
-    private Looper executorLooper;
+    private RuleExecutorFuture executorFuture;
     private final IBinder binder;
 
     public static final String INSTALL_RULE_INTENT = "edu.stanford.braincat.rulepedia.INSTALL_RULE";
 
     public static final String LOG_TAG = "rulepedia.Service";
 
-    public class Binder extends android.os.Binder {
+    /**
+     * Clients in the same process can get to the executor directly through
+     * this, others only see the IRuleEngine interface.
+     */
+    public class Binder extends RuleEngineBinder {
+        /**
+         * Returns the executor, or null if the service is still starting.
+         */
         public RuleExecutor getRuleExecutor() {
-            return executor;
+            return executorFuture != null ? executorFuture.getNow() : null;
+        }
+
+        @Override
+        public RuleExecutorFuture getRuleExecutorFuture() {
+            return executorFuture;
         }
     }
 
+    /**
+     * Returns the service to start or bind to: RemoteRuleExecutorService if
+     * the engine is configured to run in its own process.
+     */
+    public static Class<? extends RuleExecutorService> getServiceClass(Context ctx) {
+        if (ctx.getResources().getBoolean(R.bool.engine_in_own_process))
+            return RemoteRuleExecutorService.class;
+        else
+            return RuleExecutorService.class;
+    }
+
     public RuleExecutorService() {
         binder = new Binder();
     }
@@ -47,36 +77,50 @@ public class RuleExecutorService extends Service {
     private void doStartService() {
         Log.i(LOG_TAG, "Starting service...");
 
-        executorThread = new RuleExecutorThread(this);
-        executorThread.start();
+        // resend what rules queued before the last shutdown
+        ActionOutbox.get().start(this);
 
-        try {
-            executorLooper = executorThread.getLooper();
-        } catch (InterruptedException ie) {
-            Log.e(LOG_TAG, "Interrupted exception while starting service!");
-        }
-        try {
-            executor = executorThread.getExecutor();
-        } catch (InterruptedException ie) {
-            Log.w(LOG_TAG, "Interrupted exception while starting service!");
-        }
-
-        if (executorLooper == null || executor == null)
-            stopSelf();
+        // loading the databases can take a while (and hit the network), so
+        // don't wait for it here, anyone who needs the executor will queue up
+        // on the future
+        final RuleExecutorFuture future = new RuleExecutorFuture();
+        executorFuture = future;
+        executorThread = new RuleExecutorThread(this, future, lastExecutorThread);
+        lastExecutorThread = executorThread;
+        executorThread.start();
 
-        Log.i(LOG_TAG, "Started service");
+        future.whenReady(new Callback<RuleExecutor>() {
+            @Override
+            public void run(RuleExecutor result, Exception error) {
+                if (result != null) {
+                    Log.i(LOG_TAG, "Started service");
+                } else if (future.getState() == RuleExecutorFuture.State.FAILED) {
+                    Log.e(LOG_TAG, "Failed to start service", error);
+                    stopSelf();
+                }
+            }
+        });
     }
 
     private void doInstallRule(Intent intent) {
         try {
-            JSONObject jsonObject;
-
             if (intent.getData().toString().equals("rulepedia:json")) {
-                jsonObject = (JSONObject) new JSONTokener(intent.getStringExtra("json")).nextValue();
-                executor.installRule(jsonObject, new Callback<Rule>() {
+                final JSONObject jsonObject = (JSONObject) new JSONTokener(intent.getStringExtra("json")).nextValue();
+
+                executorFuture.whenReady(new Callback<RuleExecutor>() {
                     @Override
-                    public void run(Rule result, Exception error) {
-                        // FIXME
+                    public void run(RuleExecutor executor, Exception error) {
+                        if (executor == null) {
+                            Log.e(LOG_TAG, "Failed to add rule to the database, service did not start");
+                            return;
+                        }
+
+                        executor.installRule(jsonObject, new Callback<Rule>() {
+                            @Override
+                            public void run(Rule result, Exception error) {
+                                // FIXME
+                            }
+                        });
                     }
                 });
             } else {
@@ -127,13 +171,51 @@ public class RuleExecutorService extends Service {
         return START_STICKY;
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        RuleExecutorFuture future = executorFuture;
+        if (future == null) {
+            writer.println("Rule executor not running");
+            return;
+        }
+
+        writer.println("Rule executor state: " + future.getState());
+        RuleExecutor executor = future.getNow();
+        if (executor != null)
+            executor.dump(writer);
+        ActionOutbox.get().dump(writer);
+        CacheRegistry.get().dump(writer);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        CacheRegistry.get().trimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        CacheRegistry.get().lowMemory();
+    }
+
     @Override
     public void onDestroy() {
         Log.i(LOG_TAG, "Destroying service...");
 
-        if (executorLooper != null)
-            executorLooper.quit();
-        while (executorThread.isAlive()) {
+        if (executorThread == null) {
+            Log.i(LOG_TAG, "Destroyed service");
+            return;
+        }
+
+        executorThread.quit();
+
+        // if the executor is still loading, it will notice the quit request and
+        // exit on its own, there is nothing to save yet; don't block the main
+        // thread on the load, the executor of the next service instance
+        // waits for this one to exit before it touches the databases
+        boolean mustJoin = executorFuture.getState() != RuleExecutorFuture.State.STARTING;
+        while (mustJoin && executorThread.isAlive()) {
             try {
                 executorThread.join();
             } catch (InterruptedException e) {
@@ -142,6 +224,9 @@ public class RuleExecutorService extends Service {
             }
         }
         executorThread = null;
+        executorFuture = null;
+
+        ActionOutbox.get().stop();
 
         Log.i(LOG_TAG, "Destroyed service");
     }
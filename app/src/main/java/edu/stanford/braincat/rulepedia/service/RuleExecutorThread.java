@@ -2,6 +2,7 @@ package edu.stanford.braincat.rulepedia.service;
 
 import android.content.Context;
 import android.os.Looper;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
 import java.io.IOException;
@@ -10,48 +11,98 @@ import java.io.IOException;
  * Created by gcampagn on 4/30/15.
  */
 public class RuleExecutorThread extends Thread {
+    private static final ThreadLocal<Boolean> isExecutorThread = new ThreadLocal<>();
+
+    /**
+     * Returns true if the calling thread runs rules, either the main executor
+     * thread or one of its shards.
+     */
+    public static boolean isExecutorThread() {
+        return isExecutorThread.get() != null;
+    }
+
+    static void markExecutorThread() {
+        isExecutorThread.set(Boolean.TRUE);
+    }
+
     private final Context context;
-    private boolean started;
-    private RuleExecutor executor;
+    private final RuleExecutorFuture future;
+    private RuleExecutorThread previous;
+    private boolean quitRequested;
     private Looper looper;
 
-    public RuleExecutorThread(Context ctx) {
+    /**
+     * Create an executor thread. If previous is not null, it is the thread
+     * of an earlier service instance that might still be running, and this
+     * one waits for it to exit before loading the databases.
+     */
+    public RuleExecutorThread(Context ctx, RuleExecutorFuture future, @Nullable RuleExecutorThread previous) {
         context = ctx;
+        this.future = future;
+        this.previous = previous;
+        quitRequested = false;
     }
 
-    public synchronized Looper getLooper() throws InterruptedException {
-        while (!started)
-            wait();
-        return looper;
+    public RuleExecutorFuture getFuture() {
+        return future;
     }
 
-    public synchronized RuleExecutor getExecutor() throws InterruptedException {
-        while (!started)
-            wait();
-        return executor;
+    /**
+     * Stop the executor, without waiting for it to finish starting.
+     */
+    public synchronized void quit() {
+        quitRequested = true;
+        if (looper != null)
+            looper.quit();
+    }
+
+    private void waitForPrevious() {
+        while (previous.isAlive()) {
+            try {
+                previous.join();
+            } catch (InterruptedException e) {
+                // not much we can do, let's try again...
+            }
+        }
     }
 
     @Override
     public void run() {
+        markExecutorThread();
+
+        // the databases are process singletons, don't load them while the
+        // previous executor is still loading or saving them
+        if (previous != null) {
+            waitForPrevious();
+            // don't keep the chain of old services alive
+            previous = null;
+        }
+
         Looper.prepare();
 
-        boolean ok = true;
+        RuleExecutor executor;
+        try {
+            executor = new RuleExecutor(context, Looper.myLooper());
+        } catch (IOException e) {
+            Log.e(RuleExecutorService.LOG_TAG, "Failed to initialize rule executor", e);
+            future.setFailed(e);
+            return;
+        }
+
         synchronized (this) {
-            try {
-                executor = new RuleExecutor(context, Looper.myLooper());
-            } catch (IOException e) {
-                Log.e(RuleExecutorService.LOG_TAG, "Failed to initialize rule executor", e);
-                ok = false;
+            if (quitRequested) {
+                future.setStopped();
+                return;
             }
             looper = Looper.myLooper();
-            started = true;
-            notifyAll();
         }
-        if (!ok)
-            return;
+
+        // anything posted to the executor from now on runs after prepare()
+        future.setReady(executor);
 
         executor.prepare();
         Looper.loop();
+        future.setStopped();
         executor.destroy();
         try {
             executor.save();
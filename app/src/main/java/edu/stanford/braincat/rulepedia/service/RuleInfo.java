@@ -0,0 +1,82 @@
+package edu.stanford.braincat.rulepedia.service;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import edu.stanford.braincat.rulepedia.model.Rule;
+
+/**
+ * Created by gcampagn on 6/18/15.
+ * <p>
+ * What the UI needs to know about a rule, in a form that can cross
+ * processes.
+ */
+public class RuleInfo implements Parcelable {
+    private final String id;
+    private final String name;
+    private final String description;
+    private final boolean enabled;
+    private final boolean installed;
+
+    public RuleInfo(String id, String name, String description, boolean enabled, boolean installed) {
+        this.id = id;
+        this.name = name;
+        this.description = description;
+        this.enabled = enabled;
+        this.installed = installed;
+    }
+
+    /**
+     * Can be called from any thread.
+     */
+    public static RuleInfo of(Rule rule) {
+        return new RuleInfo(rule.getId(), rule.getName(), rule.getDescription(), rule.isEnabled(), rule.wasInstalled());
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public boolean isInstalled() {
+        return installed;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeString(id);
+        dest.writeString(name);
+        dest.writeString(description);
+        dest.writeInt(enabled ? 1 : 0);
+        dest.writeInt(installed ? 1 : 0);
+    }
+
+    public static final Parcelable.Creator<RuleInfo> CREATOR = new Parcelable.Creator<RuleInfo>() {
+        @Override
+        public RuleInfo createFromParcel(Parcel source) {
+            return new RuleInfo(source.readString(), source.readString(), source.readString(),
+                    source.readInt() != 0, source.readInt() != 0);
+        }
+
+        @Override
+        public RuleInfo[] newArray(int size) {
+            return new RuleInfo[size];
+        }
+    };
+}
@@ -0,0 +1,577 @@
+package edu.stanford.braincat.rulepedia.service;
+
+import android.content.Context;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import edu.stanford.braincat.rulepedia.events.ActivationStage;
+import edu.stanford.braincat.rulepedia.events.EventSource;
+import edu.stanford.braincat.rulepedia.events.EventSourceHandler;
+import edu.stanford.braincat.rulepedia.exceptions.UnknownObjectException;
+import edu.stanford.braincat.rulepedia.model.CompositeTrigger;
+import edu.stanford.braincat.rulepedia.model.FilteringTrigger;
+import edu.stanford.braincat.rulepedia.model.Rule;
+import edu.stanford.braincat.rulepedia.model.RuleDatabase;
+import edu.stanford.braincat.rulepedia.model.Trigger;
+
+/**
+ * Created by gcampagn on 6/7/15.
+ * <p>
+ * One event loop of the rule executor.
+ * <p>
+ * A shard owns a subset of the rules, chosen by the RuleExecutor so that
+ * all rules touching a channel live in the same shard, and the event sources
+ * of those rules. Everything here runs on the shard's own looper; the
+ * executor talks to it by posting.
+ * <p>
+ * The shard installs and uninstalls rules; the passes are run by a
+ * RuleDispatcher, within the limits of RuleBudgets and RuleBreakers, and
+ * the state of the rules is saved by a ShardCheckpointer.
+ * <p>
+ * FilteringTriggers register their filters with their event sources while
+ * the rule is installed, and events dropped by a source do not cause a
+ * pass; they are counted as events.filtered.
+ */
+class RuleShard extends EventSourceHandler {
+    private static class ShardThread extends HandlerThread {
+        private ShardThread(int index) {
+            super("RuleShard-" + index, Process.THREAD_PRIORITY_BACKGROUND);
+        }
+
+        @Override
+        protected void onLooperPrepared() {
+            RuleExecutorThread.markExecutorThread();
+        }
+    }
+
+    private final int index;
+    private final Context context;
+    private final HandlerThread thread;
+    private final SortedSet<Rule> rules;
+    // event sources can be shared by several rules, install them once
+    private final Map<EventSource, Integer> eventSources;
+    private final ExecutorStats stats;
+    private final RuleStatusListener statusListener;
+    private final TriggerGroups triggerGroups;
+    private final RuleBudgets budgets;
+    private final RuleBreakers breakers;
+    private final ShardCheckpointer checkpointer;
+    private final RuleDispatcher dispatcher;
+
+    private RuleShard(int index, Context ctx, Looper looper, HandlerThread thread, CheckpointStore checkpoints,
+                      RuleStatusListener statusListener) {
+        super(looper);
+        this.index = index;
+        this.context = ctx;
+        this.thread = thread;
+        this.statusListener = statusListener;
+        rules = new TreeSet<>(RuleDatabase.PRIORITY_ORDER);
+        eventSources = new HashMap<>();
+        stats = new ExecutorStats();
+        triggerGroups = new TriggerGroups();
+        budgets = new RuleBudgets(stats);
+        breakers = new RuleBreakers(stats);
+        checkpointer = new ShardCheckpointer(this, checkpoints, rules, triggerGroups, stats);
+        dispatcher = new RuleDispatcher(ctx, this, rules, eventSources.keySet(), triggerGroups, breakers, budgets, stats);
+    }
+
+    /**
+     * Create a shard running on an existing looper.
+     */
+    static RuleShard onLooper(int index, Context ctx, Looper looper, CheckpointStore checkpoints,
+                              RuleStatusListener statusListener) {
+        return new RuleShard(index, ctx, looper, null, checkpoints, statusListener);
+    }
+
+    /**
+     * Create a shard with a thread of its own.
+     */
+    static RuleShard withThread(int index, Context ctx, CheckpointStore checkpoints, RuleStatusListener statusListener) {
+        HandlerThread thread = new ShardThread(index);
+        thread.start();
+        return new RuleShard(index, ctx, thread.getLooper(), thread, checkpoints, statusListener);
+    }
+
+    int getIndex() {
+        return index;
+    }
+
+    ExecutorStats getStats() {
+        return stats;
+    }
+
+    private void installSource(EventSource source) throws IOException {
+        Integer count = eventSources.get(source);
+        if (count == null) {
+            source.install(context, this);
+            eventSources.put(source, 1);
+        } else {
+            eventSources.put(source, count + 1);
+        }
+    }
+
+    private void uninstallSource(EventSource source) throws IOException {
+        Integer count = eventSources.get(source);
+        if (count == null)
+            return;
+
+        if (count == 1) {
+            eventSources.remove(source);
+            source.uninstall(context);
+        } else {
+            eventSources.put(source, count - 1);
+        }
+    }
+
+    private static void setFiltersRegistered(Trigger trigger, boolean registered) {
+        if (trigger instanceof CompositeTrigger) {
+            for (Trigger t : ((CompositeTrigger) trigger).getChildren())
+                setFiltersRegistered(t, registered);
+        } else if (trigger instanceof FilteringTrigger) {
+            if (registered)
+                ((FilteringTrigger) trigger).registerFilters();
+            else
+                ((FilteringTrigger) trigger).unregisterFilters();
+        }
+    }
+
+    private void doEnableRule(Rule rule) throws UnknownObjectException {
+        doEnableRule(rule, false);
+    }
+
+    private void doEnableRule(Rule rule, boolean restore) throws UnknownObjectException {
+        rule.resolve();
+
+        // after resolving, which recreates the trigger state
+        boolean restored = restore && checkpointer.restore(rule, eventSources.keySet());
+
+        // before the sources start receiving
+        setFiltersRegistered(rule.getTrigger(), true);
+
+        boolean anySuccess = false;
+        for (EventSource s : rule.getEventSources()) {
+            try {
+                installSource(s);
+                anySuccess = true;
+            } catch (IOException e) {
+                Log.e(RuleExecutorService.LOG_TAG, "Failed to install event source " + s.toString(), e);
+            }
+        }
+        if (anySuccess || rule.getEventSources().isEmpty()) {
+            rule.setInstalled(true);
+            triggerGroups.join(rule);
+        }
+        statusListener.onRuleChanged(rule);
+
+        // run a pass for the events we got back
+        if (restored)
+            sendEmptyMessage(0);
+    }
+
+    private void doDisableRule(Rule rule) throws UnknownObjectException {
+        // the rule starts from scratch when it is enabled again
+        doDisableRule(rule, false);
+    }
+
+    private void doDisableRule(Rule rule, boolean keepCheckpoint) throws UnknownObjectException {
+        rule.resolve();
+
+        if (!keepCheckpoint)
+            checkpointer.forget(rule);
+        triggerGroups.leave(rule);
+
+        for (EventSource s : rule.getEventSources()) {
+            try {
+                uninstallSource(s);
+            } catch (IOException e) {
+                Log.e(RuleExecutorService.LOG_TAG, "Failed to uninstall event source " + s.toString(), e);
+            }
+        }
+        setFiltersRegistered(rule.getTrigger(), false);
+        rule.setInstalled(false);
+        statusListener.onRuleChanged(rule);
+    }
+
+    /**
+     * Disable a rule whose scripts went over budget too many times.
+     */
+    void disableOverBudget(Rule rule) {
+        rule.setEnabled(false);
+        try {
+            if (rule.isInstalled())
+                doDisableRule(rule);
+        } catch (UnknownObjectException e) {
+            Log.e(RuleExecutorService.LOG_TAG, "Failed to disable rule (object resolution problem)", e);
+        }
+
+        try {
+            RuleDatabase.get().markDirty();
+            RuleDatabase.get().save(context);
+        } catch (IOException e) {
+            Log.w(RuleExecutorService.LOG_TAG, "Failed to save rule database to disk", e);
+        }
+    }
+
+    private void forgetRule(Rule rule) {
+        rules.remove(rule);
+        budgets.remove(rule);
+        breakers.remove(rule);
+    }
+
+    /**
+     * Take ownership of a rule and enable it if needed.
+     */
+    void addRule(final Rule rule, final Callback<Rule> callback) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                rules.add(rule);
+                stats.increment("rules.added");
+
+                try {
+                    if (rule.isEnabled() && !rule.isInstalled())
+                        doEnableRule(rule);
+                    if (callback != null)
+                        callback.post(rule, null);
+                } catch (UnknownObjectException e) {
+                    Log.e(RuleExecutorService.LOG_TAG, "Failed to enable rule (object resolution problem)", e);
+                    if (callback != null)
+                        callback.post(null, e);
+                } catch (RuntimeException e) {
+                    Log.e(RuleExecutorService.LOG_TAG, "RuntimeException while enabling rule!", e);
+                    if (callback != null)
+                        callback.post(null, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Disable a rule if needed and give up ownership of it.
+     */
+    void removeRule(final Rule rule, final Callback<Boolean> callback) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                forgetRule(rule);
+                stats.increment("rules.removed");
+
+                try {
+                    if (rule.isInstalled())
+                        doDisableRule(rule);
+                    if (callback != null)
+                        callback.post(true, null);
+                } catch (UnknownObjectException e) {
+                    Log.e(RuleExecutorService.LOG_TAG, "Failed to disable rule (object resolution problem)", e);
+                    if (callback != null)
+                        callback.post(null, e);
+                } catch (RuntimeException e) {
+                    Log.e(RuleExecutorService.LOG_TAG, "RuntimeException while disabling rule!", e);
+                    if (callback != null)
+                        callback.post(null, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Give up ownership of a rule that moves to another shard, then run the
+     * continuation (on this shard's thread), which should adoptRule() it.
+     * <p>
+     * The state of the rule, including the events queued in its sources, is
+     * saved to the CheckpointStore first, so the new shard restores it
+     * instead of starting from scratch.
+     */
+    void handOverRule(final Rule rule, final Runnable then) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                forgetRule(rule);
+                stats.increment("rules.migrated.out");
+
+                try {
+                    if (rule.isInstalled()) {
+                        checkpointer.saveNow(rule);
+                        doDisableRule(rule, true);
+                    }
+                } catch (UnknownObjectException e) {
+                    Log.e(RuleExecutorService.LOG_TAG, "Failed to disable rule (object resolution problem)", e);
+                } catch (RuntimeException e) {
+                    Log.e(RuleExecutorService.LOG_TAG, "RuntimeException while migrating rule!", e);
+                }
+
+                then.run();
+            }
+        });
+    }
+
+    /**
+     * Take ownership of a rule handed over by another shard, enabling it with
+     * the state it had there.
+     */
+    void adoptRule(final Rule rule) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                rules.add(rule);
+                stats.increment("rules.migrated.in");
+
+                try {
+                    if (rule.isEnabled() && !rule.isInstalled())
+                        doEnableRule(rule, true);
+                } catch (UnknownObjectException e) {
+                    Log.e(RuleExecutorService.LOG_TAG, "Failed to enable migrated rule (object resolution problem)", e);
+                } catch (RuntimeException e) {
+                    Log.e(RuleExecutorService.LOG_TAG, "RuntimeException while enabling migrated rule!", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Bring the installed state of the rule in line with its enabled state.
+     */
+    void reloadRule(final Rule rule, final Callback<Rule> callback) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (rule.isEnabled() == rule.isInstalled()) {
+                    callback.post(rule, null);
+                    return;
+                }
+
+                try {
+                    if (rule.isEnabled()) {
+                        // the user turned it back on, give it another chance
+                        budgets.forgive(rule);
+                        breakers.remove(rule);
+                        doEnableRule(rule);
+                    }
+                    else {
+                        doDisableRule(rule);
+                    }
+                    callback.post(rule, null);
+                } catch (UnknownObjectException e) {
+                    Log.e(RuleExecutorService.LOG_TAG, "Failed to reload rule (object resolution problem)", e);
+                    callback.post(null, e);
+                } catch (RuntimeException e) {
+                    Log.e(RuleExecutorService.LOG_TAG, "RuntimeException while reloading rule!", e);
+                    callback.post(null, e);
+                }
+            }
+        });
+    }
+
+    private static ActivationStage getActivationStage(Rule rule) {
+        ActivationStage stage = ActivationStage.LOCAL;
+
+        for (EventSource s : rule.getEventSources()) {
+            ActivationStage sourceStage = ActivationStage.of(s);
+            if (sourceStage.compareTo(stage) > 0)
+                stage = sourceStage;
+        }
+
+        return stage;
+    }
+
+    private boolean activateRule(Rule rule) {
+        // the rule might have been deleted, disabled or reloaded while waiting
+        if (!rules.contains(rule) || !rule.isEnabled() || rule.isInstalled())
+            return false;
+
+        try {
+            doEnableRule(rule, true);
+            return true;
+        } catch (UnknownObjectException e) {
+            Log.i(RuleExecutorService.LOG_TAG, "Failed to bootstrap rule", e);
+            return false;
+        }
+    }
+
+    private void reportStage(ActivationStage stage, int count, long startTime) {
+        long elapsed = SystemClock.elapsedRealtime() - startTime;
+        Log.i(RuleExecutorService.LOG_TAG, "Shard " + index + ": activated " + count + " " + stage + " rules in " + elapsed + " ms");
+        stats.recordTiming("activation." + stage.name().toLowerCase(), elapsed);
+        stats.add("activation." + stage.name().toLowerCase() + ".rules", count);
+    }
+
+    /**
+     * Take ownership of the rules loaded at boot and activate them in stages.
+     * The rules must be resolved already.
+     */
+    void prepare(final List<Rule> bootRules) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                rules.addAll(bootRules);
+
+                List<List<Rule>> stages = new ArrayList<>();
+                for (int i = 0; i < ActivationStage.values().length; i++)
+                    stages.add(new ArrayList<Rule>());
+
+                for (Rule r : rules) {
+                    if (r.isEnabled())
+                        stages.get(getActivationStage(r).ordinal()).add(r);
+                }
+
+                // cheap rules come up before we start handling events
+                long startTime = SystemClock.elapsedRealtime();
+                int count = 0;
+                for (Rule r : stages.get(ActivationStage.LOCAL.ordinal())) {
+                    if (activateRule(r))
+                        count++;
+                }
+                reportStage(ActivationStage.LOCAL, count, startTime);
+
+                // the others come up one per message, so events are handled in between
+                List<Rule> deferred = new ArrayList<>();
+                for (ActivationStage stage : ActivationStage.values()) {
+                    if (stage != ActivationStage.LOCAL)
+                        deferred.addAll(stages.get(stage.ordinal()));
+                }
+                if (!deferred.isEmpty())
+                    post(new StagedActivation(deferred));
+            }
+        });
+    }
+
+    private class StagedActivation implements Runnable {
+        private final List<Rule> rules;
+        private int next;
+        private ActivationStage currentStage;
+        private long stageStartTime;
+        private int stageCount;
+
+        private StagedActivation(List<Rule> rules) {
+            this.rules = rules;
+            next = 0;
+        }
+
+        @Override
+        public void run() {
+            Rule rule = rules.get(next++);
+            ActivationStage stage = getActivationStage(rule);
+
+            if (stage != currentStage) {
+                if (currentStage != null)
+                    reportStage(currentStage, stageCount, stageStartTime);
+                currentStage = stage;
+                stageStartTime = SystemClock.elapsedRealtime();
+                stageCount = 0;
+            }
+
+            if (activateRule(rule))
+                stageCount++;
+
+            if (next < rules.size())
+                post(this);
+            else
+                reportStage(currentStage, stageCount, stageStartTime);
+        }
+    }
+
+    void setParallelEvaluation(final boolean enabled) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                dispatcher.setParallelEvaluation(enabled);
+            }
+        });
+    }
+
+    /**
+     * Uninstall everything. Must be called on the shard thread, or after it
+     * stopped.
+     */
+    void destroy() {
+        // uninstalling drops the queued events, keep them for the next start
+        checkpointer.checkpointNow();
+
+        for (EventSource s : eventSources.keySet()) {
+            try {
+                s.uninstall(context);
+            } catch (IOException e) {
+                Log.e(RuleExecutorService.LOG_TAG, "Failed to uninstall event source " + s.toString(), e);
+            }
+        }
+        eventSources.clear();
+
+        dispatcher.destroy();
+
+        for (Rule r : rules) {
+            // sources live in the channels and outlive the shard
+            if (r.isInstalled())
+                setFiltersRegistered(r.getTrigger(), false);
+            r.setInstalled(false);
+        }
+        rules.clear();
+        triggerGroups.clear();
+        budgets.clear();
+        breakers.clear();
+    }
+
+    /**
+     * Destroy the shard on its own thread and wait for the thread to exit.
+     */
+    void quit() {
+        if (thread == null) {
+            destroy();
+            return;
+        }
+
+        post(new Runnable() {
+            @Override
+            public void run() {
+                destroy();
+                thread.quit();
+            }
+        });
+
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                // try again
+            }
+        }
+    }
+
+    void dump(PrintWriter writer) {
+        writer.println("Shard " + index + ":");
+        stats.dump(writer);
+        breakers.dump(writer, rules.size());
+        writer.println("Rules sharing a trigger: " + triggerGroups.getSharedCount());
+    }
+
+    @Override
+    public void eventFiltered() {
+        super.eventFiltered();
+        stats.increment("events.filtered");
+    }
+
+    @Override
+    public void messageReceived() {
+        // the events of this batch must survive a kill in the middle of it
+        checkpointer.saveEventSources();
+
+        boolean more = dispatcher.runBatch();
+        checkpointer.schedule();
+
+        // more events than one batch, let the looper breathe and continue
+        // with a fresh message
+        if (more)
+            sendEmptyMessage(0);
+    }
+}
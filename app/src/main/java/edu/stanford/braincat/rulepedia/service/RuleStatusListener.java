@@ -0,0 +1,15 @@
+package edu.stanford.braincat.rulepedia.service;
+
+import edu.stanford.braincat.rulepedia.model.Rule;
+
+/**
+ * Created by gcampagn on 6/18/15.
+ * <p>
+ * Told when a rule is installed, enabled, disabled or deleted. Called on the
+ * thread of the shard owning the rule, or of the executor.
+ */
+public interface RuleStatusListener {
+    void onRuleChanged(Rule rule);
+
+    void onRuleRemoved(String id);
+}
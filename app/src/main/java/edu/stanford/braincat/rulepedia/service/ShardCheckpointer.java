@@ -0,0 +1,263 @@
+package edu.stanford.braincat.rulepedia.service;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import edu.stanford.braincat.rulepedia.events.Checkpointable;
+import edu.stanford.braincat.rulepedia.events.EventSource;
+import edu.stanford.braincat.rulepedia.events.SharedCheckpointable;
+import edu.stanford.braincat.rulepedia.model.Action;
+import edu.stanford.braincat.rulepedia.model.CompositeTrigger;
+import edu.stanford.braincat.rulepedia.model.Rule;
+import edu.stanford.braincat.rulepedia.model.Trigger;
+
+/**
+ * Created by gcampagn on 6/20/15.
+ * <p>
+ * Saves the state of the Checkpointable triggers and event sources of the
+ * installed rules of a shard to the CheckpointStore, at most every
+ * CHECKPOINT_DELAY ms while events are flowing, and when the shard is
+ * destroyed. The event sources are also saved before each batch, so the
+ * events it is about to consume survive a kill in the middle of it. Rules
+ * activated at boot, or migrated from another shard, get it back before
+ * their sources are installed.
+ * <p>
+ * State is keyed by rule, except for SharedCheckpointable sources, which
+ * are saved once under CheckpointStore.SHARED_PREFIX. State whose version
+ * did not change since it was saved is not serialized again.
+ * <p>
+ * Only used on the shard thread.
+ */
+class ShardCheckpointer {
+    private static final long CHECKPOINT_DELAY = 2 * 1000;
+
+    private final Handler handler;
+    private final CheckpointStore checkpoints;
+    private final Collection<Rule> rules;
+    private final TriggerGroups triggerGroups;
+    private final ExecutorStats stats;
+    private static class Saved {
+        private final Checkpointable owner;
+        private final long version;
+
+        private Saved(Checkpointable owner, long version) {
+            this.owner = owner;
+            this.version = version;
+        }
+    }
+
+    // what was last saved under each key, a reloaded rule has new objects
+    private final Map<String, Saved> savedVersions;
+    private boolean scheduled;
+
+    private final Runnable checkpointRunnable = new Runnable() {
+        @Override
+        public void run() {
+            scheduled = false;
+            checkpoint();
+        }
+    };
+
+    ShardCheckpointer(Handler handler, CheckpointStore checkpoints, Collection<Rule> rules,
+                      TriggerGroups triggerGroups, ExecutorStats stats) {
+        this.handler = handler;
+        this.checkpoints = checkpoints;
+        this.rules = rules;
+        this.triggerGroups = triggerGroups;
+        this.stats = stats;
+        savedVersions = new HashMap<>();
+        scheduled = false;
+    }
+
+    private static void collectCheckpointables(Collection<EventSource> sources, String path, Map<String, Checkpointable> into) {
+        for (EventSource s : sources) {
+            if (s instanceof SharedCheckpointable)
+                into.put(CheckpointStore.SHARED_PREFIX + ((Checkpointable) s).getCheckpointKey(), (Checkpointable) s);
+            else if (s instanceof Checkpointable)
+                into.put(path + "/" + ((Checkpointable) s).getCheckpointKey(), (Checkpointable) s);
+        }
+    }
+
+    private static void collectCheckpointables(Trigger trigger, String path, Map<String, Checkpointable> into) {
+        if (trigger instanceof CompositeTrigger) {
+            int i = 0;
+            for (Trigger t : ((CompositeTrigger) trigger).getChildren())
+                collectCheckpointables(t, path + "." + i++, into);
+            return;
+        }
+
+        if (trigger instanceof Checkpointable)
+            into.put(path + "/" + ((Checkpointable) trigger).getCheckpointKey(), (Checkpointable) trigger);
+        collectCheckpointables(trigger.getEventSources(), path, into);
+    }
+
+    /**
+     * Returns the checkpointable state of a resolved rule, keyed by its
+     * position in the rule, which does not change across restarts.
+     */
+    private static Map<String, Checkpointable> getCheckpointables(Rule rule) {
+        Map<String, Checkpointable> result = new LinkedHashMap<>();
+
+        collectCheckpointables(rule.getTrigger(), rule.getId() + "/t", result);
+        int i = 0;
+        for (Action a : rule.getActions())
+            collectCheckpointables(a.getEventSources(), rule.getId() + "/a" + i++, result);
+
+        return result;
+    }
+
+    /**
+     * Restore the saved state of a resolved rule, except for the sources in
+     * running, which have fresher state already. Returns true if any state
+     * was restored.
+     */
+    boolean restore(Rule rule, Set<EventSource> running) {
+        boolean restored = false;
+
+        for (Map.Entry<String, Checkpointable> e : getCheckpointables(rule).entrySet()) {
+            if (e.getValue() instanceof EventSource && running.contains(e.getValue()))
+                continue;
+
+            String saved = checkpoints.get(e.getKey());
+            if (saved == null)
+                continue;
+
+            try {
+                e.getValue().restoreState(new JSONObject(saved));
+                restored = true;
+            } catch (JSONException | RuntimeException ex) {
+                Log.w(RuleExecutorService.LOG_TAG, "Failed to restore checkpoint " + e.getKey(), ex);
+            }
+        }
+
+        if (restored)
+            stats.increment("checkpoint.restored");
+        return restored;
+    }
+
+    /**
+     * Save the state of one rule, skipping the keys in done, which are
+     * added to it.
+     */
+    private int save(Rule rule, boolean sourcesOnly, Set<String> done) {
+        int written = 0;
+
+        for (Map.Entry<String, Checkpointable> e : getCheckpointables(rule).entrySet()) {
+            if (sourcesOnly && !(e.getValue() instanceof EventSource))
+                continue;
+            // shared sources come up once per rule
+            if (!done.add(e.getKey()))
+                continue;
+
+            long version = e.getValue().getStateVersion();
+            Saved saved = savedVersions.get(e.getKey());
+            if (version != Checkpointable.NO_VERSION && saved != null && saved.owner == e.getValue()
+                    && saved.version == version) {
+                stats.increment("checkpoint.unchanged");
+                continue;
+            }
+
+            try {
+                JSONObject state = e.getValue().saveState();
+                if (state == null)
+                    checkpoints.remove(e.getKey());
+                else if (checkpoints.put(e.getKey(), state.toString()))
+                    written++;
+                savedVersions.put(e.getKey(), new Saved(e.getValue(), version));
+            } catch (JSONException | RuntimeException ex) {
+                Log.w(RuleExecutorService.LOG_TAG, "Failed to checkpoint " + e.getKey(), ex);
+            }
+        }
+
+        return written;
+    }
+
+    /**
+     * Save the state of one installed rule now, before it is handed over
+     * to another shard.
+     */
+    void saveNow(Rule rule) {
+        // a follower has the state of its group only after a sync
+        triggerGroups.sync();
+        stats.add("checkpoint.written", save(rule, false, new HashSet<String>()));
+    }
+
+    /**
+     * Save the state of the event sources of every installed rule now, with
+     * the events they queued. Sources whose state did not change are
+     * skipped, so this is cheap when nothing happened.
+     */
+    void saveEventSources() {
+        int written = 0;
+        Set<String> done = new HashSet<>();
+
+        for (Rule r : rules) {
+            if (r.isInstalled())
+                written += save(r, true, done);
+        }
+
+        stats.add("checkpoint.written", written);
+    }
+
+    /**
+     * Forget the saved state of a rule, which starts from scratch when it
+     * is enabled again.
+     */
+    void forget(Rule rule) {
+        String prefix = rule.getId() + "/";
+        checkpoints.removePrefix(prefix);
+
+        Iterator<String> it = savedVersions.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().startsWith(prefix))
+                it.remove();
+        }
+    }
+
+    void schedule() {
+        if (scheduled)
+            return;
+
+        scheduled = true;
+        handler.postDelayed(checkpointRunnable, CHECKPOINT_DELAY);
+    }
+
+    /**
+     * Save the state of every installed rule now, cancelling the scheduled
+     * checkpoint.
+     */
+    void checkpointNow() {
+        handler.removeCallbacks(checkpointRunnable);
+        scheduled = false;
+        checkpoint();
+    }
+
+    private void checkpoint() {
+        long startTime = SystemClock.elapsedRealtime();
+        int written = 0;
+
+        // followers keep the state of the group, whoever leads after a restart
+        triggerGroups.sync();
+
+        Set<String> done = new HashSet<>();
+        for (Rule r : rules) {
+            if (r.isInstalled())
+                written += save(r, false, done);
+        }
+
+        stats.add("checkpoint.written", written);
+        stats.recordTiming("checkpoint", SystemClock.elapsedRealtime() - startTime);
+    }
+}
@@ -0,0 +1,52 @@
+package edu.stanford.braincat.rulepedia.service;
+
+import android.os.SystemClock;
+
+/**
+ * Created by gcampagn on 6/11/15.
+ * <p>
+ * Allows bursts of up to capacity events, then one event every
+ * refillInterval ms.
+ */
+public class TokenBucket {
+    private final int capacity;
+    private final long refillInterval;
+    private int tokens;
+    private long lastRefill;
+
+    public TokenBucket(int capacity, long refillInterval) {
+        this.capacity = capacity;
+        this.refillInterval = refillInterval;
+        tokens = capacity;
+        lastRefill = SystemClock.elapsedRealtime();
+    }
+
+    private void refill() {
+        long now = SystemClock.elapsedRealtime();
+        long refilled = (now - lastRefill) / refillInterval;
+        if (refilled == 0)
+            return;
+
+        tokens = (int) Math.min(capacity, tokens + refilled);
+        if (tokens == capacity)
+            lastRefill = now;
+        else
+            lastRefill += refilled * refillInterval;
+    }
+
+    /**
+     * Take a token if one is available.
+     */
+    public synchronized boolean tryAcquire() {
+        refill();
+        if (tokens == 0)
+            return false;
+        tokens--;
+        return true;
+    }
+
+    public synchronized boolean isFull() {
+        refill();
+        return tokens == capacity;
+    }
+}
@@ -0,0 +1,171 @@
+package edu.stanford.braincat.rulepedia.service;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import edu.stanford.braincat.rulepedia.channels.Util;
+import edu.stanford.braincat.rulepedia.events.Checkpointable;
+import edu.stanford.braincat.rulepedia.model.CompositeTrigger;
+import edu.stanford.braincat.rulepedia.model.Rule;
+import edu.stanford.braincat.rulepedia.model.Trigger;
+
+/**
+ * Created by gcampagn on 6/19/15.
+ * <p>
+ * Groups the installed rules of a shard that have the same trigger, so it
+ * is evaluated once per pass instead of once per rule.
+ * <p>
+ * Two triggers are the same if their canonical JSON (channel URL, trigger
+ * id and parameters, after resolving) is equal, they are isolated, and
+ * they read the same event sources. Isolated triggers only depend on what
+ * update() captured from their sources and on their own state, so with the
+ * same sources and the same state they compute the same thing.
+ * <p>
+ * The first rule of a group is its leader: its trigger is the one that is
+ * evaluated, and the others fire with the values it produced. The state of
+ * the leader is copied to a rule when it joins, to the next leader when the
+ * leader leaves, and to every member before a checkpoint, so whichever
+ * trigger is evaluated next picks up where the group was.
+ * <p>
+ * Only used on the shard thread.
+ */
+class TriggerGroups {
+    private static class Group {
+        private final String key;
+        private final List<Rule> members;
+
+        private Group(String key) {
+            this.key = key;
+            members = new ArrayList<>();
+        }
+
+        private Rule getLeader() {
+            return members.get(0);
+        }
+    }
+
+    private final Map<String, Group> byKey;
+    private final Map<Rule, Group> byRule;
+
+    TriggerGroups() {
+        byKey = new HashMap<>();
+        byRule = new HashMap<>();
+    }
+
+    private static void copyState(Trigger from, Trigger to) throws JSONException {
+        if (from instanceof CompositeTrigger) {
+            // same canonical JSON, so the same shape
+            Iterator<Trigger> toChildren = ((CompositeTrigger) to).getChildren().iterator();
+            for (Trigger child : ((CompositeTrigger) from).getChildren())
+                copyState(child, toChildren.next());
+            return;
+        }
+
+        if (from instanceof Checkpointable) {
+            JSONObject state = ((Checkpointable) from).saveState();
+            if (state != null)
+                ((Checkpointable) to).restoreState(state);
+        }
+    }
+
+    private static void copyState(Rule from, Rule to) {
+        try {
+            copyState(from.getTrigger(), to.getTrigger());
+        } catch (JSONException | RuntimeException e) {
+            Log.w(RuleExecutorService.LOG_TAG, "Failed to share trigger state of rule " + from.getId(), e);
+        }
+    }
+
+    /**
+     * Add an installed rule to the group of its trigger, if it can share it.
+     */
+    void join(Rule rule) {
+        if (byRule.containsKey(rule))
+            return;
+
+        Trigger trigger = rule.getTrigger();
+        if (!ParallelTriggerEvaluator.isIsolated(trigger))
+            return;
+
+        String key;
+        try {
+            key = Util.toCanonicalJSON(trigger.toJSON());
+        } catch (JSONException e) {
+            return;
+        }
+
+        Group group = byKey.get(key);
+        if (group == null) {
+            group = new Group(key);
+            byKey.put(key, group);
+        } else {
+            Rule leader = group.getLeader();
+            // triggers with private event sources see different events
+            if (!new HashSet<>(leader.getTrigger().getEventSources()).equals(new HashSet<>(trigger.getEventSources())))
+                return;
+            copyState(leader, rule);
+        }
+
+        group.members.add(rule);
+        byRule.put(rule, group);
+    }
+
+    /**
+     * Remove a rule from its group, handing the state over to the next
+     * leader if it was the leader.
+     */
+    void leave(Rule rule) {
+        Group group = byRule.remove(rule);
+        if (group == null)
+            return;
+
+        boolean wasLeader = group.getLeader() == rule;
+        group.members.remove(rule);
+        if (group.members.isEmpty())
+            byKey.remove(group.key);
+        else if (wasLeader)
+            copyState(rule, group.getLeader());
+    }
+
+    /**
+     * Returns the rule whose trigger is evaluated for this rule, which is
+     * the rule itself if it does not share its trigger.
+     */
+    Rule getLeader(Rule rule) {
+        Group group = byRule.get(rule);
+        return group != null ? group.getLeader() : rule;
+    }
+
+    /**
+     * Copy the state of every leader to the other members of its group.
+     */
+    void sync() {
+        for (Group group : byKey.values()) {
+            Rule leader = group.getLeader();
+            for (int i = 1; i < group.members.size(); i++)
+                copyState(leader, group.members.get(i));
+        }
+    }
+
+    /**
+     * The number of rules whose trigger is not evaluated because another
+     * rule has the same.
+     */
+    int getSharedCount() {
+        return byRule.size() - byKey.size();
+    }
+
+    void clear() {
+        byKey.clear();
+        byRule.clear();
+    }
+}
@@ -2,6 +2,7 @@ package edu.stanford.braincat.rulepedia.ui;
 
 import android.annotation.SuppressLint;
 import android.os.Bundle;
+import android.os.RemoteException;
 import android.support.v4.app.Fragment;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -15,17 +16,14 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONTokener;
 
-import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
 
 import edu.stanford.braincat.rulepedia.R;
-import edu.stanford.braincat.rulepedia.model.Channel;
-import edu.stanford.braincat.rulepedia.model.CompositeTrigger;
-import edu.stanford.braincat.rulepedia.model.Rule;
-import edu.stanford.braincat.rulepedia.model.Trigger;
-import edu.stanford.braincat.rulepedia.service.Callback;
-import edu.stanford.braincat.rulepedia.service.RuleExecutor;
+import edu.stanford.braincat.rulepedia.service.IRuleBatchCallback;
+import edu.stanford.braincat.rulepedia.service.IRuleEngine;
 
 public class BrowseFragment extends Fragment {
     public static final String LOG_TAG = "rulepedia.UI.Install";
@@ -77,62 +75,37 @@ public class BrowseFragment extends Fragment {
         ((MainActivity)getActivity()).onRuleInstalled();
     }
 
-    private void reportInstallationError(Exception error) {
+    private void reportInstallationError(String error) {
         ((MainActivity)getActivity()).onRuleInstallationError(error);
     }
 
     private void sendIntentToRuleEngine(String ruleJSON) {
-        RuleExecutor executor = ((MainActivity) getActivity()).getRuleExecutor();
-        if (executor == null)
+        IRuleEngine engine = ((MainActivity) getActivity()).getRuleEngine();
+        if (engine == null)
             return;
 
         try {
+            // parse here so malformed rules from the web page are reported right away
             JSONObject jsonRule = (JSONObject) new JSONTokener(ruleJSON).nextValue();
 
-            executor.installRule(jsonRule, new Callback<Rule>() {
-                private void getChannels(Trigger trigger, Collection<Channel> ctx) {
-                    if (trigger instanceof CompositeTrigger) {
-                        for (Trigger t : ((CompositeTrigger) trigger).getChildren())
-                            getChannels(t, ctx);
-                    } else {
-                        ctx.add(trigger.getChannel());
-                    }
-                }
-
+            engine.installRules(Collections.singletonList(jsonRule.toString()), new IRuleBatchCallback.Stub() {
                 @Override
-                public void run(final Rule result, final Exception error) {
+                public void onResult(final List<String> ids, final List<String> errors) {
                     getActivity().runOnUiThread(new Runnable() {
                         public void run() {
-                            if (result != null) {
+                            if (ids.get(0) != null)
                                 reportInstallationSuccess();
-
-                                /*
-                                Collection<ObjectPool.Object> placeholders =  result.getPlaceholders();
-
-                                Collection<Channel> channels = new ArrayList<>();
-                                getChannels(result.getTrigger(), channels);
-                                for (Action a : result.getActions())
-                                    channels.add(a.getChannel());
-
-                                for (ObjectPool.Object placeholder : placeholders) {
-                                    placeholder.toHumanString();
-
-                                    //placeholder.getUrl() //key to store
-
-
-
-                                }
-                                */
-                            } else {
-                                reportInstallationError(error);
-                            }
+                            else
+                                reportInstallationError(errors.get(0));
                         }
                     });
                 }
             });
-        } catch (JSONException e) {
+        } catch (JSONException | ClassCastException e) {
             Log.e(LOG_TAG, "Failed to parse rule JSON: " + e.getMessage());
-            reportInstallationError(e);
+            reportInstallationError(e.getMessage());
+        } catch (RemoteException e) {
+            Log.w(LOG_TAG, "Rule engine died while installing rule", e);
         }
     }
 
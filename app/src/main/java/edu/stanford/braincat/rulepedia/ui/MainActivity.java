@@ -12,7 +12,7 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
-import android.support.annotation.Nullable;
+import android.os.RemoteException;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentManager;
 import android.support.v4.app.FragmentPagerAdapter;
@@ -27,13 +27,15 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONTokener;
 
+import java.util.Collections;
+import java.util.List;
+
 import edu.stanford.braincat.rulepedia.R;
 import edu.stanford.braincat.rulepedia.channels.Util;
-import edu.stanford.braincat.rulepedia.exceptions.DuplicatedRuleException;
-import edu.stanford.braincat.rulepedia.model.Rule;
 import edu.stanford.braincat.rulepedia.service.AutoStarter;
-import edu.stanford.braincat.rulepedia.service.Callback;
-import edu.stanford.braincat.rulepedia.service.RuleExecutor;
+import edu.stanford.braincat.rulepedia.service.IRuleBatchCallback;
+import edu.stanford.braincat.rulepedia.service.IRuleEngine;
+import edu.stanford.braincat.rulepedia.service.RuleEngineBinder;
 import edu.stanford.braincat.rulepedia.service.RuleExecutorService;
 
 
@@ -56,24 +58,25 @@ public class MainActivity extends ActionBarActivity {
     ViewPager mViewPager;
 
     private ServiceConnection connection;
-    private RuleExecutor executor;
+    private IRuleEngine engine;
 
 
     private class Connection implements ServiceConnection {
         @Override
         public void onServiceConnected(ComponentName componentName, IBinder iBinder) {
-            executor = ((RuleExecutorService.Binder) iBinder).getRuleExecutor();
+            // the service itself if it runs in our process, a proxy otherwise
+            engine = IRuleEngine.Stub.asInterface(iBinder);
         }
 
         @Override
         public void onServiceDisconnected(ComponentName componentName) {
-            executor = null;
+            engine = null;
         }
     }
 
     private void startService() {
         AutoStarter.startService(this);
-        Intent intent = new Intent(this, RuleExecutorService.class);
+        Intent intent = new Intent(this, RuleExecutorService.getServiceClass(this));
         bindService(intent, connection, Context.BIND_AUTO_CREATE);
     }
 
@@ -113,8 +116,8 @@ public class MainActivity extends ActionBarActivity {
                 .show();
     }
 
-    public void onRuleInstallationError(Exception error) {
-        if(error instanceof DuplicatedRuleException) {
+    public void onRuleInstallationError(String error) {
+        if (RuleEngineBinder.ERROR_DUPLICATED.equals(error)) {
             new AlertDialog.Builder(this)
                     .setTitle("Error")
                     .setMessage("Rule already in database")
@@ -128,7 +131,7 @@ public class MainActivity extends ActionBarActivity {
         } else {
             new AlertDialog.Builder(this)
                     .setTitle("Error adding rule")
-                    .setMessage("Internal error " + error.toString())
+                    .setMessage("Internal error " + error)
                     .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
                         public void onClick(DialogInterface dialog, int which) {
                             // continue with delete
@@ -146,19 +149,29 @@ public class MainActivity extends ActionBarActivity {
                 "The description says: " + jsonRule.getString("description"))
                 .setPositiveButton(android.R.string.yes, new DialogInterface.OnClickListener() {
                     public void onClick(DialogInterface dialog, int which) {
-                        RuleExecutor executor = getRuleExecutor();
-                        if (executor == null)
+                        IRuleEngine currentEngine = engine;
+                        if (currentEngine == null)
                             return;
 
-                        executor.installRule(jsonRule, new Callback<Rule>() {
-                            @Override
-                            public void run(@Nullable Rule result, @Nullable Exception error) {
-                                if (result != null)
-                                    onRuleInstalled();
-                                else
-                                    onRuleInstallationError(error);
-                            }
-                        });
+                        // the service might still be starting, it queues up until it's ready
+                        try {
+                            currentEngine.installRules(Collections.singletonList(jsonRule.toString()), new IRuleBatchCallback.Stub() {
+                                @Override
+                                public void onResult(final List<String> ids, final List<String> errors) {
+                                    runOnUiThread(new Runnable() {
+                                        @Override
+                                        public void run() {
+                                            if (ids.get(0) != null)
+                                                onRuleInstalled();
+                                            else
+                                                onRuleInstallationError(errors.get(0));
+                                        }
+                                    });
+                                }
+                            });
+                        } catch (RemoteException e) {
+                            Log.w(LOG_TAG, "Rule engine died while installing rule", e);
+                        }
 
                         // continue with delete
                     }
@@ -217,8 +230,11 @@ public class MainActivity extends ActionBarActivity {
         }
     }
 
-    public RuleExecutor getRuleExecutor() {
-        return executor;
+    /**
+     * Returns the rule engine, or null if the service is not connected yet.
+     */
+    public IRuleEngine getRuleEngine() {
+        return engine;
     }
 
     @Override
@@ -2,6 +2,7 @@ package edu.stanford.braincat.rulepedia.ui;
 
 import android.app.Activity;
 import android.content.Context;
+import android.os.RemoteException;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -12,18 +13,20 @@ import android.widget.ListAdapter;
 import android.widget.TextView;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import edu.stanford.braincat.rulepedia.R;
-import edu.stanford.braincat.rulepedia.model.Rule;
-import edu.stanford.braincat.rulepedia.service.Callback;
-import edu.stanford.braincat.rulepedia.service.RuleExecutor;
+import edu.stanford.braincat.rulepedia.service.IRuleBatchCallback;
+import edu.stanford.braincat.rulepedia.service.IRuleEngine;
+import edu.stanford.braincat.rulepedia.service.RuleInfo;
 
 public class RuleListItemCustomAdapter extends BaseAdapter implements ListAdapter {
-    private ArrayList<Rule> list = new ArrayList<>();
+    private ArrayList<RuleInfo> list = new ArrayList<>();
     private Activity activity;
     private Context context;
 
-    public RuleListItemCustomAdapter(Activity activity, Context context, ArrayList<Rule> list) {
+    public RuleListItemCustomAdapter(Activity activity, Context context, ArrayList<RuleInfo> list) {
         this.list = list;
         this.context = context;
         this.activity = activity;
@@ -66,26 +69,32 @@ public class RuleListItemCustomAdapter extends BaseAdapter implements ListAdapte
             @Override
             public void onClick(View v) {
                 //do something
-                String ruleID = list.get(position).getId();
+                final RuleInfo rule = list.get(position);
 
-                RuleExecutor executor = ((MainActivity) activity).getRuleExecutor();
+                IRuleEngine engine = ((MainActivity) activity).getRuleEngine();
 
-                if (executor == null)
+                if (engine == null)
                     return;
 
                 try {
-                    executor.deleteRule(ruleID, new Callback<Boolean>() {
+                    engine.deleteRules(Collections.singletonList(rule.getId()), new IRuleBatchCallback.Stub() {
                         @Override
-                        public void run(Boolean success, Exception error) {
-                            if (success != null) {
-                                list.remove(position); //or some other task
-                                notifyDataSetChanged();
-                            } else {
-                                Log.d("a", "CANNOT REMOVE RULE!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
-                            }
+                        public void onResult(List<String> ids, final List<String> errors) {
+                            activity.runOnUiThread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    if (errors.get(0) == null) {
+                                        // the list might have changed in the meantime
+                                        list.remove(rule);
+                                        notifyDataSetChanged();
+                                    } else {
+                                        Log.d("a", "CANNOT REMOVE RULE: " + errors.get(0));
+                                    }
+                                }
+                            });
                         }
                     });
-                } catch (Exception e) {
+                } catch (RemoteException e) {
                     Log.d("a", null, e);
                 }
             }
@@ -1,7 +1,8 @@
 package edu.stanford.braincat.rulepedia.ui;
 
-import android.content.Context;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.RemoteException;
 import android.support.v4.app.Fragment;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -10,15 +11,19 @@ import android.view.ViewGroup;
 import android.widget.ListView;
 
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Iterator;
+import java.util.List;
 
 import edu.stanford.braincat.rulepedia.R;
-import edu.stanford.braincat.rulepedia.model.Rule;
-import edu.stanford.braincat.rulepedia.model.RuleDatabase;
+import edu.stanford.braincat.rulepedia.service.IRuleEngine;
+import edu.stanford.braincat.rulepedia.service.IRuleStatusListener;
+import edu.stanford.braincat.rulepedia.service.RuleInfo;
 
 public class RuleManageFragment extends Fragment {
+    private static final int PAGE_SIZE = 50;
+    // how often to check if the service connected, while it did not
+    private static final long CONNECT_RETRY = 250;
+
     /**
      * Use this factory method to create a new instance of
      * this fragment using the provided parameters.
@@ -39,32 +44,49 @@ public class RuleManageFragment extends Fragment {
     ListView ruleListView;
 
     //LIST OF ARRAY STRINGS WHICH WILL SERVE AS LIST ITEMS
-    ArrayList<Rule> listItems = new ArrayList<>();
+    ArrayList<RuleInfo> listItems = new ArrayList<>();
 
     //DEFINING A STRING ADAPTER WHICH WILL HANDLE THE DATA OF THE LISTVIEW
     //ArrayAdapter<Rule> listAdapter;
     RuleListItemCustomAdapter listAdapter;
 
-    private void loadRules(Context ctx) {
+    private void loadRules(IRuleEngine engine) throws RemoteException {
         listItems.clear();
 
-        try {
-            RuleDatabase db = RuleDatabase.get();
-            db.load(ctx);
-            Collection<Rule> rules = db.getAllRules();
-
-            Log.d("myTag", "rules.size(): " + rules.size());
+        // page through, so a big database does not overflow the binder buffer
+        int count = engine.getRuleCount();
+        Log.d("myTag", "rules.size(): " + count);
+        for (int offset = 0; offset < count; offset += PAGE_SIZE) {
+            List<RuleInfo> page = engine.listRules(offset, PAGE_SIZE);
+            if (page.isEmpty())
+                break;
+            listItems.addAll(page);
+        }
 
-            for (Rule rule : rules) {
-                listItems.add(rule);
-            }
+        listAdapter.notifyDataSetChanged();
+    }
 
-            //listItems.add(new Rule("rule 1", "desc", null, null));
+    private void applyChanges(List<RuleInfo> changed, List<String> removed) {
+        Iterator<RuleInfo> it = listItems.iterator();
+        while (it.hasNext()) {
+            if (removed.contains(it.next().getId()))
+                it.remove();
+        }
 
-            listAdapter.notifyDataSetChanged();
-        } catch (Exception e) {
-            e.printStackTrace();
+        for (RuleInfo rule : changed) {
+            boolean found = false;
+            for (int i = 0; i < listItems.size(); i++) {
+                if (listItems.get(i).getId().equals(rule.getId())) {
+                    listItems.set(i, rule);
+                    found = true;
+                    break;
+                }
+            }
+            if (!found)
+                listItems.add(rule);
         }
+
+        listAdapter.notifyDataSetChanged();
     }
 
     @Override
@@ -113,32 +135,63 @@ public class RuleManageFragment extends Fragment {
 
         ruleListView.setAdapter(listAdapter);
 
-        loadRules(this.getActivity().getApplicationContext());
         return v;
     }
 
-    private Timer autoUpdate;
+    private final Handler handler = new Handler();
+    private IRuleEngine subscribedEngine;
+
+    private final IRuleStatusListener statusListener = new IRuleStatusListener.Stub() {
+        @Override
+        public void onRulesChanged(final List<RuleInfo> changed, final List<String> removed) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (subscribedEngine != null)
+                        applyChanges(changed, removed);
+                }
+            });
+        }
+    };
+
+    private final Runnable subscribe = new Runnable() {
+        @Override
+        public void run() {
+            IRuleEngine engine = ((MainActivity) getActivity()).getRuleEngine();
+            if (engine == null) {
+                // the activity binds in onCreate, give it a moment
+                handler.postDelayed(this, CONNECT_RETRY);
+                return;
+            }
+
+            try {
+                // subscribe first, so nothing is missed between the two calls
+                engine.addStatusListener(statusListener);
+                subscribedEngine = engine;
+                loadRules(engine);
+            } catch (RemoteException e) {
+                Log.w("myTag", "Failed to load rules", e);
+            }
+        }
+    };
 
     @Override
     public void onResume() {
         super.onResume();
-        autoUpdate = new Timer();
-        autoUpdate.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                getActivity().runOnUiThread(new Runnable() {
-                    public void run() {
-                        //updateHTML();
-                        loadRules(getActivity().getApplicationContext());
-                    }
-                });
-            }
-        }, 0, 5000); // updates each 40 secs
+        subscribe.run();
     }
 
     @Override
     public void onPause() {
-        autoUpdate.cancel();
+        handler.removeCallbacks(subscribe);
+        if (subscribedEngine != null) {
+            try {
+                subscribedEngine.removeStatusListener(statusListener);
+            } catch (RemoteException e) {
+                // the engine is gone, and the listener with it
+            }
+            subscribedEngine = null;
+        }
         super.onPause();
     }
 